@@ -0,0 +1,39 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+
+/**
+ * @param mode             how the catalog is loaded when the application starts
+ * @param snapshotEnabled  restore the catalog from the snapshot of the previous run if nothing has changed
+ * @param prefetch         identifiers of publications whose subunit files are generated in the background after
+ *                         every refresh when {@code mapml.generation} is lazy
+ */
+@ConfigurationProperties(prefix = "bootstrap")
+public record BootstrapProperties(
+        Mode mode,
+        boolean snapshotEnabled,
+        List<String> prefetch
+) {
+    public BootstrapProperties {
+        if (mode == null) {
+            mode = Mode.BLOCKING;
+        }
+        prefetch = prefetch == null
+                ? List.of()
+                : prefetch.stream().map(String::trim).filter(identifier -> !identifier.isEmpty()).distinct().toList();
+    }
+
+    public enum Mode {
+        /**
+         * Parse the catalog, write the MapML files and rebuild the index before the application is started.
+         */
+        BLOCKING,
+        /**
+         * Serve the index and MapML files persisted by the previous run and refresh them in the background. The
+         * catalog is restored from the index before the application is started. Falls back to {@link #BLOCKING} if no index exists yet.
+         */
+        ASYNC
+    }
+}
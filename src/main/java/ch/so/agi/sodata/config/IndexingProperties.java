@@ -5,6 +5,7 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 @ConfigurationProperties(prefix = "indexing")
 public record IndexingProperties(
         String directory,
-        int queryMaxRecords
+        int queryMaxRecords,
+        int wildcardCacheSize
 ) {
 }
@@ -0,0 +1,31 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * @param size          memory budget of the subunits.mapml cache, for raw and gzip payloads together; zero disables
+ *                      the cache
+ * @param maxEntrySize  files larger than this are not held in memory but streamed from disk
+ * @param extentSize    memory budget of the subunit markup indexed for {@code bbox} requests, counting the full
+ *                      markup and every simplified level of a publication; the least recently used publication is
+ *                      dropped first, and a publication larger than the budget is served unfiltered
+ */
+@ConfigurationProperties(prefix = "mapml.cache")
+public record MapMlCacheProperties(
+        DataSize size,
+        DataSize maxEntrySize,
+        DataSize extentSize
+) {
+    public MapMlCacheProperties {
+        if (size == null) {
+            size = DataSize.ofMegabytes(64);
+        }
+        if (maxEntrySize == null) {
+            maxEntrySize = DataSize.ofMegabytes(8);
+        }
+        if (extentSize == null) {
+            extentSize = DataSize.ofMegabytes(128);
+        }
+    }
+}
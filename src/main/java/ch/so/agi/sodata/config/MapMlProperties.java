@@ -0,0 +1,112 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+
+/**
+ * @param coordinatePrecision     decimal places of the Web Mercator coordinates (metres) written to MapML files;
+ *                                a negative value keeps the full {@code double} precision
+ * @param simplifiedZooms         zoom levels for which a simplified copy of every MapML file is written; empty
+ *                                disables the simplified levels
+ * @param simplificationTolerance simplification tolerance in pixels at the zoom level of each copy
+ * @param coverageMaxFeatures     layers with at most this many subunits are simplified as a coverage, which keeps
+ *                                shared borders identical but needs all geometries of the layer in memory; larger
+ *                                layers are simplified feature by feature
+ * @param reprojection            how subunit geometries are reprojected from LV95 to Web Mercator
+ * @param generation              when the MapML files and subunit feature stores of the publications are written
+ * @param geojsonMaxFeatures      layers with at most this many subunits are also written as GeoJSON; larger layers
+ *                                are only available as FlatGeobuf
+ */
+@ConfigurationProperties(prefix = "mapml")
+public record MapMlProperties(
+        Integer coordinatePrecision,
+        List<Integer> simplifiedZooms,
+        Double simplificationTolerance,
+        Reprojection reprojection,
+        Generation generation,
+        Integer geojsonMaxFeatures,
+        Integer coverageMaxFeatures
+) {
+    public static final int MAX_COORDINATE_PRECISION = 9;
+
+    /**
+     * Web Mercator metres per pixel at zoom 0 for 256 pixel tiles.
+     */
+    public static final double ZOOM_0_RESOLUTION = 2 * Math.PI * 6378137 / 256;
+
+    public MapMlProperties {
+        if (coordinatePrecision == null) {
+            coordinatePrecision = 2;
+        }
+        if (coordinatePrecision > MAX_COORDINATE_PRECISION) {
+            throw new IllegalArgumentException(
+                    "mapml.coordinate-precision must not exceed " + MAX_COORDINATE_PRECISION);
+        }
+        simplifiedZooms = simplifiedZooms == null
+                ? List.of(10, 12, 14)
+                : simplifiedZooms.stream().distinct().sorted().toList();
+        if (simplificationTolerance == null) {
+            simplificationTolerance = 0.5;
+        }
+        if (reprojection == null) {
+            reprojection = Reprojection.PROJ4J;
+        }
+        if (generation == null) {
+            generation = Generation.EAGER;
+        }
+        if (geojsonMaxFeatures == null) {
+            geojsonMaxFeatures = 5000;
+        }
+        if (coverageMaxFeatures == null) {
+            coverageMaxFeatures = 20000;
+        }
+    }
+
+    public static double resolution(double zoom) {
+        return ZOOM_0_RESOLUTION / Math.pow(2, zoom);
+    }
+
+    public static double zoom(double resolution) {
+        return Math.log(ZOOM_0_RESOLUTION / resolution) / Math.log(2);
+    }
+
+    /**
+     * Returns the least detailed simplified level that still suits a map shown at {@code zoom}, or {@code null}
+     * if only the full-detail file does.
+     */
+    public Integer simplifiedZoomFor(double zoom) {
+        for (Integer simplifiedZoom : simplifiedZooms) {
+            if (simplifiedZoom >= zoom) {
+                return simplifiedZoom;
+            }
+        }
+        return null;
+    }
+
+    public enum Reprojection {
+        /**
+         * Rigorous proj4j pipeline: inverse Swiss oblique Mercator on Bessel, Helmert datum shift, Mercator.
+         */
+        PROJ4J,
+        /**
+         * swisstopo's approximate LV95 to WGS84 polynomials followed by spherical Mercator. Deviates by up to about
+         * two Web Mercator metres inside the canton, which is invisible at display scales, and is several times
+         * faster.
+         */
+        APPROXIMATE
+    }
+
+    public enum Generation {
+        /**
+         * Every refresh writes the files of all publications while the catalog is parsed.
+         */
+        EAGER,
+        /**
+         * A refresh only removes the files of the previous catalog. The files of a publication are written by the
+         * first request that needs them, or ahead of time for the publications listed in
+         * {@code bootstrap.prefetch}.
+         */
+        LAZY
+    }
+}
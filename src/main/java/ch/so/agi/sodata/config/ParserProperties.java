@@ -0,0 +1,15 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+@ConfigurationProperties(prefix = "parser")
+public record ParserProperties(
+        DataSize parallelFileThreshold
+) {
+    public ParserProperties {
+        if (parallelFileThreshold == null) {
+            parallelFileThreshold = DataSize.ofMegabytes(4);
+        }
+    }
+}
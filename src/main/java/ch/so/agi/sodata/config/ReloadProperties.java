@@ -0,0 +1,21 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "reload")
+public record ReloadProperties(
+        boolean watchEnabled,
+        Duration debounce,
+        int historySize
+) {
+    public ReloadProperties {
+        if (debounce == null || debounce.isNegative()) {
+            debounce = Duration.ofSeconds(2);
+        }
+        if (historySize < 1) {
+            historySize = 20;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * @param maxZoom           highest zoom level served by the subunit tile endpoint, at most {@value #MAX_ZOOM}
+ * @param bufferPixels      margin around each tile, in pixels, that clipped geometries extend into
+ * @param memoryCacheSize   memory budget of the rendered tiles kept in memory, weighed by the size of their markup;
+ *                          zero disables the cache
+ * @param diskCacheMaxZoom  tiles up to this zoom level are also cached on disk; a negative value disables the disk
+ *                          cache
+ * @param seedMinZoom       lowest zoom level rendered ahead of the first request after every refresh
+ * @param seedMaxZoom       highest zoom level rendered ahead of the first request; a negative value disables seeding
+ */
+@ConfigurationProperties(prefix = "tiles")
+public record TileProperties(
+        Integer maxZoom,
+        Integer bufferPixels,
+        DataSize memoryCacheSize,
+        Integer diskCacheMaxZoom,
+        Integer seedMinZoom,
+        Integer seedMaxZoom
+) {
+    public static final int MAX_ZOOM = 30;
+
+    public TileProperties {
+        if (maxZoom == null) {
+            maxZoom = 20;
+        }
+        if (maxZoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("tiles.max-zoom must not exceed " + MAX_ZOOM);
+        }
+        if (bufferPixels == null) {
+            bufferPixels = 4;
+        }
+        if (memoryCacheSize == null) {
+            memoryCacheSize = DataSize.ofMegabytes(32);
+        }
+        if (diskCacheMaxZoom == null) {
+            diskCacheMaxZoom = 14;
+        }
+        if (seedMinZoom == null) {
+            seedMinZoom = 8;
+        }
+        if (seedMaxZoom == null) {
+            seedMaxZoom = 10;
+        }
+    }
+}
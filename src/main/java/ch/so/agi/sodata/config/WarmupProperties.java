@@ -0,0 +1,14 @@
+package ch.so.agi.sodata.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+
+@ConfigurationProperties(prefix = "warmup")
+public record WarmupProperties(
+        boolean enabled,
+        int iterations,
+        int identifierLookups,
+        List<String> queries
+) {
+}
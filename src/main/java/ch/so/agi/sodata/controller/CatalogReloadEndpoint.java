@@ -0,0 +1,30 @@
+package ch.so.agi.sodata.controller;
+
+import java.util.List;
+
+import ch.so.agi.sodata.service.RefreshJob;
+import ch.so.agi.sodata.service.ThemePublicationRefreshService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+@Component
+@Endpoint(id = "catalogreload")
+public class CatalogReloadEndpoint {
+    private final ThemePublicationRefreshService refreshService;
+
+    public CatalogReloadEndpoint(ThemePublicationRefreshService refreshService) {
+        this.refreshService = refreshService;
+    }
+
+    @ReadOperation
+    public List<RefreshJob> jobs() {
+        return refreshService.jobs();
+    }
+
+    @WriteOperation
+    public RefreshJob reload() {
+        return refreshService.submit("actuator");
+    }
+}
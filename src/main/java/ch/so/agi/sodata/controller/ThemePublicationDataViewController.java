@@ -1,19 +1,28 @@
 package ch.so.agi.sodata.controller;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.regex.Pattern;
 
-import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
 import ch.so.agi.sodata.domain.FileFormat;
 import ch.so.agi.sodata.domain.ThemePublication;
 import ch.so.agi.sodata.service.LuceneSearcherException;
+import ch.so.agi.sodata.service.MapMlFileService;
+import ch.so.agi.sodata.service.SubunitExtentService;
+import ch.so.agi.sodata.service.SubunitLayerGenerator;
+import ch.so.agi.sodata.service.SubunitMapMlService;
+import ch.so.agi.sodata.service.SubunitTileService;
 import ch.so.agi.sodata.service.ThemePublicationIndexService;
+import org.locationtech.jts.geom.Envelope;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -21,7 +30,9 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.server.ResponseStatusException;
@@ -31,16 +42,34 @@ import org.springframework.web.servlet.ModelAndView;
 @RequestMapping("/themepublication/data")
 public class ThemePublicationDataViewController {
     private static final Pattern SAFE_NAME = Pattern.compile("^[A-Za-z0-9._-]+$");
+    private static final String MAPML_TYPE = "text/mapml;charset=UTF-8";
+    private static final String FLATGEOBUF_TYPE = "application/flatgeobuf";
+    private static final String GEOJSON_TYPE = "application/geo+json";
 
     private final ThemePublicationIndexService indexService;
-    private final AppProperties appProperties;
+    private final MapMlProperties mapMlProperties;
+    private final SubunitTileService tileService;
+    private final SubunitMapMlService subunitMapMlService;
+    private final MapMlFileService mapMlFileService;
+    private final SubunitLayerGenerator layerGenerator;
+    private final SubunitExtentService extentService;
 
     public ThemePublicationDataViewController(
             ThemePublicationIndexService indexService,
-            AppProperties appProperties
+            MapMlProperties mapMlProperties,
+            SubunitTileService tileService,
+            SubunitMapMlService subunitMapMlService,
+            MapMlFileService mapMlFileService,
+            SubunitLayerGenerator layerGenerator,
+            SubunitExtentService extentService
     ) {
         this.indexService = indexService;
-        this.appProperties = appProperties;
+        this.mapMlProperties = mapMlProperties;
+        this.tileService = tileService;
+        this.subunitMapMlService = subunitMapMlService;
+        this.mapMlFileService = mapMlFileService;
+        this.layerGenerator = layerGenerator;
+        this.extentService = extentService;
     }
 
     @GetMapping(value = "/{identifier}/{format:.+}", produces = MediaType.TEXT_HTML_VALUE)
@@ -59,11 +88,26 @@ public class ThemePublicationDataViewController {
         return modelAndView;
     }
 
+    /**
+     * Returns the subunits of a publication. With {@code zoom} or {@code resolution} (Web Mercator metres per pixel)
+     * the least detailed simplified level that suits that scale is returned, otherwise the full-detail file. With
+     * lazy generation, the first request for a publication writes its files. Clients accepting gzip get the
+     * precompressed copy. Responses carry a strong ETag and Last-Modified, so unchanged layers are answered with
+     * 304, and support byte ranges. Cached layers are served from memory, all others are streamed from disk with a
+     * fixed-size copy buffer, so memory per request does not depend on the size of the layer.
+     * <p>
+     * With {@code bbox} ({@code minX,minY,maxX,maxY} in Web Mercator metres, as a MapML extent sends it in pcrs)
+     * only the subunits whose envelope intersects the box are returned.
+     */
     @ResponseBody
-    @GetMapping(value = "/{identifier}/{format:.+}/subunits.mapml", produces = "text/mapml;charset=UTF-8")
-    public ResponseEntity<String> themePublicationSubunitsMapMl(
+    @GetMapping(value = "/{identifier}/{format:.+}/subunits.mapml", produces = MAPML_TYPE)
+    public ResponseEntity<Resource> themePublicationSubunitsMapMl(
             @PathVariable("identifier") String identifier,
-            @PathVariable("format") String format
+            @PathVariable("format") String format,
+            @RequestParam(name = "zoom", required = false) Double zoom,
+            @RequestParam(name = "resolution", required = false) Double resolution,
+            @RequestParam(name = "bbox", required = false) String bbox,
+            @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding
     ) throws LuceneSearcherException {
         ThemePublication publication = indexService.findByIdentifier(identifier)
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Theme publication not found."));
@@ -72,21 +116,154 @@ public class ThemePublicationDataViewController {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Format not supported for theme publication.");
         }
 
-        Path subunitPath = resolveSubunitMapMlPath(identifier, format);
-        if (subunitPath == null) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Subunit mapml file not found.");
+        if (!SAFE_NAME.matcher(identifier).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid identifier.");
         }
 
-        String mapml;
+        Envelope extent = bbox != null ? parseBbox(bbox) : null;
+        Integer simplifiedZoom = simplifiedZoom(zoom, resolution);
+        MapMlFileService.MapMlFile file;
         try {
-            mapml = Files.readString(subunitPath, StandardCharsets.UTF_8);
+            layerGenerator.ensure(identifier);
+            if (extent != null) {
+                SubunitExtentService.Extract extract = extentService.extract(publication, simplifiedZoom, extent)
+                        .orElseThrow(() -> new ResponseStatusException(
+                                HttpStatus.NOT_FOUND, "Subunit mapml file not found."));
+                if (!extract.complete()) {
+                    return ResponseEntity.ok()
+                            .contentType(MediaType.parseMediaType(MAPML_TYPE))
+                            .eTag(extract.etag())
+                            .cacheControl(CacheControl.noCache())
+                            .body(new ByteArrayResource(extract.body()));
+                }
+            }
+            file = mapMlFileService.find(identifier, simplifiedZoom, acceptsGzip(acceptEncoding))
+                    .orElseThrow(() -> new ResponseStatusException(
+                            HttpStatus.NOT_FOUND, "Subunit mapml file not found."));
         } catch (IOException e) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not read subunit mapml file.", e);
         }
 
+        return fileResponse(file, MAPML_TYPE, true);
+    }
+
+    /**
+     * Returns the subunits of a publication as FlatGeobuf in Web Mercator, with a packed Hilbert R-tree in front of
+     * the features. Clients read the header and the index first and then fetch only the features in their extent
+     * with range requests, so the file is never compressed.
+     */
+    @ResponseBody
+    @GetMapping(value = "/{identifier}/subunits.fgb", produces = FLATGEOBUF_TYPE)
+    public ResponseEntity<Resource> themePublicationSubunitsFlatGeobuf(
+            @PathVariable("identifier") String identifier
+    ) throws LuceneSearcherException {
+        checkSubunits(identifier);
+        MapMlFileService.MapMlFile file;
+        try {
+            layerGenerator.ensure(identifier);
+            file = mapMlFileService.findFlatGeobuf(identifier)
+                    .orElseThrow(() -> new ResponseStatusException(
+                            HttpStatus.NOT_FOUND, "Subunit FlatGeobuf file not found."));
+        } catch (IOException e) {
+            throw new ResponseStatusException(
+                    HttpStatus.INTERNAL_SERVER_ERROR, "Could not read subunit FlatGeobuf file.", e);
+        }
+        return fileResponse(file, FLATGEOBUF_TYPE, false);
+    }
+
+    /**
+     * Returns the subunits of a publication as a GeoJSON FeatureCollection in WGS84. Only layers with at most
+     * {@code mapml.geojson-max-features} subunits have one; larger layers answer 404 and are available as FlatGeobuf.
+     */
+    @ResponseBody
+    @GetMapping(value = "/{identifier}/subunits.geojson", produces = GEOJSON_TYPE)
+    public ResponseEntity<Resource> themePublicationSubunitsGeoJson(
+            @PathVariable("identifier") String identifier,
+            @RequestHeader(name = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding
+    ) throws LuceneSearcherException {
+        checkSubunits(identifier);
+        MapMlFileService.MapMlFile file;
+        try {
+            layerGenerator.ensure(identifier);
+            file = mapMlFileService.findGeoJson(identifier, acceptsGzip(acceptEncoding))
+                    .orElseThrow(() -> new ResponseStatusException(
+                            HttpStatus.NOT_FOUND, "Subunit GeoJSON file not found."));
+        } catch (IOException e) {
+            throw new ResponseStatusException(
+                    HttpStatus.INTERNAL_SERVER_ERROR, "Could not read subunit GeoJSON file.", e);
+        }
+        return fileResponse(file, GEOJSON_TYPE, true);
+    }
+
+    /**
+     * Returns one OSMTILE tile of the subunits, clipped and simplified for its zoom level. Unchanged tiles are
+     * answered with 304 via the ETag.
+     */
+    @ResponseBody
+    @GetMapping(value = "/{identifier}/tiles/{z}/{x}/{y}", produces = MAPML_TYPE)
+    public ResponseEntity<byte[]> themePublicationSubunitTile(
+            @PathVariable("identifier") String identifier,
+            @PathVariable("z") int z,
+            @PathVariable("x") int x,
+            @PathVariable("y") int y
+    ) throws LuceneSearcherException {
+        checkSubunits(identifier);
+        ThemePublication publication = indexService.findByIdentifier(identifier)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Theme publication not found."));
+
+        if (!tileService.isValidTile(z, x, y)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid tile.");
+        }
+
+        SubunitTileService.Tile tile;
+        try {
+            layerGenerator.ensure(identifier);
+            tile = tileService.tile(publication, z, x, y)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Subunits not found."));
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not render subunit tile.", e);
+        }
+
         return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType("text/mapml;charset=UTF-8"))
-                .body(mapml);
+                .contentType(MediaType.parseMediaType(MAPML_TYPE))
+                .eTag(tile.etag())
+                .cacheControl(CacheControl.noCache())
+                .body(tile.body());
+    }
+
+    /**
+     * Target of the download links in the MapML documents. Redirects to the item in {@code format}, which the data
+     * page supplies from its selected format, or in the first format of the publication.
+     */
+    @GetMapping("/{identifier}/items/{item}")
+    public ResponseEntity<Void> themePublicationItemDownload(
+            @PathVariable("identifier") String identifier,
+            @PathVariable("item") String item,
+            @RequestParam(name = "format", required = false) String format
+    ) throws LuceneSearcherException {
+        ThemePublication publication = indexService.findByIdentifier(identifier)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Theme publication not found."));
+
+        String selectedFormat;
+        if (format == null || format.isBlank()) {
+            selectedFormat = publication.fileFormats() == null ? null : publication.fileFormats().stream()
+                    .filter(Objects::nonNull)
+                    .map(FileFormat::abbreviation)
+                    .filter(value -> value != null && !value.isBlank())
+                    .findFirst()
+                    .orElse(null);
+        } else if (isFormatSupported(publication, format)) {
+            selectedFormat = format;
+        } else {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Format not supported for theme publication.");
+        }
+
+        String downloadUrl = selectedFormat == null ? null
+                : subunitMapMlService.downloadUrl(publication, item, selectedFormat.trim().toLowerCase(Locale.ROOT));
+        if (downloadUrl == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Download not found.");
+        }
+        return ResponseEntity.status(HttpStatus.FOUND).location(URI.create(downloadUrl)).build();
     }
 
     @ResponseBody
@@ -96,6 +273,41 @@ public class ThemePublicationDataViewController {
         return ex.getMessage();
     }
 
+    private void checkSubunits(String identifier) throws LuceneSearcherException {
+        if (indexService.findByIdentifier(identifier).isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Theme publication not found.");
+        }
+        if (!SAFE_NAME.matcher(identifier).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid identifier.");
+        }
+    }
+
+    /**
+     * Serves a file from memory if it is cached, otherwise streamed from disk, with its validators. Spring answers
+     * conditional requests with 304 and range requests with 206.
+     */
+    private static ResponseEntity<Resource> fileResponse(
+            MapMlFileService.MapMlFile file,
+            String contentType,
+            boolean negotiated
+    ) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(contentType))
+                .eTag(file.etag())
+                .lastModified(file.lastModified())
+                .cacheControl(CacheControl.noCache());
+        if (negotiated) {
+            response.varyBy(HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (file.gzip()) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        Resource body = file.content() != null
+                ? new ByteArrayResource(file.content())
+                : new FileSystemResource(file.path());
+        return response.body(body);
+    }
+
     private boolean isFormatSupported(ThemePublication publication, String format) {
         if (publication.fileFormats() == null || publication.fileFormats().isEmpty() || format == null || format.isBlank()) {
             return false;
@@ -109,28 +321,69 @@ public class ThemePublicationDataViewController {
                 .anyMatch(normalizedFormat::equals);
     }
 
-    private Path resolveSubunitMapMlPath(String identifier, String format) {
-        if (identifier == null || identifier.isBlank() || !SAFE_NAME.matcher(identifier).matches()
-                || format == null || format.isBlank()) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid identifier.");
+    /**
+     * Parses {@code minX,minY,maxX,maxY}.
+     */
+    private static Envelope parseBbox(String bbox) {
+        String[] parts = bbox.split(",");
+        if (parts.length != 4) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid bbox.");
         }
-
-        Path dir = Path.of(appProperties.itemsGeojsonDir()).normalize();
-        String normalizedFormat = format.trim().toLowerCase(Locale.ROOT);
-        String fileName = sanitizeFilePart(identifier) + "." + sanitizeFilePart(normalizedFormat) + ".mapml";
-        Path mapml = dir.resolve(fileName).normalize();
-
-        if (!mapml.startsWith(dir)) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid identifier.");
+        double[] values = new double[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                values[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid bbox.");
+            }
+            if (!Double.isFinite(values[i])) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid bbox.");
+            }
         }
+        if (values[0] > values[2] || values[1] > values[3]) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid bbox.");
+        }
+        return new Envelope(values[0], values[2], values[1], values[3]);
+    }
 
-        if (Files.exists(mapml) && Files.isRegularFile(mapml)) {
-            return mapml;
+    private Integer simplifiedZoom(Double zoom, Double resolution) {
+        if (zoom != null && Double.isFinite(zoom)) {
+            return mapMlProperties.simplifiedZoomFor(zoom);
+        }
+        if (resolution != null && Double.isFinite(resolution) && resolution > 0) {
+            return mapMlProperties.simplifiedZoomFor(MapMlProperties.zoom(resolution));
         }
         return null;
     }
 
-    private String sanitizeFilePart(String value) {
-        return value.replaceAll("[^a-zA-Z0-9._-]", "_");
+    /**
+     * Whether the Accept-Encoding header lists gzip (or any encoding) with a non-zero quality.
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("*")) {
+                continue;
+            }
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (accepted) {
+                return true;
+            }
+        }
+        return false;
     }
 }
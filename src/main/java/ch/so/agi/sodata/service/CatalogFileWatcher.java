@@ -0,0 +1,148 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ReloadProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the directory containing {@code app.config-file} and triggers a background refresh once changes have
+ * settled for {@code reload.debounce}. Events are not filtered by file name, so ConfigMap style symlink swaps are
+ * picked up as well; touches that do not change the content are skipped by comparing checksums. The watcher starts
+ * before the bootstrap runner, so changes seen while the startup refresh or restore is still running are held back
+ * until it has finished and then compared with the checksum it loaded, instead of queueing a second rebuild.
+ */
+@Component
+public class CatalogFileWatcher implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(CatalogFileWatcher.class);
+    private static final long STARTUP_POLL_MILLIS = 500;
+
+    private final AppProperties appProperties;
+    private final ReloadProperties reloadProperties;
+    private final ThemePublicationXmlParser xmlParser;
+    private final ThemePublicationRefreshService refreshService;
+
+    private volatile WatchService watchService;
+    private volatile Thread watcherThread;
+
+    public CatalogFileWatcher(
+            AppProperties appProperties,
+            ReloadProperties reloadProperties,
+            ThemePublicationXmlParser xmlParser,
+            ThemePublicationRefreshService refreshService
+    ) {
+        this.appProperties = appProperties;
+        this.reloadProperties = reloadProperties;
+        this.xmlParser = xmlParser;
+        this.refreshService = refreshService;
+    }
+
+    @Override
+    public void start() {
+        if (!reloadProperties.watchEnabled() || appProperties.configFile() == null) {
+            return;
+        }
+
+        Path configPath = Path.of(appProperties.configFile()).toAbsolutePath();
+        Path watchDir = Files.isDirectory(configPath) ? configPath : configPath.getParent();
+        if (watchDir == null || !Files.isDirectory(watchDir)) {
+            log.warn("Cannot watch config file {}: directory does not exist.", configPath);
+            return;
+        }
+
+        try {
+            WatchService service = watchDir.getFileSystem().newWatchService();
+            watchDir.register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watchService = service;
+        } catch (IOException e) {
+            log.warn("Cannot watch config file {}", configPath, e);
+            return;
+        }
+
+        watcherThread = Thread.ofVirtual().name("catalog-file-watcher").start(this::watch);
+        log.info("Watching {} for catalog changes.", watchDir);
+    }
+
+    @Override
+    public void stop() {
+        WatchService service = watchService;
+        watchService = null;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                log.debug("Failed to close watch service", e);
+            }
+        }
+        Thread thread = watcherThread;
+        watcherThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return watchService != null;
+    }
+
+    private void watch() {
+        long debounceMillis = reloadProperties.debounce().toMillis();
+        try {
+            WatchService service;
+            while ((service = watchService) != null) {
+                drain(service.take());
+                WatchKey next;
+                while ((next = service.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    drain(next);
+                }
+                while (!refreshService.started()) {
+                    if ((next = service.poll(STARTUP_POLL_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        drain(next);
+                    }
+                }
+                reloadIfChanged();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            log.debug("Catalog file watcher stopped.");
+        }
+    }
+
+    private void drain(WatchKey key) {
+        key.pollEvents();
+        key.reset();
+    }
+
+    private void reloadIfChanged() {
+        try {
+            String checksum = xmlParser.checksum();
+            if (checksum == null) {
+                log.warn("Catalog {} changed but is not readable, keeping current data.", appProperties.configFile());
+                return;
+            }
+            if (Objects.equals(checksum, refreshService.lastChecksum())) {
+                log.debug("Catalog {} touched without content change.", appProperties.configFile());
+                return;
+            }
+            log.info("Catalog {} changed, scheduling reload.", appProperties.configFile());
+            refreshService.submit("file-watch");
+        } catch (IOException e) {
+            log.warn("Could not checksum catalog {}", appProperties.configFile(), e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.domain.FileFormat;
+import ch.so.agi.sodata.domain.Office;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Canonicalizes values that repeat across the publications of one catalog load (offices, file formats, keywords,
+ * host URLs), so that equal values share a single instance. Thread-safe, as shards and batches of one load are
+ * parsed concurrently. The saved bytes are estimated for a 64-bit JVM with compressed oops and compact strings.
+ */
+final class CatalogInterner {
+    private static final int OBJECT_HEADER = 12;
+    private static final int REFERENCE = 4;
+    private static final int STRING_SHELL = align(OBJECT_HEADER + REFERENCE + 4 + 1 + 1 + 1);
+    private static final int ARRAY_HEADER = 16;
+
+    private final ConcurrentHashMap<Object, Object> values = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        return canonical(value, STRING_SHELL + align(ARRAY_HEADER + value.length()));
+    }
+
+    Office intern(Office office) {
+        if (office == null) {
+            return null;
+        }
+        return canonical(office, align(OBJECT_HEADER + 6 * REFERENCE));
+    }
+
+    FileFormat intern(FileFormat fileFormat) {
+        if (fileFormat == null) {
+            return null;
+        }
+        return canonical(fileFormat, align(OBJECT_HEADER + 3 * REFERENCE));
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long estimatedBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T canonical(T value, long size) {
+        Object existing = values.putIfAbsent(value, value);
+        if (existing == null) {
+            return value;
+        }
+        hits.increment();
+        bytesSaved.add(size);
+        return (T) existing;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+}
@@ -0,0 +1,23 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Describes the state produced by the last successful refresh: the catalog it was built from, the code and MapML
+ * settings that built it and the MapML files it wrote (relative to the current generation directory in
+ * {@code app.items-geojson-dir}).
+ */
+public record CatalogManifest(
+        int schemaVersion,
+        String appVersion,
+        String configChecksum,
+        MapMlProperties mapMl,
+        Instant createdAt,
+        int publications,
+        int indexedDocuments,
+        List<String> artifacts
+) {
+}
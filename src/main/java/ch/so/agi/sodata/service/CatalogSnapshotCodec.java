@@ -0,0 +1,365 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.domain.AttributeInfo;
+import ch.so.agi.sodata.domain.Bbox;
+import ch.so.agi.sodata.domain.FileFormat;
+import ch.so.agi.sodata.domain.Item;
+import ch.so.agi.sodata.domain.Layer;
+import ch.so.agi.sodata.domain.Office;
+import ch.so.agi.sodata.domain.Service;
+import ch.so.agi.sodata.domain.TableInfo;
+import ch.so.agi.sodata.domain.ThemePublication;
+import ch.so.agi.sodata.domain.WgcPreviewLayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of the catalog for {@link CatalogSnapshotService}. Every distinct string is written once and
+ * referenced by index afterwards, so repeated offices, formats and keywords cost four bytes each and are shared
+ * again after reading, like after {@link CatalogInterner} during parsing.
+ */
+final class CatalogSnapshotCodec {
+    static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x53444353;
+    private static final int NULL = -1;
+    private static final int NEW_STRING = -2;
+
+    private CatalogSnapshotCodec() {
+    }
+
+    static void write(OutputStream outputStream, List<ThemePublication> publications) throws IOException {
+        Writer writer = new Writer(new DataOutputStream(outputStream));
+        writer.out.writeInt(MAGIC);
+        writer.out.writeInt(FORMAT_VERSION);
+        writer.out.writeInt(publications.size());
+        for (ThemePublication publication : publications) {
+            writer.publication(publication);
+        }
+        writer.out.flush();
+    }
+
+    static List<ThemePublication> read(InputStream inputStream) throws IOException {
+        Reader reader = new Reader(new DataInputStream(inputStream));
+        if (reader.in.readInt() != MAGIC) {
+            throw new IOException("Not a catalog snapshot");
+        }
+        int version = reader.in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported catalog snapshot version " + version);
+        }
+        int count = reader.in.readInt();
+        List<ThemePublication> publications = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            publications.add(reader.publication());
+        }
+        return publications;
+    }
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void publication(ThemePublication publication) throws IOException {
+            string(publication.identifier());
+            string(publication.model());
+            string(publication.title());
+            string(publication.shortDescription());
+            bool(publication.hasSubunits());
+            date(publication.lastPublishingDate());
+            date(publication.secondToLastPublishingDate());
+            office(publication.owner());
+            office(publication.servicer());
+            string(publication.furtherInformation());
+            string(publication.downloadHostUrl());
+            string(publication.previewUrl());
+            strings(publication.keywords());
+            strings(publication.synonyms());
+            list(publication.fileFormats(), this::fileFormat);
+            list(publication.tablesInfo(), this::tableInfo);
+            string(publication.licence());
+            bbox(publication.bbox());
+            if (present(publication.wgcPreviewLayer())) {
+                string(publication.wgcPreviewLayer().identifier());
+                string(publication.wgcPreviewLayer().title());
+            }
+            list(publication.items(), this::item);
+            list(publication.services(), this::service);
+        }
+
+        private void office(Office office) throws IOException {
+            if (present(office)) {
+                string(office.agencyName());
+                string(office.abbreviation());
+                string(office.division());
+                string(office.officeAtWeb());
+                string(office.email());
+                string(office.phone());
+            }
+        }
+
+        private void fileFormat(FileFormat fileFormat) throws IOException {
+            if (present(fileFormat)) {
+                string(fileFormat.name());
+                string(fileFormat.mimetype());
+                string(fileFormat.abbreviation());
+            }
+        }
+
+        private void tableInfo(TableInfo tableInfo) throws IOException {
+            if (present(tableInfo)) {
+                string(tableInfo.sqlName());
+                string(tableInfo.title());
+                string(tableInfo.shortDescription());
+                list(tableInfo.attributesInfo(), this::attributeInfo);
+            }
+        }
+
+        private void attributeInfo(AttributeInfo attributeInfo) throws IOException {
+            if (present(attributeInfo)) {
+                string(attributeInfo.name());
+                string(attributeInfo.alias());
+                string(attributeInfo.shortDescription());
+                string(attributeInfo.datatype());
+                bool(attributeInfo.mandatory());
+            }
+        }
+
+        private void item(Item item) throws IOException {
+            if (present(item)) {
+                string(item.identifier());
+                string(item.title());
+                date(item.lastPublishingDate());
+                date(item.secondToLastPublishingDate());
+                bbox(item.bbox());
+                string(item.geometry());
+            }
+        }
+
+        private void service(Service service) throws IOException {
+            if (present(service)) {
+                string(service.endpoint());
+                string(service.type());
+                list(service.layers(), this::layer);
+            }
+        }
+
+        private void layer(Layer layer) throws IOException {
+            if (present(layer)) {
+                string(layer.identifier());
+                string(layer.title());
+            }
+        }
+
+        private void bbox(Bbox bbox) throws IOException {
+            if (present(bbox)) {
+                out.writeDouble(bbox.left());
+                out.writeDouble(bbox.bottom());
+                out.writeDouble(bbox.right());
+                out.writeDouble(bbox.top());
+            }
+        }
+
+        private void strings(List<String> values) throws IOException {
+            list(values, this::string);
+        }
+
+        private <T> void list(List<T> values, ValueWriter<T> valueWriter) throws IOException {
+            if (values == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            out.writeInt(values.size());
+            for (T value : values) {
+                valueWriter.write(value);
+            }
+        }
+
+        private void string(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(NEW_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void date(LocalDate value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeLong(value.toEpochDay());
+            }
+        }
+
+        private void bool(Boolean value) throws IOException {
+            out.writeByte(value == null ? 0 : value ? 2 : 1);
+        }
+
+        private boolean present(Object value) throws IOException {
+            out.writeBoolean(value != null);
+            return value != null;
+        }
+    }
+
+    private static final class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private final CatalogInterner interner = new CatalogInterner();
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        private ThemePublication publication() throws IOException {
+            String identifier = string();
+            String model = string();
+            String title = string();
+            String shortDescription = string();
+            Boolean hasSubunits = bool();
+            LocalDate lastPublishingDate = date();
+            LocalDate secondToLastPublishingDate = date();
+            Office owner = office();
+            Office servicer = office();
+            String furtherInformation = string();
+            String downloadHostUrl = string();
+            String previewUrl = string();
+            List<String> keywords = strings();
+            List<String> synonyms = strings();
+            List<FileFormat> fileFormats = list(this::fileFormat);
+            List<TableInfo> tablesInfo = list(this::tableInfo);
+            String licence = string();
+            Bbox bbox = bbox();
+            WgcPreviewLayer wgcPreviewLayer = in.readBoolean() ? new WgcPreviewLayer(string(), string()) : null;
+            List<Item> items = list(this::item);
+            List<Service> services = list(this::service);
+            return new ThemePublication(identifier, model, title, shortDescription, hasSubunits, lastPublishingDate,
+                    secondToLastPublishingDate, owner, servicer, furtherInformation, downloadHostUrl, previewUrl,
+                    keywords, synonyms, fileFormats, tablesInfo, licence, bbox, wgcPreviewLayer, items, services);
+        }
+
+        private Office office() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return interner.intern(new Office(string(), string(), string(), string(), string(), string()));
+        }
+
+        private FileFormat fileFormat() throws IOException {
+            return in.readBoolean() ? interner.intern(new FileFormat(string(), string(), string())) : null;
+        }
+
+        private TableInfo tableInfo() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new TableInfo(string(), string(), string(), list(this::attributeInfo));
+        }
+
+        private AttributeInfo attributeInfo() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new AttributeInfo(string(), string(), string(), string(), bool());
+        }
+
+        private Item item() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new Item(string(), string(), date(), date(), bbox(), string());
+        }
+
+        private Service service() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new Service(string(), string(), list(this::layer));
+        }
+
+        private Layer layer() throws IOException {
+            return in.readBoolean() ? new Layer(string(), string()) : null;
+        }
+
+        private Bbox bbox() throws IOException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new Bbox(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        }
+
+        private List<String> strings() throws IOException {
+            return list(this::string);
+        }
+
+        private <T> List<T> list(ValueReader<T> valueReader) throws IOException {
+            int size = in.readInt();
+            if (size == NULL) {
+                return null;
+            }
+            List<T> values = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                values.add(valueReader.read());
+            }
+            return values;
+        }
+
+        private String string() throws IOException {
+            int index = in.readInt();
+            if (index == NULL) {
+                return null;
+            }
+            if (index != NEW_STRING) {
+                return strings.get(index);
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private LocalDate date() throws IOException {
+            return in.readBoolean() ? LocalDate.ofEpochDay(in.readLong()) : null;
+        }
+
+        private Boolean bool() throws IOException {
+            return switch (in.readByte()) {
+                case 1 -> Boolean.FALSE;
+                case 2 -> Boolean.TRUE;
+                default -> null;
+            };
+        }
+    }
+
+    @FunctionalInterface
+    private interface ValueWriter<T> {
+        void write(T value) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ValueReader<T> {
+        T read() throws IOException;
+    }
+}
@@ -0,0 +1,162 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.IndexingProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Persists a manifest and a binary snapshot of the catalog next to the Lucene index after every successful
+ * refresh. On startup, {@link #restore(String)} returns the snapshot if the catalog checksum, the application
+ * version, the MapML settings and {@link #SCHEMA_VERSION} still match and all recorded MapML files exist, so the
+ * rebuild can be skipped.
+ */
+@Service
+public class CatalogSnapshotService {
+    /**
+     * Version of the generated artifacts (index fields, MapML layout, snapshot encoding). Increment it whenever
+     * one of them changes in a way that requires a rebuild.
+     */
+    static final int SCHEMA_VERSION = 10;
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogSnapshotService.class);
+
+    private static final String MANIFEST_FILE = "catalog-manifest.json";
+    private static final String SNAPSHOT_FILE = "catalog-snapshot.bin";
+
+    private final Path directory;
+    private final Path itemsDir;
+    private final MapMlProperties mapMlProperties;
+    private final ObjectMapper objectMapper;
+    private final String appVersion;
+
+    public CatalogSnapshotService(
+            IndexingProperties indexingProperties,
+            AppProperties appProperties,
+            MapMlProperties mapMlProperties,
+            ObjectMapper objectMapper
+    ) {
+        this.directory = Path.of(indexingProperties.directory());
+        this.itemsDir = Path.of(appProperties.itemsGeojsonDir());
+        this.mapMlProperties = mapMlProperties;
+        this.objectMapper = objectMapper;
+        String version = CatalogSnapshotService.class.getPackage().getImplementationVersion();
+        this.appVersion = version != null ? version : "development";
+    }
+
+    public Optional<Snapshot> restore(String configChecksum) {
+        Path manifestPath = directory.resolve(MANIFEST_FILE);
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (configChecksum == null || !Files.isRegularFile(manifestPath) || !Files.isRegularFile(snapshotPath)) {
+            return Optional.empty();
+        }
+
+        try {
+            CatalogManifest manifest = objectMapper.readValue(manifestPath.toFile(), CatalogManifest.class);
+            String mismatch = mismatch(manifest, configChecksum);
+            if (mismatch != null) {
+                log.info("Catalog snapshot is outdated ({}), rebuilding.", mismatch);
+                return Optional.empty();
+            }
+
+            List<ThemePublication> publications;
+            try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(snapshotPath))) {
+                publications = CatalogSnapshotCodec.read(inputStream);
+            }
+            if (publications.size() != manifest.publications()) {
+                log.warn("Catalog snapshot contains {} publications, manifest expects {}, rebuilding.",
+                        publications.size(), manifest.publications());
+                return Optional.empty();
+            }
+            return Optional.of(new Snapshot(manifest, publications));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read catalog snapshot from {}, rebuilding.", directory, e);
+            return Optional.empty();
+        }
+    }
+
+    public CatalogManifest save(
+            String configChecksum,
+            List<ThemePublication> publications,
+            int indexedDocuments,
+            List<String> artifacts
+    ) throws IOException {
+        Files.createDirectories(directory);
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        Path snapshotTemp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(snapshotTemp))) {
+            CatalogSnapshotCodec.write(outputStream, publications);
+        }
+        move(snapshotTemp, snapshotPath);
+
+        CatalogManifest manifest = new CatalogManifest(SCHEMA_VERSION, appVersion, configChecksum, mapMlProperties,
+                Instant.now(), publications.size(), indexedDocuments, artifacts.stream().sorted().toList());
+        Path manifestTemp = directory.resolve(MANIFEST_FILE + ".tmp");
+        objectMapper.writeValue(manifestTemp.toFile(), manifest);
+        move(manifestTemp, directory.resolve(MANIFEST_FILE));
+        log.debug("Saved catalog snapshot with {} publications and {} artifacts.",
+                publications.size(), artifacts.size());
+        return manifest;
+    }
+
+    /**
+     * Removes the manifest before the artifacts it describes are rewritten, so that an interrupted refresh is
+     * never mistaken for a complete one.
+     */
+    public void invalidate() throws IOException {
+        Files.deleteIfExists(directory.resolve(MANIFEST_FILE));
+    }
+
+    private String mismatch(CatalogManifest manifest, String configChecksum) {
+        if (manifest.schemaVersion() != SCHEMA_VERSION) {
+            return "schema version " + manifest.schemaVersion() + " != " + SCHEMA_VERSION;
+        }
+        if (!Objects.equals(manifest.appVersion(), appVersion)) {
+            return "app version " + manifest.appVersion() + " != " + appVersion;
+        }
+        if (!Objects.equals(manifest.configChecksum(), configChecksum)) {
+            return "config checksum changed";
+        }
+        if (!Objects.equals(manifest.mapMl(), mapMlProperties)) {
+            return "MapML settings changed";
+        }
+        if (manifest.artifacts() != null) {
+            Path generation = ItemsMapMlWriter.currentDirectory(itemsDir);
+            for (String artifact : manifest.artifacts()) {
+                if (!Files.isRegularFile(generation.resolve(artifact))) {
+                    return "missing artifact " + artifact;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public record Snapshot(CatalogManifest manifest, List<ThemePublication> publications) {
+    }
+}
@@ -1,157 +1,665 @@
 package ch.so.agi.sodata.service;
 
 import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
 import ch.so.agi.sodata.domain.FileFormat;
 import ch.so.agi.sodata.domain.Item;
 import ch.so.agi.sodata.domain.ThemePublication;
-import org.locationtech.jts.geom.CoordinateFilter;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.io.WKTReader;
-import org.locationtech.proj4j.CRSFactory;
-import org.locationtech.proj4j.CoordinateReferenceSystem;
-import org.locationtech.proj4j.CoordinateTransform;
-import org.locationtech.proj4j.CoordinateTransformFactory;
-import org.locationtech.proj4j.ProjCoordinate;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
+/**
+ * Writes the subunit files of the publications: the MapML files with their simplified levels, the feature stores
+ * and the FlatGeobuf and GeoJSON exports. Every refresh writes a new generation to
+ * {@code <items dir>/generations/<n>} and publishes it by atomically replacing the symbolic link
+ * {@code <items dir>/current}, so readers never see a generation that is still being written and stale files of
+ * removed publications disappear with their generation. The previous generation is kept for reads that are still
+ * in progress, older ones are deleted. Without a {@code current} link, for example on file systems without symbolic
+ * links, the files are kept directly in the items directory.
+ */
 @Service
 public class ItemsMapMlWriter {
+    /** Suffix of the gzip compressed copy written next to every MapML file. */
+    public static final String GZIP_SUFFIX = ".gz";
+
     private static final Logger log = LoggerFactory.getLogger(ItemsMapMlWriter.class);
+    private static final String MAPML_SUFFIX = ".mapml";
+    private static final Pattern LEVEL_SUFFIX = Pattern.compile("\\.z\\d+$");
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final String GENERATIONS_DIRECTORY = "generations";
+    private static final String CURRENT_LINK = "current";
 
-    private static final String EPSG_2056_PROJ4 =
-            "+proj=somerc +lat_0=46.95240555555556 +lon_0=7.439583333333333 "
-                    + "+k_0=1 +x_0=2600000 +y_0=1200000 +ellps=bessel "
-                    + "+towgs84=674.374,15.056,405.346,0,0,0,0 +units=m +no_defs";
-    private static final String EPSG_3857_PROJ4 =
-            "+proj=merc +a=6378137 +b=6378137 +lat_ts=0 +lon_0=0 +x_0=0 +y_0=0 "
-                    + "+k=1 +units=m +nadgrids=@null +wktext +no_defs";
-
-    private final AppProperties appProperties;
-    private final WKTReader wktReader;
-    private final CoordinateTransform transform;
+    private final Path itemsDir;
+    private final SubunitReprojector reprojector;
+    /** Reprojects the publications written outside a {@link Batch}, which brings its own pool. */
+    private final ForkJoinPool reprojectionPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
     private final SubunitMapMlService subunitMapMlService;
+    private final SubunitSimplifier simplifier;
+    private final int geojsonMaxFeatures;
 
     public ItemsMapMlWriter(
             AppProperties appProperties,
+            MapMlProperties mapMlProperties,
             SubunitMapMlService subunitMapMlService
     ) {
-        this.appProperties = appProperties;
+        this.itemsDir = Path.of(appProperties.itemsGeojsonDir());
         this.subunitMapMlService = subunitMapMlService;
-        this.wktReader = new WKTReader();
+        this.simplifier = new SubunitSimplifier(mapMlProperties);
+        this.reprojector = new SubunitReprojector(mapMlProperties.reprojection());
+        this.geojsonMaxFeatures = mapMlProperties.geojsonMaxFeatures();
+    }
 
-        CRSFactory crsFactory = new CRSFactory();
-        CoordinateReferenceSystem src = crsFactory.createFromParameters("EPSG:2056", EPSG_2056_PROJ4);
-        CoordinateReferenceSystem dst = crsFactory.createFromParameters("EPSG:3857", EPSG_3857_PROJ4);
-        CoordinateTransformFactory transformFactory = new CoordinateTransformFactory();
-        this.transform = transformFactory.createTransform(src, dst);
+    @PreDestroy
+    public void close() {
+        reprojectionPool.close();
     }
 
-    public void writeMapMlFiles(List<ThemePublication> publications) {
+    /**
+     * Starts a streaming run for {@link ThemePublicationXmlParser#loadThemePublications(java.util.function.Function)}.
+     * Each item is reprojected and appended to the MapML files of its publication right away; only the open
+     * writers of the publications currently being parsed are held in memory. Files are written to temporary paths
+     * and moved into place when the parser commits the publication. Closing the batch removes everything that
+     * was not committed.
+     * <p>
+     * Reprojection and the work that needs all features of a publication (simplified levels, buffered documents,
+     * the final gzip flush) run on a fork-join pool of the batch sized to the available processors, so the parser
+     * threads move on to the next publication meanwhile. At most that many publications are completed at once; a
+     * parser thread finishing another one waits for a free worker. A publication whose files fail is logged and
+     * skipped without affecting the others.
+     * <p>
+     * The batch writes a new generation, which readers only see once it is {@linkplain Batch#publish(Collection)
+     * published}.
+     */
+    public Batch newBatch() {
+        Path generation;
+        try {
+            generation = createGeneration();
+        } catch (IOException e) {
+            log.warn("Failed to create a generation in the items map directory: {}", itemsDir.toAbsolutePath(), e);
+            generation = null;
+        }
+        return new Batch(generation);
+    }
+
+    /**
+     * Starts a run for lazy generation. Instead of the subunit files, the items of every publication are spooled as
+     * parsed to a {@link SubunitItemSpool} in a new generation, which readers only see once it is
+     * {@linkplain Spool#publish(Collection) published}. {@link #writeSpooledFiles(ThemePublication)} later writes
+     * the files of a publication from its spool.
+     */
+    public Spool newSpool() {
+        Path generation;
+        try {
+            generation = createGeneration();
+        } catch (IOException e) {
+            log.warn("Failed to create a generation in the items map directory: {}", itemsDir.toAbsolutePath(), e);
+            generation = null;
+        }
+        return new Spool(generation);
+    }
+
+    /**
+     * Writes the files of the publications to the current generation. Every file is written to a temporary path and
+     * renamed, so readers of the generation never see a partially written file.
+     */
+    public int writeMapMlFiles(List<ThemePublication> publications) {
         if (publications == null || publications.isEmpty()) {
-            return;
+            return 0;
         }
 
-        Path outputDir = Path.of(appProperties.itemsGeojsonDir());
+        Path outputDir = currentDirectory();
         try {
             Files.createDirectories(outputDir);
         } catch (IOException e) {
             log.warn("Failed to create items map directory: {}", outputDir.toAbsolutePath(), e);
-            return;
+            return 0;
+        }
+        return writeMapMlFiles(outputDir, publications);
+    }
+
+    /**
+     * Writes the files of a publication from the item spool in the current generation, with the metadata of
+     * {@code publication}. The generation is resolved once, so all files go to the generation that was current when
+     * the call started, even if a refresh publishes another one meanwhile. Returns 0 if the publication has no spool
+     * or its feature store and MapML file are already in the generation, e.g. written before a restart.
+     */
+    public int writeSpooledFiles(ThemePublication publication) throws IOException {
+        Path outputDir;
+        try {
+            outputDir = currentDirectory().toRealPath();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        Path spoolPath = outputDir.resolve(spoolFileName(publication.identifier()));
+        if (!Files.isRegularFile(spoolPath) || isWritten(outputDir, publication)) {
+            return 0;
         }
+        List<Item> items = SubunitItemSpool.read(spoolPath);
+        return writeMapMlFiles(outputDir, List.of(withItems(publication, items)));
+    }
+
+    /**
+     * Whether the files of a publication are in {@code outputDir}: its feature store, which is written first, and
+     * its full-detail MapML file if it has formats.
+     */
+    private boolean isWritten(Path outputDir, ThemePublication publication) {
+        return Files.isRegularFile(outputDir.resolve(featureStoreFileName(publication.identifier())))
+                && (!hasFormats(publication)
+                || Files.isRegularFile(outputDir.resolve(mapMlFileName(publication.identifier(), null))));
+    }
 
+    private int writeMapMlFiles(Path outputDir, List<ThemePublication> publications) {
+        int written = 0;
+        SubunitReprojector.Throughput throughput = new SubunitReprojector.Throughput();
         for (ThemePublication publication : publications) {
             List<Item> items = publication.items();
             if (items == null || items.isEmpty()) {
                 continue;
             }
 
-            List<SubunitMapMlService.SubunitFeature> features = buildFeatures(items);
-            if (features.isEmpty()) {
+            try {
+                List<SubunitMapMlService.SubunitFeature> features =
+                        reprojector.buildFeatures(items, throughput, reprojectionPool);
+                if (!features.isEmpty()) {
+                    written += writeMapMlFiles(outputDir, publication, features);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to write subunit files of {}, skipping it.", publication.identifier(), e);
+            }
+        }
+        throughput.log();
+        return written;
+    }
+
+    private int writeMapMlFiles(
+            Path outputDir,
+            ThemePublication publication,
+            List<SubunitMapMlService.SubunitFeature> features
+    ) {
+        int written = writeFeatureStore(outputDir, publication.identifier(), features);
+        SubunitFeatureStore.Mapped store = written > 0
+                ? mapFeatureStore(outputDir.resolve(featureStoreFileName(publication.identifier())))
+                : null;
+        if (store != null && store.size() > 0) {
+            for (Export export : writeExports(outputDir, publication, store)) {
+                written += moveIntoPlace(export.tempPath(), export.path()) ? 1 : 0;
+            }
+        }
+        if (!hasFormats(publication)) {
+            return written;
+        }
+        List<Output> outputs = new ArrayList<>();
+        Output full = openOutput(outputDir, publication, null, outputs);
+        appendFeatures(full, publication, features);
+        finish(full);
+        if (simplifier.enabled()) {
+            writeLevels(publication, features, zoom -> openOutput(outputDir, publication, zoom, outputs));
+        }
+        for (Output output : outputs) {
+            if (output.failed) {
+                deleteQuietly(output.tempPath);
+                deleteQuietly(output.gzipTempPath);
                 continue;
             }
+            written += moveIntoPlace(output.tempPath, output.path) ? 1 : 0;
+            written += moveIntoPlace(output.gzipTempPath, gzipPath(output.path)) ? 1 : 0;
+        }
+        return written;
+    }
+
+    /**
+     * Writes the simplified levels of a publication to the outputs {@code open} returns for their zoom. Layers the
+     * simplifier takes as a coverage are simplified one level at a time, and the output of a level is finished
+     * before the next one is computed. The coverage simplifier needs all geometries of the layer, so larger layers
+     * are simplified feature by feature instead, straight from {@code features}, with the outputs of all levels open.
+     */
+    private void writeLevels(
+            ThemePublication publication,
+            List<SubunitMapMlService.SubunitFeature> features,
+            IntFunction<Output> open
+    ) {
+        if (simplifier.coverage(features.size())) {
+            simplifier.levels(publication.identifier(), List.copyOf(features), level -> {
+                Output output = open.apply(level.zoom());
+                appendFeatures(output, publication, level.features());
+                finish(output);
+            });
+            return;
+        }
+        List<Output> outputs = new ArrayList<>();
+        for (int zoom : simplifier.zooms()) {
+            outputs.add(open.apply(zoom));
+        }
+        for (SubunitMapMlService.SubunitFeature feature : features) {
+            List<SubunitMapMlService.SubunitFeature> featureLevels = simplifier.featureLevels(feature);
+            for (int i = 0; i < outputs.size(); i++) {
+                appendFeature(outputs.get(i), publication, featureLevels.get(i));
+            }
+        }
+        outputs.forEach(this::finish);
+    }
 
-            writeMapMlFiles(outputDir, publication, features);
+    /**
+     * Opens a MapML output at the temporary path of the file for {@code zoom} and writes the header. Returns
+     * {@code null} if the file cannot be created.
+     */
+    private Output openOutput(Path outputDir, ThemePublication publication, Integer zoom, List<Output> outputs) {
+        Path path = outputDir.resolve(mapMlFileName(publication.identifier(), zoom));
+        Path tempPath = tempPath(path);
+        Path gzipTempPath = tempPath(gzipPath(path));
+        try {
+            Output output = new Output(path, tempPath, gzipTempPath, MapMlOutput.open(tempPath, gzipTempPath));
+            outputs.add(output);
+            subunitMapMlService.appendHeader(output.buffer(), publication);
+            return output;
+        } catch (IOException e) {
+            log.warn("Failed to write mapml file {}", path.toAbsolutePath(), e);
+            return null;
         }
     }
 
-    private List<SubunitMapMlService.SubunitFeature> buildFeatures(List<Item> items) {
-        List<SubunitMapMlService.SubunitFeature> features = new ArrayList<>();
+    private void appendFeatures(
+            Output output,
+            ThemePublication publication,
+            List<SubunitMapMlService.SubunitFeature> features
+    ) {
+        for (SubunitMapMlService.SubunitFeature feature : features) {
+            if (output == null || !output.writable()) {
+                return;
+            }
+            appendFeature(output, publication, feature);
+        }
+    }
 
-        for (Item item : items) {
-            try {
-                if (item.geometry() == null || item.geometry().isBlank()) {
-                    continue;
+    private void appendFeature(
+            Output output,
+            ThemePublication publication,
+            SubunitMapMlService.SubunitFeature feature
+    ) {
+        if (output != null && output.writable()) {
+            subunitMapMlService.appendFeature(output.buffer(), publication, feature);
+            output.flushIfFull();
+        }
+    }
+
+    /**
+     * Writes the footer and closes the output; later calls do nothing.
+     */
+    private void finish(Output output) {
+        if (output == null) {
+            return;
+        }
+        if (output.writable()) {
+            subunitMapMlService.appendFooter(output.buffer());
+        }
+        output.close();
+    }
+
+    private int writeFeatureStore(
+            Path outputDir,
+            String identifier,
+            List<SubunitMapMlService.SubunitFeature> features
+    ) {
+        Path storePath = outputDir.resolve(featureStoreFileName(identifier));
+        Path tempPath = tempPath(storePath);
+        try {
+            try (SubunitFeatureStore.Writer store = SubunitFeatureStore.open(tempPath)) {
+                for (SubunitMapMlService.SubunitFeature feature : features) {
+                    store.append(feature);
                 }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write subunit feature store {}", storePath.toAbsolutePath(), e);
+            deleteQuietly(tempPath);
+            return 0;
+        }
+        // Mapped readers of the previous store keep their file.
+        return moveIntoPlace(tempPath, storePath) ? 1 : 0;
+    }
+
+    private static SubunitFeatureStore.Mapped mapFeatureStore(Path path) {
+        try {
+            return SubunitFeatureStore.map(path);
+        } catch (IOException e) {
+            log.warn("Failed to read subunit feature store {}", path.toAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the FlatGeobuf file of a publication and, for layers of at most {@code mapml.geojson-max-features}
+     * subunits, its GeoJSON file with a gzip copy, from the mapped feature store of the publication. The files are
+     * written next to their paths with a {@code .tmp} suffix. Returns the files that were written completely.
+     */
+    private List<Export> writeExports(Path outputDir, ThemePublication publication, SubunitFeatureStore.Mapped store) {
+        List<Export> exports = new ArrayList<>();
+        Path flatGeobufPath = outputDir.resolve(flatGeobufFileName(publication.identifier()));
+        Export flatGeobuf = new Export(flatGeobufPath, tempPath(flatGeobufPath));
+        try {
+            SubunitFlatGeobuf.write(flatGeobuf.tempPath(), publication.identifier(), publication.title(), store);
+            exports.add(flatGeobuf);
+        } catch (IOException e) {
+            log.warn("Failed to write FlatGeobuf file {}", flatGeobufPath.toAbsolutePath(), e);
+            deleteQuietly(flatGeobuf.tempPath());
+        }
+        if (geojsonMaxFeatures <= 0 || store.size() > geojsonMaxFeatures) {
+            return exports;
+        }
+
+        Path geoJsonPath = outputDir.resolve(geoJsonFileName(publication.identifier()));
+        Export geoJson = new Export(geoJsonPath, tempPath(geoJsonPath));
+        Export geoJsonGzip = new Export(gzipPath(geoJsonPath), tempPath(gzipPath(geoJsonPath)));
+        try (MapMlOutput output = MapMlOutput.open(geoJson.tempPath(), geoJsonGzip.tempPath())) {
+            SubunitGeoJson.write(output, store);
+        } catch (IOException e) {
+            log.warn("Failed to write GeoJSON file {}", geoJsonPath.toAbsolutePath(), e);
+            deleteQuietly(geoJson.tempPath());
+            deleteQuietly(geoJsonGzip.tempPath());
+            return exports;
+        }
+        exports.add(geoJson);
+        exports.add(geoJsonGzip);
+        return exports;
+    }
+
+    public Path mapMlPath(String identifier) {
+        return mapMlPath(identifier, null);
+    }
+
+    /**
+     * Path of the full-detail MapML file of a publication in the current generation, or with {@code zoom} of its
+     * simplified level for that zoom, whether or not it exists.
+     */
+    public Path mapMlPath(String identifier, Integer zoom) {
+        return currentDirectory().resolve(mapMlFileName(identifier, zoom));
+    }
+
+    public static Path gzipPath(Path mapMlPath) {
+        return mapMlPath.resolveSibling(mapMlPath.getFileName() + GZIP_SUFFIX);
+    }
+
+    /**
+     * Full-detail files are named {@code <identifier>.mapml}, the simplified levels {@code <identifier>.z<zoom>.mapml}.
+     * They serve every file format of the publication. Each file has a gzip compressed copy named with
+     * {@link #GZIP_SUFFIX} appended.
+     */
+    private String mapMlFileName(String identifier, Integer zoom) {
+        return sanitizeFileName(identifier) + (zoom != null ? ".z" + zoom : "") + MAPML_SUFFIX;
+    }
+
+    /**
+     * Path of the FlatGeobuf file of a publication, whether or not it exists.
+     */
+    public Path flatGeobufPath(String identifier) {
+        return currentDirectory().resolve(flatGeobufFileName(identifier));
+    }
+
+    /**
+     * Path of the GeoJSON file of a publication, whether or not it exists. Only small layers have one.
+     */
+    public Path geoJsonPath(String identifier) {
+        return currentDirectory().resolve(geoJsonFileName(identifier));
+    }
+
+    private String flatGeobufFileName(String identifier) {
+        return sanitizeFileName(identifier) + SubunitFlatGeobuf.SUFFIX;
+    }
+
+    private String geoJsonFileName(String identifier) {
+        return sanitizeFileName(identifier) + SubunitGeoJson.SUFFIX;
+    }
+
+    private static Path tempPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
 
-                Geometry geometry = wktReader.read(item.geometry());
-                transformGeometry(geometry);
+    /**
+     * Directory of the current generation. Paths below it resolve through the {@code current} link whenever a file
+     * is opened, so a reader that opened a file keeps reading that generation after a switch.
+     */
+    public Path currentDirectory() {
+        return currentDirectory(itemsDir);
+    }
 
-                String itemIdentifier = normalizeText(item.identifier());
-                String featureId = itemIdentifier;
-                String title = normalizeText(item.title());
+    static Path currentDirectory(Path itemsDir) {
+        Path current = itemsDir.resolve(CURRENT_LINK);
+        return Files.isDirectory(current) ? current : itemsDir;
+    }
 
-                features.add(new SubunitMapMlService.SubunitFeature(featureId, itemIdentifier, title, geometry));
-            } catch (Exception e) {
-                log.warn("Failed to create mapml feature for item {}", item.identifier(), e);
+    private Path createGeneration() throws IOException {
+        Path generations = Files.createDirectories(itemsDir.resolve(GENERATIONS_DIRECTORY));
+        long next = generationNumbers(generations).stream().mapToLong(Long::longValue).max().orElse(0) + 1;
+        return Files.createDirectory(generations.resolve(Long.toString(next)));
+    }
+
+    /**
+     * Makes {@code generation} the current one by replacing the {@code current} link with a rename, then deletes all
+     * older generations except the one that was current before. If the link cannot be created, the files of the
+     * given publications in the items directory are replaced by those of the generation instead.
+     */
+    private void makeCurrent(Path generation, Collection<String> identifiers) {
+        Path current = itemsDir.resolve(CURRENT_LINK);
+        Path tempLink = tempPath(current);
+        String previous = null;
+        try {
+            if (Files.isSymbolicLink(current)) {
+                previous = Files.readSymbolicLink(current).getFileName().toString();
             }
+            Files.deleteIfExists(tempLink);
+            Files.createSymbolicLink(tempLink, itemsDir.relativize(generation));
+            Files.move(tempLink, current, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Could not link {} to {}, replacing the files in {} instead.",
+                    current, generation.getFileName(), itemsDir.toAbsolutePath(), e);
+            deleteQuietly(tempLink);
+            deleteQuietly(current);
+            deleteFiles(identifiers);
+            moveFiles(generation, itemsDir);
+            deleteRecursively(generation);
+            return;
         }
+        log.debug("Switched {} to generation {}.", current, generation.getFileName());
+        collectGenerations(generation.getFileName().toString(), previous);
+    }
 
-        return features;
+    /**
+     * Deletes the generations older than {@code current}, except {@code previous}, which readers may still use.
+     * Generations of refreshes that failed before publishing are deleted as well.
+     */
+    private void collectGenerations(String current, String previous) {
+        Path generations = itemsDir.resolve(GENERATIONS_DIRECTORY);
+        long currentNumber = Long.parseLong(current);
+        for (long number : generationNumbers(generations)) {
+            String name = Long.toString(number);
+            if (number < currentNumber && !name.equals(previous)) {
+                deleteRecursively(generations.resolve(name));
+            }
+        }
     }
 
-    private void writeMapMlFiles(
-            Path outputDir,
-            ThemePublication publication,
-            List<SubunitMapMlService.SubunitFeature> features
-    ) {
-        if (publication.fileFormats() == null || publication.fileFormats().isEmpty()) {
+    private static List<Long> generationNumbers(Path generations) {
+        List<Long> numbers = new ArrayList<>();
+        if (!Files.isDirectory(generations)) {
+            return numbers;
+        }
+        try (Stream<Path> directories = Files.list(generations)) {
+            for (Path directory : directories.toList()) {
+                String name = directory.getFileName().toString();
+                if (!name.isEmpty() && name.chars().allMatch(Character::isDigit) && Files.isDirectory(directory)) {
+                    numbers.add(Long.parseLong(name));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to list the generations in {}", generations.toAbsolutePath(), e);
+        }
+        return numbers;
+    }
+
+    private static void moveFiles(Path source, Path target) {
+        try (Stream<Path> files = Files.list(source)) {
+            for (Path file : files.toList()) {
+                moveIntoPlace(file, target.resolve(file.getFileName()));
+            }
+        } catch (IOException e) {
+            log.warn("Failed to move the subunit files of {}", source.toAbsolutePath(), e);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(ItemsMapMlWriter::deleteQuietly);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}", directory, e);
+        }
+    }
+
+    /**
+     * Renames a completely written file to its final path. Returns {@code false} and deletes the temporary file if
+     * that fails.
+     */
+    private static boolean moveIntoPlace(Path tempPath, Path path) {
+        try {
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to write subunit file {}", path.toAbsolutePath(), e);
+            deleteQuietly(tempPath);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the MapML files, their simplified levels and gzip copies, the feature stores, the FlatGeobuf and
+     * GeoJSON files and the cached tiles of the given publications from the items directory, for the flat layout.
+     */
+    private void deleteFiles(Collection<String> identifiers) {
+        if (identifiers.isEmpty() || !Files.isDirectory(itemsDir)) {
             return;
         }
+        Set<String> names = new HashSet<>();
+        for (String identifier : identifiers) {
+            names.add(sanitizeFileName(identifier));
+        }
 
-        String publicationPart = sanitizeFileName(publication.identifier());
-        for (FileFormat fileFormat : publication.fileFormats()) {
-            if (fileFormat == null || fileFormat.abbreviation() == null || fileFormat.abbreviation().isBlank()) {
-                continue;
+        int deleted = 0;
+        try (Stream<Path> files = Files.list(itemsDir)) {
+            for (Path file : files.toList()) {
+                if (belongsTo(file.getFileName().toString(), names) && Files.isRegularFile(file)) {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to delete subunit files in {}", itemsDir.toAbsolutePath(), e);
+        }
+        Path tilesDir = itemsDir.resolve(SubunitTileService.CACHE_DIRECTORY);
+        for (String name : names) {
+            Path publicationTiles = tilesDir.resolve(name);
+            if (Files.isDirectory(publicationTiles)) {
+                deleteRecursively(publicationTiles);
             }
+        }
+        log.debug("Deleted {} subunit files of the previous catalog.", deleted);
+    }
 
-            String format = fileFormat.abbreviation().trim().toLowerCase(Locale.ROOT);
-            String mapml = subunitMapMlService.toMapMl(publication, format, features);
-            Path outputPath = outputDir.resolve(publicationPart + "." + sanitizeFileName(format) + ".mapml");
-            try {
-                Files.writeString(outputPath, mapml, StandardCharsets.UTF_8);
-            } catch (IOException e) {
-                log.warn("Failed to write mapml file {}", outputPath.toAbsolutePath(), e);
+    /**
+     * Whether {@code fileName} is one of the subunit files written for the sanitized identifiers in {@code names}.
+     */
+    private static boolean belongsTo(String fileName, Set<String> names) {
+        String name = fileName.endsWith(GZIP_SUFFIX)
+                ? fileName.substring(0, fileName.length() - GZIP_SUFFIX.length())
+                : fileName;
+        for (String suffix : List.of(SubunitFeatureStore.SUFFIX, SubunitItemSpool.SUFFIX, SubunitFlatGeobuf.SUFFIX,
+                SubunitGeoJson.SUFFIX)) {
+            if (name.endsWith(suffix)) {
+                return names.contains(name.substring(0, name.length() - suffix.length()));
             }
         }
+        if (!name.endsWith(MAPML_SUFFIX)) {
+            return false;
+        }
+        name = name.substring(0, name.length() - MAPML_SUFFIX.length());
+        return names.contains(name) || names.contains(LEVEL_SUFFIX.matcher(name).replaceFirst(""));
     }
 
-    private void transformGeometry(Geometry geometry) {
-        geometry.apply((CoordinateFilter) coordinate -> {
-            ProjCoordinate src = new ProjCoordinate(coordinate.x, coordinate.y);
-            ProjCoordinate dst = new ProjCoordinate();
-            transform.transform(src, dst);
-            coordinate.x = dst.x;
-            coordinate.y = dst.y;
-        });
-        geometry.geometryChanged();
+    /**
+     * Path of the {@link SubunitFeatureStore} of a publication, whether or not it exists.
+     */
+    public Path featureStorePath(String identifier) {
+        return currentDirectory().resolve(featureStoreFileName(identifier));
     }
 
-    private String normalizeText(String value) {
-        if (value == null) {
-            return null;
+    private String featureStoreFileName(String identifier) {
+        return sanitizeFileName(identifier) + SubunitFeatureStore.SUFFIX;
+    }
+
+    private String spoolFileName(String identifier) {
+        return sanitizeFileName(identifier) + SubunitItemSpool.SUFFIX;
+    }
+
+    private static ThemePublication withItems(ThemePublication publication, List<Item> items) {
+        return new ThemePublication(publication.identifier(), publication.model(), publication.title(),
+                publication.shortDescription(), publication.hasSubunits(), publication.lastPublishingDate(),
+                publication.secondToLastPublishingDate(), publication.owner(), publication.servicer(),
+                publication.furtherInformation(), publication.downloadHostUrl(), publication.previewUrl(),
+                publication.keywords(), publication.synonyms(), publication.fileFormats(), publication.tablesInfo(),
+                publication.licence(), publication.bbox(), publication.wgcPreviewLayer(), items,
+                publication.services());
+    }
+
+    /**
+     * MapML files are only written for publications that offer at least one file format to download.
+     */
+    private static boolean hasFormats(ThemePublication publication) {
+        if (publication.fileFormats() == null) {
+            return false;
+        }
+        for (FileFormat fileFormat : publication.fileFormats()) {
+            if (fileFormat != null && fileFormat.abbreviation() != null && !fileFormat.abbreviation().isBlank()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}", path, e);
         }
-        String trimmed = value.trim();
-        return trimmed.isEmpty() ? null : trimmed;
     }
 
     private String sanitizeFileName(String identifier) {
@@ -160,4 +668,521 @@ public class ItemsMapMlWriter {
         }
         return identifier.replaceAll("[^a-zA-Z0-9._-]", "_");
     }
+
+    public final class Batch implements Function<ThemePublication, ThemePublicationXmlParser.ItemSink>, Closeable {
+        private final Path outputDir;
+        private final boolean ready;
+        private final Set<Session> open = ConcurrentHashMap.newKeySet();
+        private final Queue<String> files = new ConcurrentLinkedQueue<>();
+        private final SubunitReprojector.Throughput throughput = new SubunitReprojector.Throughput();
+        private final int parallelism = Runtime.getRuntime().availableProcessors();
+        private final ForkJoinPool workers = new ForkJoinPool(parallelism);
+        private final Semaphore permits = new Semaphore(parallelism);
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger sessions = new AtomicInteger();
+        private final long start = System.nanoTime();
+        private final AtomicLong lastProgress = new AtomicLong(start);
+        private boolean published;
+
+        /**
+         * @param outputDir directory of the new generation, or {@code null} if it could not be created
+         */
+        private Batch(Path outputDir) {
+            this.outputDir = outputDir;
+            this.ready = outputDir != null;
+        }
+
+        @Override
+        public ThemePublicationXmlParser.ItemSink apply(ThemePublication header) {
+            Session session = new Session(this, header);
+            open.add(session);
+            return session;
+        }
+
+        public int written() {
+            return files.size();
+        }
+
+        /**
+         * Names of the committed MapML files, relative to the directory of the generation.
+         */
+        public List<String> files() {
+            return List.copyOf(files);
+        }
+
+        /**
+         * Makes the generation written by this batch the current one. Call it once the parser has returned and the
+         * rest of the refresh has succeeded; an unpublished generation is deleted by a later refresh. In the flat
+         * layout the files of {@code identifiers}, the publications of the previous and the new catalog, are
+         * replaced.
+         */
+        public synchronized void publish(Collection<String> identifiers) {
+            if (!ready || published) {
+                return;
+            }
+            published = true;
+            makeCurrent(outputDir, identifiers);
+        }
+
+        @Override
+        public void close() {
+            for (Session session : open) {
+                session.await();
+                session.discard();
+            }
+            open.clear();
+            workers.close();
+            throughput.log();
+            if (completed.get() > 0) {
+                log.info("Wrote subunit files of {} publications in {} ms on {} workers, {} failed.",
+                        completed.get(), (System.nanoTime() - start) / 1_000_000, parallelism, failed.get());
+            }
+        }
+
+        private List<SubunitMapMlService.SubunitFeature> buildFeatures(List<Item> items) {
+            return reprojector.buildFeatures(items, throughput, workers);
+        }
+
+        /**
+         * Runs {@code task} on a worker once one is free.
+         */
+        private CompletableFuture<Void> complete(Runnable task) {
+            permits.acquireUninterruptibly();
+            return CompletableFuture.runAsync(task, workers).whenComplete((ignored, e) -> permits.release());
+        }
+
+        private void progress(boolean failure) {
+            int count = completed.incrementAndGet();
+            if (failure) {
+                failed.incrementAndGet();
+            }
+            long now = System.nanoTime();
+            long last = lastProgress.get();
+            if (now - last >= PROGRESS_INTERVAL_NANOS && lastProgress.compareAndSet(last, now)) {
+                log.info("Wrote subunit files of {} publications so far, {} failed.", count, failed.get());
+            }
+        }
+    }
+
+    /**
+     * The items of a lazy refresh, spooled to a new generation; see {@link #newSpool()}.
+     */
+    public final class Spool implements Function<ThemePublication, ThemePublicationXmlParser.ItemSink>, Closeable {
+        private final Path outputDir;
+        private final Set<SpoolSink> open = ConcurrentHashMap.newKeySet();
+        private final Queue<String> files = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger sinks = new AtomicInteger();
+        private boolean published;
+
+        /**
+         * @param outputDir directory of the new generation, or {@code null} if it could not be created
+         */
+        private Spool(Path outputDir) {
+            this.outputDir = outputDir;
+        }
+
+        @Override
+        public ThemePublicationXmlParser.ItemSink apply(ThemePublication header) {
+            SpoolSink sink = new SpoolSink(this);
+            open.add(sink);
+            return sink;
+        }
+
+        /**
+         * Names of the committed spools, relative to the directory of the generation.
+         */
+        public List<String> files() {
+            return List.copyOf(files);
+        }
+
+        /**
+         * Makes the generation written by this spool the current one, like {@link Batch#publish(Collection)}.
+         */
+        public synchronized void publish(Collection<String> identifiers) {
+            if (outputDir == null || published) {
+                return;
+            }
+            published = true;
+            makeCurrent(outputDir, identifiers);
+        }
+
+        @Override
+        public void close() {
+            for (SpoolSink sink : open) {
+                sink.discard();
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * Spools the items of one publication to a path unique to the sink, which is renamed to the spool of the
+     * publication on commit. Write failures are logged and discard the spool.
+     */
+    private final class SpoolSink implements ThemePublicationXmlParser.ItemSink {
+        private final Spool spool;
+        private final Path tempPath;
+        private final SubunitItemSpool.Writer writer;
+        private String identifier;
+        private boolean failed;
+
+        private SpoolSink(Spool spool) {
+            this.spool = spool;
+            this.tempPath = spool.outputDir == null ? null : spool.outputDir.resolve(
+                    "spool-" + spool.sinks.incrementAndGet() + SubunitItemSpool.SUFFIX + ".tmp");
+            this.writer = tempPath == null ? null : openWriter();
+        }
+
+        @Override
+        public void accept(Item item) {
+            if (writer == null || failed) {
+                return;
+            }
+            try {
+                writer.append(item);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void finish(ThemePublication publication) {
+            identifier = publication.identifier();
+            close();
+        }
+
+        @Override
+        public void commit(boolean keep) {
+            spool.open.remove(this);
+            close();
+            if (!keep || writer == null || failed || writer.size() == 0 || isBlank(identifier)) {
+                discard();
+                return;
+            }
+            String fileName = spoolFileName(identifier);
+            if (moveIntoPlace(tempPath, spool.outputDir.resolve(fileName))) {
+                spool.files.add(fileName);
+            }
+        }
+
+        private SubunitItemSpool.Writer openWriter() {
+            try {
+                return SubunitItemSpool.open(tempPath);
+            } catch (IOException e) {
+                log.warn("Failed to write subunit item spool {}", tempPath.toAbsolutePath(), e);
+                return null;
+            }
+        }
+
+        private void close() {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            if (!failed) {
+                log.warn("Failed to write subunit item spool {}", tempPath.toAbsolutePath(), e);
+            }
+            failed = true;
+        }
+
+        private void discard() {
+            close();
+            if (tempPath != null) {
+                deleteQuietly(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Writes the files of one publication. Every reprojected feature is appended to the feature store and, if the
+     * elements preceding {@code <items>} already contain everything the MapML header and links depend on, to the
+     * full-detail MapML file. No features are kept on the heap: {@link #finish(ThemePublication)} completes the
+     * files on a worker of the batch from the closed and mapped feature store, which is where the simplified levels,
+     * the FlatGeobuf and GeoJSON exports and, if the header was incomplete, the full-detail file are written from.
+     * Items are collected and reprojected in parallel batches of {@link SubunitReprojector#BATCH_SIZE}. A runtime
+     * failure marks the session as failed; its files are discarded on commit.
+     */
+    private final class Session implements ThemePublicationXmlParser.ItemSink {
+        private final Batch batch;
+        private final ThemePublication header;
+        private final List<Item> pending = new ArrayList<>(SubunitReprojector.BATCH_SIZE);
+        private final List<Output> outputs = new ArrayList<>();
+        private final List<Export> exports = new ArrayList<>();
+        private final boolean streaming;
+        private final StoreOutput store;
+        private int features;
+        private volatile boolean failed;
+        private CompletableFuture<Void> completion;
+
+        private Session(Batch batch, ThemePublication header) {
+            this.batch = batch;
+            this.header = header;
+            this.streaming = batch.ready && !isBlank(header.identifier()) && !isBlank(header.title())
+                    && !isBlank(header.downloadHostUrl()) && header.fileFormats() != null;
+            this.store = batch.ready ? openStore(header.identifier()) : null;
+            if (streaming && hasFormats(header)) {
+                open(header, null);
+            }
+        }
+
+        @Override
+        public void accept(Item item) {
+            if (failed) {
+                return;
+            }
+            try {
+                pending.add(item);
+                if (pending.size() >= SubunitReprojector.BATCH_SIZE) {
+                    drainPending();
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void drainPending() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            List<SubunitMapMlService.SubunitFeature> built = batch.buildFeatures(pending);
+            pending.clear();
+            for (SubunitMapMlService.SubunitFeature feature : built) {
+                append(feature);
+            }
+        }
+
+        private void append(SubunitMapMlService.SubunitFeature feature) {
+            features++;
+            if (store != null) {
+                store.append(feature);
+            }
+            if (!streaming) {
+                return;
+            }
+            for (Output output : outputs) {
+                appendFeature(output, header, feature);
+            }
+        }
+
+        @Override
+        public void finish(ThemePublication publication) {
+            if (failed) {
+                batch.progress(true);
+                completion = CompletableFuture.completedFuture(null);
+                return;
+            }
+            completion = batch.complete(() -> {
+                try {
+                    complete(publication);
+                } catch (RuntimeException e) {
+                    fail(e);
+                } finally {
+                    batch.progress(failed);
+                }
+            });
+        }
+
+        private void complete(ThemePublication publication) {
+            drainPending();
+            if (store != null) {
+                store.close();
+                store.path = batch.outputDir.resolve(featureStoreFileName(publication.identifier()));
+                SubunitFeatureStore.Mapped mapped = store.failed ? null : mapFeatureStore(store.tempPath);
+                if (mapped != null && mapped.size() > 0) {
+                    exports.addAll(writeExports(batch.outputDir, publication, mapped));
+                }
+                List<SubunitMapMlService.SubunitFeature> stored = mapped != null ? mapped.features() : List.of();
+                if (!stored.isEmpty() && hasFormats(publication)) {
+                    if (!streaming) {
+                        appendFeatures(open(publication, null), publication, stored);
+                    }
+                    if (simplifier.enabled()) {
+                        writeLevels(publication, stored, zoom -> open(publication, zoom));
+                    }
+                }
+            }
+            outputs.forEach(ItemsMapMlWriter.this::finish);
+        }
+
+        @Override
+        public void commit(boolean keep) {
+            await();
+            batch.open.remove(this);
+            if (!keep || failed || features == 0) {
+                discard();
+                return;
+            }
+            if (store != null) {
+                moveIntoPlace(store.tempPath, store.path, store.failed);
+            }
+            for (Output output : outputs) {
+                moveIntoPlace(output.tempPath, output.path, output.failed);
+                moveIntoPlace(output.gzipTempPath, gzipPath(output.path), output.failed);
+            }
+            for (Export export : exports) {
+                moveIntoPlace(export.tempPath(), export.path(), false);
+            }
+        }
+
+        private void moveIntoPlace(Path tempPath, Path path, boolean failed) {
+            if (failed) {
+                deleteQuietly(tempPath);
+                return;
+            }
+            if (ItemsMapMlWriter.moveIntoPlace(tempPath, path)) {
+                batch.files.add(path.getFileName().toString());
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            log.warn("Failed to write subunit files of {}, skipping it.", header.identifier(), e);
+            failed = true;
+        }
+
+        /**
+         * Waits until the work started by {@link #finish(ThemePublication)} is done.
+         */
+        private void await() {
+            if (completion != null) {
+                completion.join();
+            }
+        }
+
+        private void discard() {
+            pending.clear();
+            if (store != null) {
+                store.close();
+                deleteQuietly(store.tempPath);
+            }
+            for (Output output : outputs) {
+                output.close();
+                deleteQuietly(output.tempPath);
+                deleteQuietly(output.gzipTempPath);
+            }
+            for (Export export : exports) {
+                deleteQuietly(export.tempPath());
+            }
+        }
+
+        /**
+         * Opens the feature store at its temporary path. If the identifier only follows the items, the store is
+         * written to a path unique to the session and renamed on commit.
+         */
+        private StoreOutput openStore(String identifier) {
+            String fileName = isBlank(identifier)
+                    ? "session-" + batch.sessions.incrementAndGet() + SubunitFeatureStore.SUFFIX
+                    : featureStoreFileName(identifier);
+            Path path = batch.outputDir.resolve(fileName);
+            Path tempPath = tempPath(path);
+            try {
+                return new StoreOutput(path, tempPath, SubunitFeatureStore.open(tempPath));
+            } catch (IOException e) {
+                log.warn("Failed to write subunit feature store {}", path.toAbsolutePath(), e);
+                return null;
+            }
+        }
+
+        private Output open(ThemePublication publication, Integer zoom) {
+            return openOutput(batch.outputDir, publication, zoom, outputs);
+        }
+    }
+
+    /**
+     * An export file written to {@code tempPath}, its temporary sibling.
+     */
+    private record Export(Path path, Path tempPath) {
+    }
+
+    private static final class Output {
+        private final Path path;
+        private final Path tempPath;
+        private final Path gzipTempPath;
+        private final MapMlOutput out;
+        private boolean failed;
+        private boolean closed;
+
+        private Output(Path path, Path tempPath, Path gzipTempPath, MapMlOutput out) {
+            this.path = path;
+            this.tempPath = tempPath;
+            this.gzipTempPath = gzipTempPath;
+            this.out = out;
+        }
+
+        private boolean writable() {
+            return !failed && !closed;
+        }
+
+        private StringBuilder buffer() {
+            return out.buffer();
+        }
+
+        private void flushIfFull() {
+            try {
+                out.flushIfFull();
+            } catch (IOException e) {
+                log.warn("Failed to write mapml file {}", path.toAbsolutePath(), e);
+                failed = true;
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Failed to write mapml file {}", path.toAbsolutePath(), e);
+                failed = true;
+            }
+        }
+    }
+
+    private static final class StoreOutput {
+        private Path path;
+        private final Path tempPath;
+        private final SubunitFeatureStore.Writer writer;
+        private boolean failed;
+        private boolean closed;
+
+        private StoreOutput(Path path, Path tempPath, SubunitFeatureStore.Writer writer) {
+            this.path = path;
+            this.tempPath = tempPath;
+            this.writer = writer;
+        }
+
+        private void append(SubunitMapMlService.SubunitFeature feature) {
+            if (failed || closed) {
+                return;
+            }
+            try {
+                writer.append(feature);
+            } catch (IOException e) {
+                log.warn("Failed to write subunit feature store {}", path.toAbsolutePath(), e);
+                failed = true;
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("Failed to write subunit feature store {}", path.toAbsolutePath(), e);
+                failed = true;
+            }
+        }
+    }
 }
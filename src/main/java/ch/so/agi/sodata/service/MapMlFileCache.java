@@ -0,0 +1,144 @@
+package ch.so.agi.sodata.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-budgeted LRU cache of resolved MapML and export files for one catalog generation. Entries are weighed by the
+ * size of their in-memory content; when the budget is exceeded the least recently used entries are evicted. The
+ * first access with a newer generation drops everything cached for the previous one.
+ */
+class MapMlFileCache implements MeterBinder {
+    private static final String CACHE_NAME = "mapml";
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Map<Key, MapMlFileService.MapMlFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long generation = -1;
+    private long residentBytes;
+
+    MapMlFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.maxEntryBytes = Math.min(Math.max(maxEntryBytes, 0), this.maxBytes);
+    }
+
+    boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Whether a file of {@code length} bytes is small enough to be held in memory.
+     */
+    boolean admits(long length) {
+        return length <= maxEntryBytes;
+    }
+
+    synchronized MapMlFileService.MapMlFile get(long generation, Key key) {
+        advance(generation);
+        MapMlFileService.MapMlFile file = this.generation == generation ? entries.get(key) : null;
+        if (file != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return file;
+    }
+
+    synchronized void put(long generation, Key key, MapMlFileService.MapMlFile file) {
+        advance(generation);
+        if (!enabled() || this.generation != generation) {
+            return;
+        }
+        MapMlFileService.MapMlFile previous = entries.put(key, file);
+        residentBytes += weight(file) - weight(previous);
+        Iterator<MapMlFileService.MapMlFile> iterator = entries.values().iterator();
+        while (residentBytes > maxBytes && iterator.hasNext()) {
+            residentBytes -= weight(iterator.next());
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long residentBytes() {
+        return residentBytes;
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    double hitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? Double.NaN : (double) hitCount / total;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("cache.gets", this, MapMlFileCache::hitCount)
+                .tag("cache", CACHE_NAME)
+                .tag("result", "hit")
+                .description("MapML files served without touching the items directory")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", this, MapMlFileCache::missCount)
+                .tag("cache", CACHE_NAME)
+                .tag("result", "miss")
+                .description("MapML files that had to be resolved on disk")
+                .register(registry);
+        FunctionCounter.builder("cache.evictions", evictions, LongAdder::sum)
+                .tag("cache", CACHE_NAME)
+                .description("MapML files evicted to stay within the memory budget")
+                .register(registry);
+        Gauge.builder("cache.hit.ratio", this, MapMlFileCache::hitRatio)
+                .tag("cache", CACHE_NAME)
+                .description("Share of MapML requests served from the cache")
+                .register(registry);
+        Gauge.builder("cache.size", this, MapMlFileCache::size)
+                .tag("cache", CACHE_NAME)
+                .description("Number of MapML files held in the cache")
+                .register(registry);
+        Gauge.builder("cache.resident.bytes", this, MapMlFileCache::residentBytes)
+                .tag("cache", CACHE_NAME)
+                .baseUnit("bytes")
+                .description("MapML content held in memory")
+                .register(registry);
+    }
+
+    private void advance(long generation) {
+        if (generation > this.generation) {
+            this.generation = generation;
+            entries.clear();
+            residentBytes = 0;
+        }
+    }
+
+    private static long weight(MapMlFileService.MapMlFile file) {
+        return file == null || file.content() == null ? 0 : file.content().length;
+    }
+
+    /**
+     * A cached lookup: the requested file and whether its gzip copy was accepted. The resolved file may differ,
+     * e.g. the full-detail MapML file if a simplified level does not exist.
+     */
+    record Key(Path path, boolean gzip) {
+    }
+}
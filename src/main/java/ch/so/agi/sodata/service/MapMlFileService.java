@@ -0,0 +1,178 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlCacheProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the MapML file served for a publication and zoom, preferring its gzip compressed copy when the client
+ * accepts it, and the FlatGeobuf and GeoJSON exports of a publication. The strong ETag of a file is derived from a
+ * SHA-256 of its bytes; it is computed on first use and kept until the size or modification time of the file
+ * changes.
+ * <p>
+ * Resolved files are cached per catalog generation in a {@link MapMlFileCache}, together with their content unless
+ * they exceed {@code mapml.cache.max-entry-size}. Cache hits only check which generation directory of the items
+ * directory is current. Files only change during a refresh, which starts a new catalog generation. Resolved files
+ * point into the generation directory, so a response is read from one directory even if a refresh switches it.
+ */
+@Service
+public class MapMlFileService implements MeterBinder {
+    private static final int ETAG_LENGTH = 32;
+
+    private final ItemsMapMlWriter itemsMapMlWriter;
+    private final ThemePublicationCatalog catalog;
+    private final MapMlFileCache cache;
+    private final Map<Path, Validator> validators = new ConcurrentHashMap<>();
+
+    public MapMlFileService(
+            ItemsMapMlWriter itemsMapMlWriter,
+            ThemePublicationCatalog catalog,
+            MapMlCacheProperties cacheProperties
+    ) {
+        this.itemsMapMlWriter = itemsMapMlWriter;
+        this.catalog = catalog;
+        this.cache = new MapMlFileCache(cacheProperties.size().toBytes(), cacheProperties.maxEntrySize().toBytes());
+    }
+
+    /**
+     * Returns the simplified level for {@code zoom} if it exists, otherwise the full-detail file.
+     */
+    public Optional<MapMlFile> find(String identifier, Integer zoom, boolean gzip) throws IOException {
+        return find(itemsMapMlWriter.mapMlPath(identifier, zoom), gzip, () -> resolve(identifier, zoom, gzip));
+    }
+
+    /**
+     * Returns the FlatGeobuf file of a publication. It is never compressed, so clients can read its index and
+     * features with range requests.
+     */
+    public Optional<MapMlFile> findFlatGeobuf(String identifier) throws IOException {
+        Path path = itemsMapMlWriter.flatGeobufPath(identifier);
+        return find(path, false, () -> resolve(path, false));
+    }
+
+    /**
+     * Returns the GeoJSON file of a publication, which only small layers have.
+     */
+    public Optional<MapMlFile> findGeoJson(String identifier, boolean gzip) throws IOException {
+        Path path = itemsMapMlWriter.geoJsonPath(identifier);
+        return find(path, gzip, () -> resolve(path, gzip));
+    }
+
+    private Optional<MapMlFile> find(Path requested, boolean gzip, Resolver resolver) throws IOException {
+        long generation = catalog.generation();
+        MapMlFileCache.Key key = new MapMlFileCache.Key(requested, gzip);
+        MapMlFile cached = cache.get(generation, key);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        Optional<MapMlFile> file = resolver.resolve();
+        if (file.isPresent()) {
+            cache.put(generation, key, file.get());
+        }
+        return file;
+    }
+
+    MapMlFileCache cache() {
+        return cache;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        cache.bindTo(registry);
+    }
+
+    private Optional<MapMlFile> resolve(String identifier, Integer zoom, boolean gzip) throws IOException {
+        Path path = null;
+        if (zoom != null) {
+            Path simplified = itemsMapMlWriter.mapMlPath(identifier, zoom);
+            if (Files.isRegularFile(simplified)) {
+                path = simplified;
+            }
+        }
+        return resolve(path != null ? path : itemsMapMlWriter.mapMlPath(identifier), gzip);
+    }
+
+    private Optional<MapMlFile> resolve(Path path, boolean gzip) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return Optional.empty();
+        }
+        if (gzip) {
+            Path gzipPath = ItemsMapMlWriter.gzipPath(path);
+            if (Files.isRegularFile(gzipPath)) {
+                return Optional.of(describe(gzipPath, true));
+            }
+        }
+        return Optional.of(describe(path, false));
+    }
+
+    private MapMlFile describe(Path path, boolean gzip) throws IOException {
+        Path file = path.toRealPath();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (cache.enabled() && cache.admits(attributes.size())) {
+            byte[] content = Files.readAllBytes(file);
+            return new MapMlFile(file, gzip, content.length, attributes.lastModifiedTime().toInstant(),
+                    etag(newDigest().digest(content)), content);
+        }
+        Validator validator = validators.get(path);
+        if (validator == null || validator.size() != attributes.size()
+                || !validator.modified().equals(attributes.lastModifiedTime())) {
+            validator = new Validator(attributes.size(), attributes.lastModifiedTime(), digest(file));
+            validators.put(path, validator);
+        }
+        return new MapMlFile(file, gzip, attributes.size(), attributes.lastModifiedTime().toInstant(),
+                validator.etag(), null);
+    }
+
+    private static String digest(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[MapMlOutput.BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return etag(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String etag(byte[] digest) {
+        return HexFormat.of().formatHex(digest).substring(0, ETAG_LENGTH);
+    }
+
+    /**
+     * A MapML or export file on disk. {@code gzip} is set if {@code path} is the compressed copy; {@code content}
+     * holds the bytes of the file if they are cached in memory, otherwise it is {@code null}.
+     */
+    public record MapMlFile(Path path, boolean gzip, long length, Instant lastModified, String etag, byte[] content) {
+    }
+
+    private interface Resolver {
+        Optional<MapMlFile> resolve() throws IOException;
+    }
+
+    private record Validator(long size, FileTime modified, String etag) {
+    }
+}
@@ -0,0 +1,141 @@
+package ch.so.agi.sodata.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reusable markup buffer in front of a {@link Writer}. {@link SubunitMapMlService} appends into {@link #buffer()};
+ * once it exceeds {@link #BUFFER_SIZE} the content is copied in chunks to the writer and the buffer is reset, so
+ * memory stays bounded by the largest feature and no intermediate {@code String} of the document is created.
+ */
+final class MapMlOutput implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+    private final char[] chunk = new char[8 * 1024];
+    private final Writer writer;
+
+    MapMlOutput(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Opens {@code path} for writing through a UTF-8 channel writer with a {@link #BUFFER_SIZE} byte buffer.
+     */
+    static MapMlOutput open(Path path) throws IOException {
+        FileChannel channel = openChannel(path);
+        return new MapMlOutput(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE));
+    }
+
+    /**
+     * Like {@link #open(Path)}, but also writes a gzip compressed copy of the document to {@code gzipPath}. The
+     * copy is compressed with the best compression level, since it is written once and served many times.
+     */
+    static MapMlOutput open(Path path, Path gzipPath) throws IOException {
+        OutputStream raw = Channels.newOutputStream(openChannel(path));
+        OutputStream gzip;
+        try {
+            gzip = new BestGzipOutputStream(Files.newOutputStream(gzipPath));
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+        OutputStream both = new BufferedOutputStream(new TeeOutputStream(raw, gzip), BUFFER_SIZE);
+        return new MapMlOutput(new OutputStreamWriter(both, StandardCharsets.UTF_8));
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    StringBuilder buffer() {
+        return buffer;
+    }
+
+    void flushIfFull() throws IOException {
+        if (buffer.length() >= BUFFER_SIZE) {
+            drain();
+        }
+    }
+
+    void flush() throws IOException {
+        drain();
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        int length = buffer.length();
+        for (int offset = 0; offset < length; offset += chunk.length) {
+            int end = Math.min(length, offset + chunk.length);
+            buffer.getChars(offset, end, chunk, 0);
+            writer.write(chunk, 0, end - offset);
+        }
+        buffer.setLength(0);
+    }
+
+    private static final class BestGzipOutputStream extends GZIPOutputStream {
+        private BestGzipOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ch.so.agi.sodata.service;
+
+import java.time.Instant;
+
+public record RefreshJob(
+        long id,
+        String trigger,
+        State state,
+        Instant submittedAt,
+        Instant startedAt,
+        Instant finishedAt,
+        Long durationMillis,
+        Integer publications,
+        Integer mapMlFiles,
+        Integer indexedDocuments,
+        boolean restored,
+        String error
+) {
+    public enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+}
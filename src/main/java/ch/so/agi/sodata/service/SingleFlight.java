@@ -0,0 +1,52 @@
+package ch.so.agi.sodata.service;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs at most one load per key at a time. Callers that ask for a key while it is being loaded wait for that load
+ * and share its result or failure instead of starting their own. The load runs on the thread of the first caller;
+ * nothing is kept once it has finished, so callers cache the result themselves and check that cache again inside
+ * the load.
+ */
+final class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+
+    V load(K key, Loader<V> loader) throws IOException {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> running = loads.putIfAbsent(key, created);
+        if (running == null) {
+            try {
+                V value = loader.load();
+                created.complete(value);
+                return value;
+            } catch (Throwable e) {
+                created.completeExceptionally(e);
+                throw e;
+            } finally {
+                loads.remove(key, created);
+            }
+        }
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw new IOException(ioException.getMessage(), ioException);
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    interface Loader<V> {
+        V load() throws IOException;
+    }
+}
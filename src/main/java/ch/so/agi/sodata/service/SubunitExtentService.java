@@ -0,0 +1,368 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlCacheProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Answers {@code subunits.mapml} requests with a {@code bbox}: only the subunits whose envelope intersects the box
+ * are returned. The features of a publication are read once per catalog generation from its mapped
+ * {@link SubunitFeatureStore}, serialized to {@code map-feature} markup and indexed by envelope in an
+ * {@link STRtree}, so a request only queries the tree and concatenates the stored fragments. Simplified levels are
+ * built the same way the first time a request asks for one. Concurrent requests for a publication share one build.
+ * <p>
+ * A layer holds the full markup plus one copy per simplified level, each with its index. It is weighed when it is
+ * built as its full markup and index times one plus the number of simplified levels, which bounds the levels built
+ * later, and layers are kept within {@code mapml.cache.extent-size} in least recently used order. A publication
+ * whose layer alone exceeds the budget is not filtered: its requests are answered as complete and served from the
+ * MapML file of the level. A new catalog generation drops the layers of earlier ones.
+ */
+@Service
+public class SubunitExtentService {
+    private static final Logger log = LoggerFactory.getLogger(SubunitExtentService.class);
+    private static final int ETAG_LENGTH = 32;
+    /** Estimated bytes per indexed feature: its envelope, boxed position and share of the tree nodes. */
+    private static final int INDEX_BYTES_PER_FEATURE = 96;
+
+    private final ItemsMapMlWriter itemsMapMlWriter;
+    private final SubunitMapMlService subunitMapMlService;
+    private final SubunitSimplifier simplifier;
+    private final ThemePublicationCatalog catalog;
+    private final String settingsVersion;
+    private final LayerCache layers;
+    private final SingleFlight<String, Layer> layerLoads = new SingleFlight<>();
+
+    public SubunitExtentService(
+            ItemsMapMlWriter itemsMapMlWriter,
+            MapMlProperties mapMlProperties,
+            MapMlCacheProperties cacheProperties,
+            SubunitMapMlService subunitMapMlService,
+            ThemePublicationCatalog catalog
+    ) {
+        this.itemsMapMlWriter = itemsMapMlWriter;
+        this.subunitMapMlService = subunitMapMlService;
+        this.simplifier = new SubunitSimplifier(mapMlProperties);
+        this.catalog = catalog;
+        this.settingsVersion = Integer.toString(Objects.hash(mapMlProperties.coordinatePrecision(),
+                mapMlProperties.simplifiedZooms(), mapMlProperties.simplificationTolerance(),
+                mapMlProperties.coverageMaxFeatures()) & 0x7fffffff, 36);
+        this.layers = new LayerCache(cacheProperties.extentSize().toBytes());
+    }
+
+    /**
+     * Returns the MapML document with the subunits of the publication that intersect {@code bbox} (Web Mercator
+     * metres), taken from the simplified level for {@code zoom} or, if {@code zoom} is {@code null}, from the full
+     * detail. Returns an empty optional if the publication has no feature store. If every subunit intersects the
+     * box the extract is {@linkplain Extract#complete() complete} and has no body; the precompressed MapML file of
+     * the level then serves the request better.
+     */
+    public Optional<Extract> extract(ThemePublication publication, Integer zoom, Envelope bbox) throws IOException {
+        Layer layer = layer(publication);
+        if (layer == null) {
+            return Optional.empty();
+        }
+        if (layer.full == null) {
+            return Optional.of(new Extract(null, true, null));
+        }
+        Fragments fragments = zoom != null && simplifier.enabled() ? layer.level(zoom) : layer.full;
+
+        @SuppressWarnings("unchecked")
+        List<Integer> candidates = fragments.index().query(bbox);
+        int[] matches = candidates.stream().mapToInt(Integer::intValue).sorted().toArray();
+        if (matches.length > 0 && matches.length == fragments.index().size()) {
+            return Optional.of(new Extract(null, true, null));
+        }
+        byte[] body = fragments.assemble(layer.header, layer.footer, matches);
+        String etag = "\"" + layer.version + "-" + (zoom != null ? "z" + zoom : "full") + "-" + digest(matches) + "\"";
+        return Optional.of(new Extract(etag, false, body));
+    }
+
+    /**
+     * Returns the fragments of a publication for the current catalog generation, building them if necessary. The
+     * markup depends on the publication, so layers are rebuilt for every generation.
+     */
+    private Layer layer(ThemePublication publication) throws IOException {
+        String identifier = publication.identifier();
+        if (identifier == null) {
+            return null;
+        }
+        long generation = catalog.generation();
+        Layer current = layers.get(identifier);
+        if (current != null && current.generation >= generation) {
+            return current;
+        }
+        return layerLoads.load(identifier, () -> load(publication, generation));
+    }
+
+    private Layer load(ThemePublication publication, long generation) throws IOException {
+        String identifier = publication.identifier();
+        Layer current = layers.get(identifier);
+        if (current != null && current.generation >= generation) {
+            return current;
+        }
+
+        Path storePath = itemsMapMlWriter.featureStorePath(identifier);
+        if (!Files.isRegularFile(storePath)) {
+            layers.remove(identifier);
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(storePath, BasicFileAttributes.class);
+        String version = Long.toString(attributes.lastModifiedTime().toMillis(), 36) + "-"
+                + Long.toString(attributes.size(), 36) + "-" + settingsVersion;
+
+        SubunitFeatureStore.Mapped store = SubunitFeatureStore.map(storePath);
+        StringBuilder header = new StringBuilder();
+        subunitMapMlService.appendHeader(header, publication);
+        StringBuilder footer = new StringBuilder();
+        subunitMapMlService.appendFooter(footer);
+        Fragments full;
+        try {
+            full = fragments(publication, store.features());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] footerBytes = footer.toString().getBytes(StandardCharsets.UTF_8);
+        int copies = 1 + (simplifier.enabled() ? simplifier.zooms().size() : 0);
+        long weight = headerBytes.length + footerBytes.length + full.weight() * copies;
+        if (!layers.fits(weight)) {
+            log.debug("Subunits of {} need about {} bytes, more than the extent cache holds; serving whole files.",
+                    identifier, weight);
+            Layer unfiltered = new Layer(generation, version, publication, null, null, null, null, 0);
+            layers.put(identifier, unfiltered);
+            return unfiltered;
+        }
+        Layer layer = new Layer(generation, version, publication, store, headerBytes, footerBytes, full, weight);
+        layers.put(identifier, layer);
+        log.debug("Indexed {} subunits of {} for extent requests.", store.size(), identifier);
+        return layer;
+    }
+
+    /**
+     * Returns the first {@value #ETAG_LENGTH} hex digits of the SHA-256 of the matched feature positions.
+     */
+    private static String digest(int[] matches) {
+        ByteBuffer buffer = ByteBuffer.allocate(matches.length * Integer.BYTES);
+        buffer.asIntBuffer().put(matches);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(buffer.array());
+            return HexFormat.of().formatHex(digest).substring(0, ETAG_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private Fragments fragments(ThemePublication publication, List<SubunitMapMlService.SubunitFeature> features) {
+        StringBuilder markup = new StringBuilder();
+        int[] offsets = new int[features.size() + 1];
+        STRtree index = new STRtree();
+        List<byte[]> encoded = new ArrayList<>(features.size());
+        int length = 0;
+        for (int i = 0; i < features.size(); i++) {
+            SubunitMapMlService.SubunitFeature feature = features.get(i);
+            markup.setLength(0);
+            subunitMapMlService.appendFeature(markup, publication, feature);
+            byte[] fragment = markup.toString().getBytes(StandardCharsets.UTF_8);
+            encoded.add(fragment);
+            offsets[i] = length;
+            length += fragment.length;
+            if (fragment.length > 0) {
+                index.insert(feature.geometry().getEnvelopeInternal(), i);
+            }
+        }
+        offsets[features.size()] = length;
+        index.build();
+
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < encoded.size(); i++) {
+            System.arraycopy(encoded.get(i), 0, bytes, offsets[i], encoded.get(i).length);
+        }
+        return new Fragments(bytes, offsets, index);
+    }
+
+    public record Extract(String etag, boolean complete, byte[] body) {
+    }
+
+    /**
+     * Layers in least recently used order, weighed by {@link Layer#weight}.
+     */
+    private static final class LayerCache {
+        private final long maxBytes;
+        private final Map<String, Layer> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long residentBytes;
+
+        private LayerCache(long maxBytes) {
+            this.maxBytes = Math.max(maxBytes, 0);
+        }
+
+        boolean fits(long bytes) {
+            return bytes <= maxBytes;
+        }
+
+        synchronized Layer get(String identifier) {
+            return entries.get(identifier);
+        }
+
+        synchronized void remove(String identifier) {
+            Layer previous = entries.remove(identifier);
+            if (previous != null) {
+                residentBytes -= previous.weight;
+            }
+        }
+
+        /**
+         * Adds {@code layer}, dropping the layers of earlier generations and then the least recently used ones until
+         * the cache is within its budget again.
+         */
+        synchronized void put(String identifier, Layer layer) {
+            remove(identifier);
+            Iterator<Layer> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Layer other = iterator.next();
+                if (other.generation < layer.generation) {
+                    residentBytes -= other.weight;
+                    iterator.remove();
+                }
+            }
+            entries.put(identifier, layer);
+            residentBytes += layer.weight;
+            iterator = entries.values().iterator();
+            while (residentBytes > maxBytes && iterator.hasNext()) {
+                residentBytes -= iterator.next().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The indexed markup of one publication. A layer without {@link #full} markup is too large for the cache and
+     * is served from the MapML files instead.
+     */
+    private final class Layer {
+        private final long generation;
+        private final String version;
+        private final ThemePublication publication;
+        private final SubunitFeatureStore.Mapped store;
+        private final byte[] header;
+        private final byte[] footer;
+        private final Fragments full;
+        private final long weight;
+        private Map<Integer, Fragments> levels;
+
+        private Layer(
+                long generation,
+                String version,
+                ThemePublication publication,
+                SubunitFeatureStore.Mapped store,
+                byte[] header,
+                byte[] footer,
+                Fragments full,
+                long weight
+        ) {
+            this.generation = generation;
+            this.version = version;
+            this.publication = publication;
+            this.store = store;
+            this.header = header;
+            this.footer = footer;
+            this.full = full;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns the fragments of the simplified level for {@code zoom}. The first call simplifies all levels the
+         * same way the MapML writer does: as a coverage from all decoded features, or feature by feature for
+         * layers above {@code mapml.coverage-max-features}.
+         */
+        private synchronized Fragments level(int zoom) throws IOException {
+            if (levels == null) {
+                Map<Integer, Fragments> simplified = new HashMap<>();
+                try {
+                    if (simplifier.coverage(store.size())) {
+                        simplifier.levels(publication.identifier(), List.copyOf(store.features()), level ->
+                                simplified.put(level.zoom(), fragments(publication, level.features())));
+                    } else {
+                        List<Integer> zooms = simplifier.zooms();
+                        List<List<SubunitMapMlService.SubunitFeature>> features = new ArrayList<>();
+                        zooms.forEach(ignored -> features.add(new ArrayList<>(store.size())));
+                        for (int i = 0; i < store.size(); i++) {
+                            List<SubunitMapMlService.SubunitFeature> featureLevels =
+                                    simplifier.featureLevels(store.feature(i));
+                            for (int j = 0; j < zooms.size(); j++) {
+                                features.get(j).add(featureLevels.get(j));
+                            }
+                        }
+                        for (int j = 0; j < zooms.size(); j++) {
+                            simplified.put(zooms.get(j), fragments(publication, features.get(j)));
+                        }
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                levels = simplified;
+            }
+            return levels.getOrDefault(zoom, full);
+        }
+    }
+
+    /**
+     * The {@code map-feature} markup of every feature of one level, stored back to back: feature {@code i} spans
+     * {@code offsets[i]} to {@code offsets[i + 1]}. The index maps envelopes to feature positions; features without
+     * markup are not indexed.
+     */
+    private record Fragments(byte[] markup, int[] offsets, STRtree index) {
+        private long weight() {
+            return markup.length + (long) offsets.length * Integer.BYTES
+                    + (long) index.size() * INDEX_BYTES_PER_FEATURE;
+        }
+
+        private byte[] assemble(byte[] header, byte[] footer, int[] matches) {
+            int length = header.length + footer.length;
+            for (int match : matches) {
+                length += offsets[match + 1] - offsets[match];
+            }
+            byte[] body = new byte[length];
+            System.arraycopy(header, 0, body, 0, header.length);
+            int position = header.length;
+            int i = 0;
+            while (i < matches.length) {
+                int start = matches[i];
+                int end = start + 1;
+                while (i + 1 < matches.length && matches[i + 1] == end) {
+                    end++;
+                    i++;
+                }
+                int size = offsets[end] - offsets[start];
+                System.arraycopy(markup, offsets[start], body, position, size);
+                position += size;
+                i++;
+            }
+            System.arraycopy(footer, 0, body, position, footer.length);
+            return body;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package ch.so.agi.sodata.service;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Per-publication file with the reprojected subunit features ({@code <identifier>.subunits.bin} next to the MapML
+ * files), written while the MapML files are generated and read by {@link SubunitTileService} and
+ * {@link SubunitExtentService}. Features are appended as they arrive: the three nullable strings as length-prefixed
+ * UTF-8 and the geometry as WKB. Closing the writer appends a directory with the offset and envelope of every
+ * feature and a trailer pointing to it.
+ * <p>
+ * Readers {@linkplain #map(Path) map} the file instead of loading it onto the heap. The directory is enough to index
+ * the features; a geometry is only decoded, into packed coordinate sequences, when its feature is read. The mapping
+ * is released once the store is no longer referenced. Replacing a store moves a new file into place, so mapped
+ * readers keep a consistent view of the previous one.
+ */
+final class SubunitFeatureStore {
+    static final String SUFFIX = ".subunits.bin";
+
+    private static final int MAGIC = 0x53445355;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    /** Record offset and envelope (min x, min y, max x, max y) of one feature. */
+    private static final int ENTRY_BYTES = 40;
+    /** Directory offset, feature count and magic. */
+    private static final int TRAILER_BYTES = 16;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE =
+            ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final GeometryFactory GEOMETRY_FACTORY =
+            new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY);
+
+    private SubunitFeatureStore() {
+    }
+
+    /**
+     * Reads all features of a store onto the heap.
+     */
+    static List<SubunitMapMlService.SubunitFeature> read(Path path) throws IOException {
+        try {
+            return List.copyOf(map(path).features());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static Mapped map(Path path) throws IOException {
+        MemorySegment segment;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto());
+        }
+        long size = segment.byteSize();
+        if (size < HEADER_BYTES + TRAILER_BYTES || segment.get(INT, 0) != MAGIC
+                || segment.get(INT, 4) != FORMAT_VERSION || segment.get(INT, size - 4) != MAGIC) {
+            throw new IOException("Not a subunit feature store: " + path);
+        }
+        long directory = segment.get(LONG, size - TRAILER_BYTES);
+        int count = segment.get(INT, size - 8);
+        if (count < 0 || directory < HEADER_BYTES || directory + (long) count * ENTRY_BYTES != size - TRAILER_BYTES) {
+            throw new IOException("Truncated subunit feature store: " + path);
+        }
+        return new Mapped(path, segment, directory, count);
+    }
+
+    static Writer open(Path path) throws IOException {
+        return new Writer(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path))));
+    }
+
+    /**
+     * A store mapped into memory. Instances are safe for use by multiple threads.
+     */
+    static final class Mapped {
+        private final Path path;
+        private final MemorySegment segment;
+        private final long directory;
+        private final int count;
+
+        private Mapped(Path path, MemorySegment segment, long directory, int count) {
+            this.path = path;
+            this.segment = segment;
+            this.directory = directory;
+            this.count = count;
+        }
+
+        int size() {
+            return count;
+        }
+
+        /**
+         * Returns the envelope of feature {@code index} without decoding its geometry.
+         */
+        Envelope envelope(int index) {
+            long entry = entry(index) + 8;
+            return new Envelope(segment.get(DOUBLE, entry), segment.get(DOUBLE, entry + 16),
+                    segment.get(DOUBLE, entry + 8), segment.get(DOUBLE, entry + 24));
+        }
+
+        SubunitMapMlService.SubunitFeature feature(int index) throws IOException {
+            long position = segment.get(LONG, entry(index));
+            String[] strings = new String[3];
+            for (int i = 0; i < strings.length; i++) {
+                int length = segment.get(INT, position);
+                position += 4;
+                if (length >= 0) {
+                    strings[i] = new String(bytes(position, length), StandardCharsets.UTF_8);
+                    position += length;
+                }
+            }
+            int length = segment.get(INT, position);
+            try {
+                Geometry geometry = new WKBReader(GEOMETRY_FACTORY).read(bytes(position + 4, length));
+                return new SubunitMapMlService.SubunitFeature(strings[0], strings[1], strings[2], geometry);
+            } catch (ParseException | IndexOutOfBoundsException e) {
+                throw new IOException("Invalid feature " + index + " in " + path, e);
+            }
+        }
+
+        /**
+         * Returns a view of the features in file order. Every access decodes the feature again, so iterate it once
+         * or copy it to keep the geometries. Decoding failures are thrown as {@link UncheckedIOException}.
+         */
+        List<SubunitMapMlService.SubunitFeature> features() {
+            return new AbstractList<>() {
+                @Override
+                public SubunitMapMlService.SubunitFeature get(int index) {
+                    try {
+                        return feature(index);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        private long entry(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return directory + (long) index * ENTRY_BYTES;
+        }
+
+        private byte[] bytes(long position, int length) {
+            byte[] bytes = new byte[length];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, length);
+            return bytes;
+        }
+    }
+
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final WKBWriter wkbWriter = new WKBWriter();
+        private final ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream directory = new DataOutputStream(directoryBytes);
+        private long position = HEADER_BYTES;
+        private int count;
+
+        private Writer(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        void append(SubunitMapMlService.SubunitFeature feature) throws IOException {
+            Geometry geometry = feature.geometry();
+            if (geometry == null || geometry.isEmpty()) {
+                return;
+            }
+            byte[] wkb = wkbWriter.write(geometry);
+            Envelope envelope = geometry.getEnvelopeInternal();
+            directory.writeLong(position);
+            directory.writeDouble(envelope.getMinX());
+            directory.writeDouble(envelope.getMinY());
+            directory.writeDouble(envelope.getMaxX());
+            directory.writeDouble(envelope.getMaxY());
+            writeString(feature.featureId());
+            writeString(feature.itemIdentifier());
+            writeString(feature.title());
+            out.writeInt(wkb.length);
+            out.write(wkb);
+            position += 4 + wkb.length;
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                directoryBytes.writeTo(out);
+                out.writeLong(position);
+                out.writeInt(count);
+                out.writeInt(MAGIC);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                position += 4;
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            position += 4 + bytes.length;
+        }
+    }
+}
@@ -0,0 +1,576 @@
+package ch.so.agi.sodata.service;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes the reprojected subunit features of a publication as FlatGeobuf ({@code <identifier>.fgb} next to the
+ * MapML files): the magic bytes, the header, a packed Hilbert R-tree over the feature envelopes and the features in
+ * Hilbert order. Clients that know the format (OpenLayers, QGIS, GDAL) read the header and walk the index with HTTP
+ * range requests, so they only fetch the features in their viewport. Coordinates are Web Mercator (EPSG:3857); every
+ * feature has the string properties {@code id} and {@code title}.
+ * <p>
+ * The FlatBuffers tables of the header and the features are encoded by hand, front to back: each table is preceded
+ * by its vtable and followed by the strings, vectors and tables it references. Alignment is relative to the size
+ * prefix of the buffer, as with the reference builder.
+ */
+final class SubunitFlatGeobuf {
+    static final String SUFFIX = ".fgb";
+    static final int NODE_SIZE = 16;
+
+    private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};
+    private static final int NODE_BYTES = 40;
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+    private static final int WEB_MERCATOR = 3857;
+    private static final String[] COLUMNS = {"id", "title"};
+
+    private static final int GEOMETRY_UNKNOWN = 0;
+    private static final int GEOMETRY_POINT = 1;
+    private static final int GEOMETRY_LINESTRING = 2;
+    private static final int GEOMETRY_POLYGON = 3;
+    private static final int GEOMETRY_MULTIPOINT = 4;
+    private static final int GEOMETRY_MULTILINESTRING = 5;
+    private static final int GEOMETRY_MULTIPOLYGON = 6;
+    private static final int GEOMETRY_COLLECTION = 7;
+    private static final int COLUMN_STRING = 11;
+
+    private SubunitFlatGeobuf() {
+    }
+
+    /**
+     * Writes the features of {@code store} to {@code path}. The Hilbert order is computed from the envelopes in the
+     * directory of the store; the features are then decoded one at a time in that order and their encoded tables
+     * spooled to a sibling file, since the header and the index, which precede them, need the geometry type and the
+     * size of every feature. Returns the number of features written.
+     */
+    static int write(Path path, String name, String title, SubunitFeatureStore.Mapped store) throws IOException {
+        int count = store.size();
+        double[] boxes = new double[count * 4];
+        Envelope extent = new Envelope();
+        for (int i = 0; i < count; i++) {
+            Envelope envelope = store.envelope(i);
+            extent.expandToInclude(envelope);
+            boxes[i * 4] = envelope.getMinX();
+            boxes[i * 4 + 1] = envelope.getMinY();
+            boxes[i * 4 + 2] = envelope.getMaxX();
+            boxes[i * 4 + 3] = envelope.getMaxY();
+        }
+        int[] order = hilbertOrder(boxes, count, extent);
+
+        Path featuresPath = path.resolveSibling(path.getFileName() + ".features");
+        try {
+            double[] sortedBoxes = new double[count * 4];
+            int[] sizes = new int[count];
+            int geometryType = -1;
+            try (OutputStream out =
+                         new BufferedOutputStream(Files.newOutputStream(featuresPath), MapMlOutput.BUFFER_SIZE)) {
+                for (int i = 0; i < count; i++) {
+                    SubunitMapMlService.SubunitFeature feature = store.feature(order[i]);
+                    Geometry geometry = feature.geometry();
+                    int type = geometryType(geometry);
+                    geometryType = geometryType == -1 || geometryType == type ? type : GEOMETRY_UNKNOWN;
+                    String id = feature.itemIdentifier() != null ? feature.itemIdentifier() : feature.featureId();
+                    byte[] encoded = encode(new Table()
+                            .ref(0, geometryTable(geometry))
+                            .ref(1, properties(id, feature.title())));
+                    out.write(encoded);
+                    sizes[i] = encoded.length;
+                    System.arraycopy(boxes, order[i] * 4, sortedBoxes, i * 4, 4);
+                }
+            }
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), MapMlOutput.BUFFER_SIZE)) {
+                out.write(MAGIC);
+                out.write(encode(header(name, title, extent, Math.max(geometryType, GEOMETRY_UNKNOWN), count)));
+                if (count > 0) {
+                    out.write(index(sortedBoxes, sizes));
+                }
+                Files.copy(featuresPath, out);
+            }
+        } finally {
+            Files.deleteIfExists(featuresPath);
+        }
+        return count;
+    }
+
+    private static Table header(String name, String title, Envelope extent, int geometryType, int count) {
+        Table crs = new Table()
+                .ref(0, "EPSG")
+                .scalar(1, 4, WEB_MERCATOR);
+        List<Table> columns = new ArrayList<>(COLUMNS.length);
+        for (String column : COLUMNS) {
+            columns.add(new Table()
+                    .ref(0, column)
+                    .scalar(1, 1, COLUMN_STRING));
+        }
+        Table header = new Table()
+                .ref(0, name)
+                .scalar(2, 1, geometryType)
+                .ref(7, columns)
+                .scalar(8, 8, count)
+                .scalar(9, 2, count > 0 ? NODE_SIZE : 0)
+                .ref(10, crs)
+                .ref(11, title);
+        if (count > 0) {
+            header.ref(1, new double[]{extent.getMinX(), extent.getMinY(), extent.getMaxX(), extent.getMaxY()});
+        }
+        return header;
+    }
+
+    private static byte[] properties(String... values) {
+        int size = 0;
+        for (String value : values) {
+            if (value != null) {
+                size += 2 + 4 + value.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                byte[] bytes = values[i].getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short) i).putInt(bytes.length).put(bytes);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static int geometryType(Geometry geometry) {
+        return switch (geometry) {
+            case Point ignored -> GEOMETRY_POINT;
+            case LineString ignored -> GEOMETRY_LINESTRING;
+            case Polygon ignored -> GEOMETRY_POLYGON;
+            case MultiPoint ignored -> GEOMETRY_MULTIPOINT;
+            case MultiLineString ignored -> GEOMETRY_MULTILINESTRING;
+            case MultiPolygon ignored -> GEOMETRY_MULTIPOLYGON;
+            default -> GEOMETRY_COLLECTION;
+        };
+    }
+
+    /**
+     * Encodes a geometry the way FlatGeobuf lays it out: single geometries and multi points and lines as one
+     * coordinate array with the end index of every ring or line, polygons of multi polygons and members of
+     * collections as parts.
+     */
+    private static Table geometryTable(Geometry geometry) {
+        int type = geometryType(geometry);
+        Table table = new Table().scalar(6, 1, type);
+        if (type == GEOMETRY_MULTIPOLYGON || type == GEOMETRY_COLLECTION) {
+            List<Table> parts = new ArrayList<>(geometry.getNumGeometries());
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                if (!geometry.getGeometryN(i).isEmpty()) {
+                    parts.add(geometryTable(geometry.getGeometryN(i)));
+                }
+            }
+            return table.ref(7, parts);
+        }
+
+        List<CoordinateSequence> sequences = new ArrayList<>();
+        if (geometry instanceof Polygon polygon) {
+            sequences.add(polygon.getExteriorRing().getCoordinateSequence());
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                sequences.add(polygon.getInteriorRingN(i).getCoordinateSequence());
+            }
+        } else if (geometry instanceof Point point) {
+            sequences.add(point.getCoordinateSequence());
+        } else {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                Geometry member = geometry.getGeometryN(i);
+                if (member instanceof Point point) {
+                    sequences.add(point.getCoordinateSequence());
+                } else if (member instanceof LineString line) {
+                    sequences.add(line.getCoordinateSequence());
+                }
+            }
+        }
+
+        int vertices = 0;
+        for (CoordinateSequence sequence : sequences) {
+            vertices += sequence.size();
+        }
+        double[] xy = new double[vertices * 2];
+        int[] ends = new int[sequences.size()];
+        int vertex = 0;
+        for (int i = 0; i < sequences.size(); i++) {
+            CoordinateSequence sequence = sequences.get(i);
+            for (int j = 0; j < sequence.size(); j++) {
+                xy[vertex * 2] = sequence.getX(j);
+                xy[vertex * 2 + 1] = sequence.getY(j);
+                vertex++;
+            }
+            ends[i] = vertex;
+        }
+        table.ref(1, xy);
+        if (ends.length > 1 && type != GEOMETRY_MULTIPOINT) {
+            table.ref(0, ends);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the positions of the {@code count} boxes (min x, min y, max x, max y) in descending Hilbert order of
+     * their centres, like the reference implementation; boxes with the same Hilbert value keep their order.
+     */
+    private static int[] hilbertOrder(double[] boxes, int count, Envelope extent) {
+        double width = extent.getWidth();
+        double height = extent.getHeight();
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int x = width == 0 ? 0 : (int) Math.floor(
+                    HILBERT_MAX * ((boxes[i * 4] + boxes[i * 4 + 2]) / 2 - extent.getMinX()) / width);
+            int y = height == 0 ? 0 : (int) Math.floor(
+                    HILBERT_MAX * ((boxes[i * 4 + 1] + boxes[i * 4 + 3]) / 2 - extent.getMinY()) / height);
+            // Hilbert value in the high half, inverted position in the low half: ascending order of the unsigned
+            // keys, read backwards, is the descending Hilbert order with ties in their original order.
+            keys[i] = (Integer.toUnsignedLong(hilbert(x, y)) << 32 | (0xFFFFFFFFL - i)) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) (0xFFFFFFFFL - (keys[count - 1 - i] & 0xFFFFFFFFL));
+        }
+        return order;
+    }
+
+    /**
+     * Hilbert index of a cell of a 2^16 x 2^16 grid, after "Fast Hilbert curve generation, sorting, and range
+     * queries" (rawrunprotected), as used by the reference implementation.
+     */
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int aa = a | (b >>> 1);
+        int bb = (a >>> 1) ^ a;
+        int cc = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int dd = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >>> 2)) ^ (b & (b >>> 2));
+        bb = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+        cc ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+        dd ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        aa = (a & (a >>> 4)) ^ (b & (b >>> 4));
+        bb = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+        cc ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+        dd ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+        a = aa;
+        b = bb;
+        c = cc;
+        d = dd;
+        cc ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+        dd ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+        a = cc ^ (cc >>> 1);
+        b = dd ^ (dd >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    /**
+     * Start (inclusive) and end (exclusive) node of every level of a packed R-tree, leaves first. The nodes are
+     * stored root first, so the leaves occupy the end of the index.
+     */
+    private static long[][] levelBounds(long count, int nodeSize) {
+        List<Long> levelNodes = new ArrayList<>();
+        long nodes = count;
+        long total = nodes;
+        levelNodes.add(nodes);
+        do {
+            nodes = (nodes + nodeSize - 1) / nodeSize;
+            total += nodes;
+            levelNodes.add(nodes);
+        } while (nodes != 1);
+
+        long[][] bounds = new long[levelNodes.size()][];
+        long offset = total;
+        for (int i = 0; i < levelNodes.size(); i++) {
+            offset -= levelNodes.get(i);
+            bounds[i] = new long[]{offset, offset + levelNodes.get(i)};
+        }
+        return bounds;
+    }
+
+    /**
+     * Builds the index bottom up. Leaves point to the byte offset of their feature in the feature section, inner
+     * nodes to the position of their first child.
+     */
+    private static byte[] index(double[] featureBoxes, int[] sizes) {
+        long[][] bounds = levelBounds(sizes.length, NODE_SIZE);
+        int total = Math.toIntExact(bounds[0][1]);
+        double[] boxes = new double[total * 4];
+        long[] offsets = new long[total];
+
+        long featureOffset = 0;
+        int leaf = Math.toIntExact(bounds[0][0]);
+        System.arraycopy(featureBoxes, 0, boxes, leaf * 4, featureBoxes.length);
+        for (int size : sizes) {
+            offsets[leaf++] = featureOffset;
+            featureOffset += size;
+        }
+        for (int level = 0; level < bounds.length - 1; level++) {
+            int position = Math.toIntExact(bounds[level][0]);
+            int end = Math.toIntExact(bounds[level][1]);
+            int parent = Math.toIntExact(bounds[level + 1][0]);
+            while (position < end) {
+                offsets[parent] = position;
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < NODE_SIZE && position < end; j++, position++) {
+                    minX = Math.min(minX, boxes[position * 4]);
+                    minY = Math.min(minY, boxes[position * 4 + 1]);
+                    maxX = Math.max(maxX, boxes[position * 4 + 2]);
+                    maxY = Math.max(maxY, boxes[position * 4 + 3]);
+                }
+                boxes[parent * 4] = minX;
+                boxes[parent * 4 + 1] = minY;
+                boxes[parent * 4 + 2] = maxX;
+                boxes[parent * 4 + 3] = maxY;
+                parent++;
+            }
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(total * NODE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < total; i++) {
+            index.putDouble(boxes[i * 4]).putDouble(boxes[i * 4 + 1]).putDouble(boxes[i * 4 + 2])
+                    .putDouble(boxes[i * 4 + 3]).putLong(offsets[i]);
+        }
+        return index.array();
+    }
+
+    /**
+     * Encodes {@code root} as a size-prefixed FlatBuffer.
+     */
+    static byte[] encode(Table root) {
+        Encoder encoder = new Encoder();
+        encoder.skip(8);
+        int table = encoder.table(root);
+        encoder.putInt(4, table - 4);
+        encoder.putInt(0, encoder.size - 4);
+        return Arrays.copyOf(encoder.bytes, encoder.size);
+    }
+
+    /**
+     * A FlatBuffers table under construction. Scalars are given with their size in bytes; references are a
+     * {@link String}, a {@code double[]}, an {@code int[]} of unsigned integers, a {@code byte[]} of unsigned bytes,
+     * a nested {@link Table} or a {@link List} of tables.
+     */
+    static final class Table {
+        private final List<Field> fields = new ArrayList<>();
+
+        Table scalar(int id, int size, long value) {
+            fields.add(new Field(id, size, value, null));
+            return this;
+        }
+
+        Table ref(int id, Object value) {
+            if (value != null) {
+                fields.add(new Field(id, 4, 0, value));
+            }
+            return this;
+        }
+    }
+
+    private record Field(int id, int size, long value, Object reference) {
+    }
+
+    private static final class Encoder {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        private int table(Table table) {
+            List<Field> fields = new ArrayList<>(table.fields);
+            fields.sort(Comparator.comparingInt(Field::size).reversed());
+            int slots = 0;
+            int alignment = 4;
+            int[] offsets = new int[fields.size()];
+            int inline = 4;
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                inline = align(inline, field.size());
+                offsets[i] = inline;
+                inline += field.size();
+                slots = Math.max(slots, field.id() + 1);
+                alignment = Math.max(alignment, field.size());
+            }
+
+            pad(2);
+            int vtable = size;
+            short[] vtableSlots = new short[slots];
+            for (int i = 0; i < fields.size(); i++) {
+                vtableSlots[fields.get(i).id()] = (short) offsets[i];
+            }
+            putShort(4 + 2 * slots);
+            putShort(inline);
+            for (short slot : vtableSlots) {
+                putShort(slot);
+            }
+
+            pad(alignment);
+            int position = size;
+            skip(inline);
+            putInt(position, position - vtable);
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (field.reference() == null) {
+                    putScalar(position + offsets[i], field.size(), field.value());
+                }
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if (field.reference() != null) {
+                    int at = position + offsets[i];
+                    putInt(at, reference(field.reference()) - at);
+                }
+            }
+            return position;
+        }
+
+        private int reference(Object value) {
+            return switch (value) {
+                case Table nested -> table(nested);
+                case String text -> {
+                    byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+                    int position = vector(utf8.length, 1);
+                    put(utf8);
+                    skip(1);
+                    yield position;
+                }
+                case double[] doubles -> {
+                    int position = vector(doubles.length, 8);
+                    for (double element : doubles) {
+                        putScalar(size, 8, Double.doubleToRawLongBits(element));
+                    }
+                    yield position;
+                }
+                case int[] ints -> {
+                    int position = vector(ints.length, 4);
+                    for (int element : ints) {
+                        putScalar(size, 4, element);
+                    }
+                    yield position;
+                }
+                case byte[] raw -> {
+                    int position = vector(raw.length, 1);
+                    put(raw);
+                    yield position;
+                }
+                case List<?> tables -> {
+                    int position = vector(tables.size(), 4);
+                    int first = size;
+                    skip(4 * tables.size());
+                    for (int i = 0; i < tables.size(); i++) {
+                        int at = first + 4 * i;
+                        putInt(at, table((Table) tables.get(i)) - at);
+                    }
+                    yield position;
+                }
+                default -> throw new IllegalArgumentException("Unsupported FlatBuffers value " + value);
+            };
+        }
+
+        /**
+         * Writes the length of a vector so that its elements are aligned and returns the position of the length.
+         */
+        private int vector(int length, int elementSize) {
+            pad(4);
+            while ((size + 4) % elementSize != 0) {
+                skip(4);
+            }
+            int position = size;
+            putScalar(size, 4, length);
+            return position;
+        }
+
+        private void pad(int alignment) {
+            skip(align(size, alignment) - size);
+        }
+
+        private static int align(int value, int alignment) {
+            return (value + alignment - 1) / alignment * alignment;
+        }
+
+        private void skip(int count) {
+            ensure(count);
+            size += count;
+        }
+
+        private void put(byte[] values) {
+            ensure(values.length);
+            System.arraycopy(values, 0, bytes, size, values.length);
+            size += values.length;
+        }
+
+        private void putShort(int value) {
+            putScalar(size, 2, value);
+        }
+
+        private void putInt(int position, int value) {
+            putScalar(position, 4, value);
+        }
+
+        /**
+         * Writes the {@code width} low bytes of {@code value} little-endian at {@code position}, appending if
+         * {@code position} is the current size.
+         */
+        private void putScalar(int position, int width, long value) {
+            if (position == size) {
+                skip(width);
+            }
+            for (int i = 0; i < width; i++) {
+                bytes[position + i] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void ensure(int count) {
+            if (size + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + count));
+            }
+        }
+    }
+}
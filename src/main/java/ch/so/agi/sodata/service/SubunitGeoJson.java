@@ -0,0 +1,184 @@
+package ch.so.agi.sodata.service;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.IOException;
+
+/**
+ * Writes the subunit features of a publication as a GeoJSON FeatureCollection ({@code <identifier>.geojson} next
+ * to the MapML files) for clients without FlatGeobuf support. Clients have to load the whole document, so it is only
+ * written for small layers. As RFC 7946 requires, coordinates are WGS84 longitude and latitude, converted back from
+ * the reprojected Web Mercator geometries and rounded to seven decimals (about a centimetre). Every feature has the
+ * properties {@code id} and {@code title}, like the FlatGeobuf file.
+ */
+final class SubunitGeoJson {
+    static final String SUFFIX = ".geojson";
+
+    private static final double WEB_MERCATOR_RADIUS = 6378137;
+    private static final long SCALE = 10_000_000L;
+    private static final int DECIMALS = 7;
+
+    private SubunitGeoJson() {
+    }
+
+    /**
+     * Writes the features of {@code store} in file order, decoding one at a time.
+     */
+    static void write(MapMlOutput output, SubunitFeatureStore.Mapped store) throws IOException {
+        StringBuilder out = output.buffer();
+        out.append("{\"type\":\"FeatureCollection\",\"features\":[");
+        boolean first = true;
+        for (int i = 0; i < store.size(); i++) {
+            SubunitMapMlService.SubunitFeature feature = store.feature(i);
+            Geometry geometry = feature.geometry();
+            String id = feature.itemIdentifier() != null ? feature.itemIdentifier() : feature.featureId();
+            out.append(first ? "\n" : ",\n");
+            first = false;
+            out.append("{\"type\":\"Feature\"");
+            if (id != null) {
+                appendString(out.append(",\"id\":"), id);
+            }
+            appendString(out.append(",\"properties\":{\"id\":"), id);
+            appendString(out.append(",\"title\":"), feature.title());
+            out.append("},\"geometry\":");
+            appendGeometry(geometry, out);
+            out.append('}');
+            output.flushIfFull();
+        }
+        out.append("\n]}\n");
+    }
+
+    private static void appendGeometry(Geometry geometry, StringBuilder out) {
+        switch (geometry) {
+            case Point point -> {
+                out.append("{\"type\":\"Point\",\"coordinates\":");
+                appendPosition(point.getCoordinateSequence(), 0, out);
+            }
+            case LineString line -> {
+                out.append("{\"type\":\"LineString\",\"coordinates\":");
+                appendPositions(line.getCoordinateSequence(), out);
+            }
+            case Polygon polygon -> {
+                out.append("{\"type\":\"Polygon\",\"coordinates\":");
+                appendRings(polygon, out);
+            }
+            case MultiPoint multiPoint -> {
+                out.append("{\"type\":\"MultiPoint\",\"coordinates\":[");
+                for (int i = 0; i < multiPoint.getNumGeometries(); i++) {
+                    appendPosition(((Point) multiPoint.getGeometryN(i)).getCoordinateSequence(), 0,
+                            i > 0 ? out.append(',') : out);
+                }
+                out.append(']');
+            }
+            case MultiLineString multiLine -> {
+                out.append("{\"type\":\"MultiLineString\",\"coordinates\":[");
+                for (int i = 0; i < multiLine.getNumGeometries(); i++) {
+                    appendPositions(((LineString) multiLine.getGeometryN(i)).getCoordinateSequence(),
+                            i > 0 ? out.append(',') : out);
+                }
+                out.append(']');
+            }
+            case MultiPolygon multiPolygon -> {
+                out.append("{\"type\":\"MultiPolygon\",\"coordinates\":[");
+                for (int i = 0; i < multiPolygon.getNumGeometries(); i++) {
+                    appendRings((Polygon) multiPolygon.getGeometryN(i), i > 0 ? out.append(',') : out);
+                }
+                out.append(']');
+            }
+            case GeometryCollection collection -> {
+                out.append("{\"type\":\"GeometryCollection\",\"geometries\":[");
+                for (int i = 0; i < collection.getNumGeometries(); i++) {
+                    appendGeometry(collection.getGeometryN(i), i > 0 ? out.append(',') : out);
+                }
+                out.append(']');
+            }
+            default -> throw new IllegalArgumentException("Unsupported geometry " + geometry.getGeometryType());
+        }
+        out.append('}');
+    }
+
+    private static void appendRings(Polygon polygon, StringBuilder out) {
+        out.append('[');
+        appendPositions(polygon.getExteriorRing().getCoordinateSequence(), out);
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            appendPositions(polygon.getInteriorRingN(i).getCoordinateSequence(), out.append(','));
+        }
+        out.append(']');
+    }
+
+    private static void appendPositions(CoordinateSequence sequence, StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < sequence.size(); i++) {
+            appendPosition(sequence, i, i > 0 ? out.append(',') : out);
+        }
+        out.append(']');
+    }
+
+    private static void appendPosition(CoordinateSequence sequence, int index, StringBuilder out) {
+        double longitude = Math.toDegrees(sequence.getX(index) / WEB_MERCATOR_RADIUS);
+        double latitude = Math.toDegrees(2 * Math.atan(Math.exp(sequence.getY(index) / WEB_MERCATOR_RADIUS))
+                - Math.PI / 2);
+        appendDegrees(longitude, out.append('['));
+        appendDegrees(latitude, out.append(',')).append(']');
+    }
+
+    /**
+     * Writes {@code value} rounded to {@value #DECIMALS} decimals without trailing zeros.
+     */
+    private static StringBuilder appendDegrees(double value, StringBuilder out) {
+        long rounded = Math.round(value * SCALE);
+        if (rounded < 0) {
+            out.append('-');
+            rounded = -rounded;
+        }
+        out.append(rounded / SCALE);
+        long fraction = rounded % SCALE;
+        if (fraction == 0) {
+            return out;
+        }
+        int digits = DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        out.append('.');
+        for (long power = (long) Math.pow(10, digits - 1); power > fraction; power /= 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+}
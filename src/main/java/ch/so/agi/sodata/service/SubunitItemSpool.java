@@ -0,0 +1,113 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.domain.Item;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-publication file with the items of a publication as parsed ({@code <identifier>.items.bin}), written by a
+ * refresh with lazy MapML generation instead of the subunit files. {@link SubunitLayerGenerator} writes the files
+ * from it when the publication is first requested, so the geometries come from the same parse as the indexed
+ * catalog without being held on the heap. Items are appended as they arrive, with their identifier, title and WKT
+ * geometry as length-prefixed UTF-8; closing the writer appends an end marker.
+ */
+final class SubunitItemSpool {
+    static final String SUFFIX = ".items.bin";
+
+    private static final int MAGIC = 0x53444953;
+    private static final int FORMAT_VERSION = 1;
+    private static final int NULL = -1;
+
+    private SubunitItemSpool() {
+    }
+
+    static Writer open(Path path) throws IOException {
+        return new Writer(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path))));
+    }
+
+    /**
+     * Reads the items of a spool. Only the identifier, the title and the geometry are restored.
+     */
+    static List<Item> read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a subunit item spool: " + path);
+            }
+            List<Item> items = new ArrayList<>();
+            while (in.readBoolean()) {
+                items.add(new Item(readString(in), readString(in), null, null, null, readString(in)));
+            }
+            return items;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private int count;
+        private boolean closed;
+
+        private Writer(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        void append(Item item) throws IOException {
+            out.writeBoolean(true);
+            writeString(item.identifier());
+            writeString(item.title());
+            writeString(item.geometry());
+            count++;
+        }
+
+        int size() {
+            return count;
+        }
+
+        /**
+         * Appends the end marker and closes the file; later calls do nothing.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.writeBoolean(false);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NULL);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.BootstrapProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the MapML files and the feature store of a publication on demand when {@code mapml.generation} is lazy.
+ * The files are written from the item spool the refresh wrote next to the new catalog and the metadata of the
+ * publication in the catalog, so they always match the indexed publication. Runs execute on virtual threads of the
+ * generator, never on the request thread, and are single-flight per publication and catalog generation: the first
+ * caller starts a run, concurrent callers wait for it. A run for a newer catalog generation starts once the
+ * previous run of the publication has finished, so two runs never write the same files at once.
+ */
+@Service
+public class SubunitLayerGenerator {
+    private static final Logger log = LoggerFactory.getLogger(SubunitLayerGenerator.class);
+
+    private final ItemsMapMlWriter itemsMapMlWriter;
+    private final ThemePublicationCatalog catalog;
+    private final List<String> prefetch;
+    private final boolean enabled;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("subunit-generation-", 0).factory());
+
+    public SubunitLayerGenerator(
+            ItemsMapMlWriter itemsMapMlWriter,
+            ThemePublicationCatalog catalog,
+            MapMlProperties mapMlProperties,
+            BootstrapProperties bootstrapProperties
+    ) {
+        this.itemsMapMlWriter = itemsMapMlWriter;
+        this.catalog = catalog;
+        this.prefetch = bootstrapProperties.prefetch();
+        this.enabled = mapMlProperties.generation() == MapMlProperties.Generation.LAZY;
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns once the files of the publication have been written for the current catalog generation. Does nothing
+     * if generation is eager.
+     */
+    public void ensure(String identifier) throws IOException {
+        try {
+            generate(identifier).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException unchecked) {
+                cause = unchecked.getCause();
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Could not generate the subunit files of " + identifier, cause);
+        }
+    }
+
+    /**
+     * Starts writing the files of the publication for the current catalog generation unless a run has already been
+     * started, and returns that run. A failed run is replaced by the next call.
+     */
+    public CompletableFuture<Void> generate(String identifier) {
+        if (!enabled || identifier == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long generation = catalog.generation();
+        return flights.compute(identifier, (key, current) ->
+                current != null && current.generation() >= generation && !current.done().isCompletedExceptionally()
+                        ? current
+                        : new Flight(generation, schedule(identifier, current))).done();
+    }
+
+    /**
+     * Generates the files of the publications listed in {@code bootstrap.prefetch} one after another on a background
+     * thread.
+     */
+    public void prefetch() {
+        if (!enabled || prefetch.isEmpty()) {
+            return;
+        }
+        Thread.ofVirtual().name("subunit-prefetch").start(() -> {
+            for (String identifier : prefetch) {
+                try {
+                    ensure(identifier);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not prefetch the subunit files of {}", identifier, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the finished runs of earlier catalog generations. Called by a refresh after it has published the new
+     * catalog; runs that are still in progress are kept, so the next run of their publication waits for them.
+     */
+    public void reset() {
+        if (!enabled) {
+            return;
+        }
+        long generation = catalog.generation();
+        flights.values().removeIf(flight -> flight.generation() < generation && flight.done().isDone());
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private CompletableFuture<Void> schedule(String identifier, Flight previous) {
+        CompletableFuture<?> after = previous == null
+                ? CompletableFuture.completedFuture(null)
+                : previous.done().exceptionally(e -> null);
+        return after.thenRunAsync(() -> write(identifier), executor);
+    }
+
+    private void write(String identifier) {
+        Optional<ThemePublication> publication = catalog.findByIdentifier(identifier);
+        if (publication.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int written;
+        try {
+            written = itemsMapMlWriter.writeSpooledFiles(publication.get());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (written > 0) {
+            log.info("Generated {} subunit files for {} in {} ms.",
+                    written, identifier, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private record Flight(long generation, CompletableFuture<Void> done) {
+    }
+}
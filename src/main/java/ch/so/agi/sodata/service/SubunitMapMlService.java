@@ -1,7 +1,8 @@
 package ch.so.agi.sodata.service;
 
+import ch.so.agi.sodata.config.MapMlProperties;
 import ch.so.agi.sodata.domain.ThemePublication;
-import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.LineString;
@@ -12,23 +13,84 @@ import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.Locale;
 
+/**
+ * Serializes subunits as MapML. The documents do not depend on the file format: every feature links to
+ * {@link #downloadPath(String, String)}, which redirects to the download of the format chosen by the client, so one
+ * document per publication serves all formats.
+ */
 @Service
 public class SubunitMapMlService {
     private static final String GEOMETRY_CLASS = "subunit-geometry";
+    private static final String DOWNLOAD_PATH_PREFIX = "/themepublication/data/";
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+    /** Scaled values beyond this are no longer exact in a {@code double} and are written unrounded. */
+    private static final double MAX_EXACT_SCALED = 0x1p53;
+    private static final int MIN_LINE_POINTS = 2;
+    private static final int MIN_RING_POINTS = 4;
+
+    private final int precision;
+    private final double scale;
+
+    public SubunitMapMlService(MapMlProperties mapMlProperties) {
+        this.precision = mapMlProperties.coordinatePrecision();
+        this.scale = precision >= 0 ? POWERS_OF_TEN[precision] : 1;
+    }
 
-    public String toMapMl(ThemePublication publication, String format, List<SubunitFeature> features) {
+    public String toMapMl(ThemePublication publication, List<SubunitFeature> features) {
+        StringBuilder mapml = new StringBuilder();
+        appendHeader(mapml, publication);
+        if (features != null) {
+            for (SubunitFeature feature : features) {
+                appendFeature(mapml, publication, feature);
+            }
+        }
+        appendFooter(mapml);
+        return mapml.toString();
+    }
+
+    /**
+     * Writes the same document as {@link #toMapMl(ThemePublication, List)} to {@code writer} through a bounded,
+     * reusable buffer. The writer is flushed but not closed.
+     */
+    public void writeMapMl(ThemePublication publication, List<SubunitFeature> features, Writer writer)
+            throws IOException {
+        MapMlOutput output = new MapMlOutput(writer);
+        writeMapMl(publication, features, output);
+        output.flush();
+    }
+
+    void writeMapMl(ThemePublication publication, List<SubunitFeature> features, MapMlOutput output)
+            throws IOException {
+        appendHeader(output.buffer(), publication);
+        if (features != null) {
+            for (SubunitFeature feature : features) {
+                appendFeature(output.buffer(), publication, feature);
+                output.flushIfFull();
+            }
+        }
+        appendFooter(output.buffer());
+    }
+
+    /**
+     * Appends everything up to and including the opening {@code map-body}. Together with
+     * {@link #appendFeature(StringBuilder, ThemePublication, SubunitFeature)} and
+     * {@link #appendFooter(StringBuilder)} this lets callers write a document feature by feature.
+     */
+    void appendHeader(StringBuilder mapml, ThemePublication publication) {
         String layerLabel = firstNonBlank(publication.title(), publication.identifier(), "Subunits") + " (Subunits)";
 
-        StringBuilder mapml = new StringBuilder();
         mapml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
         mapml.append("<mapml- lang=\"de\" xmlns=\"http://www.w3.org/1999/xhtml\">\n");
         mapml.append("  <map-head>\n");
-        mapml.append("    <map-title>").append(escapeXml(layerLabel)).append("</map-title>\n");
+        appendEscaped(mapml.append("    <map-title>"), layerLabel).append("</map-title>\n");
         mapml.append("    <map-meta http-equiv=\"Content-Type\" content=\"text/mapml;charset=UTF-8\" />\n");
         mapml.append("    <map-meta charset=\"utf-8\" />\n");
         mapml.append("    <map-meta name=\"projection\" content=\"OSMTILE\" />\n");
@@ -45,62 +107,60 @@ public class SubunitMapMlService {
                 .append(":active { stroke: #1f6fd6 !important; stroke-width: 3px !important; fill: #ffffff !important; fill-opacity: 0.1 !important; }</map-style>\n");
         mapml.append("  </map-head>\n");
         mapml.append("  <map-body>\n");
-        appendFeatures(mapml, publication, format, features);
+    }
+
+    void appendFooter(StringBuilder mapml) {
         mapml.append("  </map-body>\n");
         mapml.append("</mapml->\n");
-        return mapml.toString();
     }
 
-    private void appendFeatures(StringBuilder mapml, ThemePublication publication, String format, List<SubunitFeature> features) {
-        if (features == null || features.isEmpty()) {
-            return;
+    /**
+     * Appends a single {@code map-feature}. Returns {@code false} and appends nothing if the feature has no usable
+     * geometry.
+     */
+    boolean appendFeature(StringBuilder mapml, ThemePublication publication, SubunitFeature feature) {
+        if (feature == null || feature.geometry() == null || feature.geometry().isEmpty()) {
+            return false;
         }
 
-        for (SubunitFeature feature : features) {
-            if (feature == null) {
-                continue;
-            }
-
-            StringBuilder geometryMarkup = new StringBuilder();
-            if (!appendGeometry(feature.geometry(), geometryMarkup)) {
-                continue;
-            }
-
-            String itemIdentifier = firstNonBlank(feature.itemIdentifier(), feature.featureId());
-            String featureTitle = firstNonBlank(feature.title(), itemIdentifier, "Subunit");
-            String featureId = firstNonBlank(feature.featureId(), itemIdentifier);
-            String downloadUrl = buildDownloadUrl(publication, itemIdentifier, format);
+        String itemIdentifier = firstNonBlank(feature.itemIdentifier(), feature.featureId());
+        String featureTitle = firstNonBlank(feature.title(), itemIdentifier, "Subunit");
+        String featureId = firstNonBlank(feature.featureId(), itemIdentifier);
 
-            mapml.append("    <map-feature");
-            if (featureId != null) {
-                mapml.append(" id=\"").append(escapeXml(featureId)).append("\"");
-            }
-            mapml.append(">\n");
-            mapml.append("      <map-featurecaption>").append(escapeXml(featureTitle)).append("</map-featurecaption>\n");
-            mapml.append("      <map-geometry cs=\"pcrs\">\n");
-            mapml.append(geometryMarkup);
-            mapml.append("      </map-geometry>\n");
-            mapml.append("      <map-properties>\n");
-            mapml.append("        <div>\n");
-            mapml.append("          <p><strong>Subunit:</strong> ").append(escapeXml(featureTitle)).append("</p>\n");
-            if (itemIdentifier != null) {
-                mapml.append("          <p><strong>Identifier:</strong> ")
-                        .append(escapeXml(itemIdentifier))
-                        .append("</p>\n");
-            }
-            if (downloadUrl != null) {
-                mapml.append("          <p><a href=\"")
-                        .append(escapeXml(downloadUrl))
-                        .append("\" target=\"_blank\" rel=\"noopener noreferrer\">Download ")
-                        .append(escapeXml(format.toUpperCase(Locale.ROOT)))
-                        .append("</a></p>\n");
-            }
-            mapml.append("        </div>\n");
-            mapml.append("      </map-properties>\n");
-            mapml.append("    </map-feature>\n");
+        int mark = mapml.length();
+        mapml.append("    <map-feature");
+        if (featureId != null) {
+            appendEscaped(mapml.append(" id=\""), featureId).append('"');
         }
+        mapml.append(">\n");
+        appendEscaped(mapml.append("      <map-featurecaption>"), featureTitle).append("</map-featurecaption>\n");
+        mapml.append("      <map-geometry cs=\"pcrs\">\n");
+        if (!appendGeometry(feature.geometry(), mapml)) {
+            mapml.setLength(mark);
+            return false;
+        }
+        mapml.append("      </map-geometry>\n");
+        mapml.append("      <map-properties>\n");
+        mapml.append("        <div>\n");
+        appendEscaped(mapml.append("          <p><strong>Subunit:</strong> "), featureTitle).append("</p>\n");
+        if (itemIdentifier != null) {
+            appendEscaped(mapml.append("          <p><strong>Identifier:</strong> "), itemIdentifier)
+                    .append("</p>\n");
+        }
+        if (!isBlank(publication.downloadHostUrl()) && !isBlank(publication.identifier()) && itemIdentifier != null) {
+            String downloadPath = downloadPath(publication.identifier(), itemIdentifier);
+            appendEscaped(mapml.append("          <p><a href=\""), downloadPath)
+                    .append("\" target=\"_blank\" rel=\"noopener noreferrer\">Download</a></p>\n");
+        }
+        mapml.append("        </div>\n");
+        mapml.append("      </map-properties>\n");
+        mapml.append("    </map-feature>\n");
+        return true;
     }
 
+    // The geometry writers append straight into the document buffer and truncate it back to their mark when a
+    // geometry turns out to have no usable coordinates, so no intermediate builders or strings are needed.
+
     private boolean appendGeometry(Geometry geometry, StringBuilder out) {
         if (geometry == null || geometry.isEmpty()) {
             return false;
@@ -132,207 +192,252 @@ public class SubunitMapMlService {
     }
 
     private boolean appendPoint(Point point, StringBuilder out) {
-        String pair = coordinatePair(point.getCoordinate());
-        if (pair == null) {
+        CoordinateSequence sequence = point.getCoordinateSequence();
+        if (sequence.size() == 0 || !isFinite(sequence, 0)) {
             return false;
         }
         out.append("        <map-point class=\"")
                 .append(GEOMETRY_CLASS)
-                .append("\"><map-coordinates>")
-                .append(pair)
+                .append("\"><map-coordinates>");
+        appendVertex(sequence.getX(0), sequence.getY(0), out)
                 .append("</map-coordinates></map-point>\n");
         return true;
     }
 
     private boolean appendMultiPoint(MultiPoint multiPoint, StringBuilder out) {
-        StringBuilder coordinateText = new StringBuilder();
+        int mark = out.length();
+        out.append("        <map-multipoint class=\"")
+                .append(GEOMETRY_CLASS)
+                .append("\"><map-coordinates>");
         int validCount = 0;
         for (int i = 0; i < multiPoint.getNumGeometries(); i++) {
-            Point point = (Point) multiPoint.getGeometryN(i);
-            String pair = coordinatePair(point.getCoordinate());
-            if (pair == null) {
+            CoordinateSequence sequence = ((Point) multiPoint.getGeometryN(i)).getCoordinateSequence();
+            if (sequence.size() == 0 || !isFinite(sequence, 0)) {
                 continue;
             }
             if (validCount > 0) {
-                coordinateText.append(' ');
+                out.append(' ');
             }
-            coordinateText.append(pair);
+            appendVertex(sequence.getX(0), sequence.getY(0), out);
             validCount++;
         }
         if (validCount == 0) {
+            out.setLength(mark);
             return false;
         }
 
-        out.append("        <map-multipoint class=\"")
-                .append(GEOMETRY_CLASS)
-                .append("\"><map-coordinates>")
-                .append(coordinateText)
-                .append("</map-coordinates></map-multipoint>\n");
+        out.append("</map-coordinates></map-multipoint>\n");
         return true;
     }
 
     private boolean appendLineString(LineString lineString, StringBuilder out) {
-        String line = lineCoordinates(lineString.getCoordinates());
-        if (line == null) {
-            return false;
-        }
+        int mark = out.length();
         out.append("        <map-linestring class=\"")
                 .append(GEOMETRY_CLASS)
-                .append("\"><map-coordinates>")
-                .append(line)
-                .append("</map-coordinates></map-linestring>\n");
+                .append("\"><map-coordinates>");
+        if (!appendLine(lineString.getCoordinateSequence(), MIN_LINE_POINTS, out)) {
+            out.setLength(mark);
+            return false;
+        }
+        out.append("</map-coordinates></map-linestring>\n");
         return true;
     }
 
     private boolean appendMultiLineString(MultiLineString multiLineString, StringBuilder out) {
-        StringBuilder content = new StringBuilder();
+        int mark = out.length();
+        out.append("        <map-multilinestring class=\"")
+                .append(GEOMETRY_CLASS)
+                .append("\">\n");
         int validLines = 0;
         for (int i = 0; i < multiLineString.getNumGeometries(); i++) {
             LineString lineString = (LineString) multiLineString.getGeometryN(i);
-            String line = lineCoordinates(lineString.getCoordinates());
-            if (line == null) {
-                continue;
+            if (appendCoordinates(lineString.getCoordinateSequence(), MIN_LINE_POINTS, "          ", out)) {
+                validLines++;
             }
-            content.append("          <map-coordinates>")
-                    .append(line)
-                    .append("</map-coordinates>\n");
-            validLines++;
         }
         if (validLines == 0) {
+            out.setLength(mark);
             return false;
         }
 
-        out.append("        <map-multilinestring class=\"")
-                .append(GEOMETRY_CLASS)
-                .append("\">\n")
-                .append(content)
-                .append("        </map-multilinestring>\n");
+        out.append("        </map-multilinestring>\n");
         return true;
     }
 
     private boolean appendPolygon(Polygon polygon, StringBuilder out) {
-        StringBuilder rings = new StringBuilder();
-        int validRings = appendPolygonRings(polygon, "          ", rings);
-        if (validRings == 0) {
+        int mark = out.length();
+        out.append("        <map-polygon class=\"")
+                .append(GEOMETRY_CLASS)
+                .append("\">\n");
+        if (appendPolygonRings(polygon, "          ", out) == 0) {
+            out.setLength(mark);
             return false;
         }
 
-        out.append("        <map-polygon class=\"")
-                .append(GEOMETRY_CLASS)
-                .append("\">\n")
-                .append(rings)
-                .append("        </map-polygon>\n");
+        out.append("        </map-polygon>\n");
         return true;
     }
 
     private boolean appendMultiPolygon(MultiPolygon multiPolygon, StringBuilder out) {
-        StringBuilder polygons = new StringBuilder();
+        int mark = out.length();
+        out.append("        <map-multipolygon class=\"")
+                .append(GEOMETRY_CLASS)
+                .append("\">\n");
         int validPolygons = 0;
         for (int i = 0; i < multiPolygon.getNumGeometries(); i++) {
             Polygon polygon = (Polygon) multiPolygon.getGeometryN(i);
-            StringBuilder polygonContent = new StringBuilder();
-            if (appendPolygonRings(polygon, "            ", polygonContent) == 0) {
+            int polygonMark = out.length();
+            out.append("          <map-polygon class=\"")
+                    .append(GEOMETRY_CLASS)
+                    .append("\">\n");
+            if (appendPolygonRings(polygon, "            ", out) == 0) {
+                out.setLength(polygonMark);
                 continue;
             }
-            polygons.append("          <map-polygon class=\"")
-                    .append(GEOMETRY_CLASS)
-                    .append("\">\n")
-                    .append(polygonContent)
-                    .append("          </map-polygon>\n");
+            out.append("          </map-polygon>\n");
             validPolygons++;
         }
         if (validPolygons == 0) {
+            out.setLength(mark);
             return false;
         }
 
-        out.append("        <map-multipolygon class=\"")
-                .append(GEOMETRY_CLASS)
-                .append("\">\n")
-                .append(polygons)
-                .append("        </map-multipolygon>\n");
+        out.append("        </map-multipolygon>\n");
         return true;
     }
 
     private int appendPolygonRings(Polygon polygon, String indent, StringBuilder out) {
         int validRings = 0;
-
-        String exterior = lineCoordinates(polygon.getExteriorRing().getCoordinates());
-        if (exterior != null) {
-            out.append(indent).append("<map-coordinates>")
-                    .append(exterior)
-                    .append("</map-coordinates>\n");
+        if (appendCoordinates(polygon.getExteriorRing().getCoordinateSequence(), MIN_RING_POINTS, indent, out)) {
             validRings++;
         }
-
         for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
-            String interior = lineCoordinates(polygon.getInteriorRingN(i).getCoordinates());
-            if (interior == null) {
-                continue;
+            if (appendCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence(), MIN_RING_POINTS, indent, out)) {
+                validRings++;
             }
-            out.append(indent).append("<map-coordinates>")
-                    .append(interior)
-                    .append("</map-coordinates>\n");
-            validRings++;
         }
-
         return validRings;
     }
 
     private boolean appendGeometryCollection(GeometryCollection geometryCollection, StringBuilder out) {
-        StringBuilder children = new StringBuilder();
+        int mark = out.length();
+        out.append("        <map-geometrycollection>\n");
         int validChildren = 0;
         for (int i = 0; i < geometryCollection.getNumGeometries(); i++) {
-            StringBuilder child = new StringBuilder();
-            if (!appendGeometry(geometryCollection.getGeometryN(i), child)) {
-                continue;
+            if (appendGeometry(geometryCollection.getGeometryN(i), out)) {
+                validChildren++;
             }
-            children.append(child);
-            validChildren++;
         }
         if (validChildren == 0) {
+            out.setLength(mark);
             return false;
         }
 
-        out.append("        <map-geometrycollection>\n")
-                .append(children)
-                .append("        </map-geometrycollection>\n");
+        out.append("        </map-geometrycollection>\n");
         return true;
     }
 
-    private String lineCoordinates(Coordinate[] coordinates) {
-        if (coordinates == null || coordinates.length == 0) {
-            return null;
+    private boolean appendCoordinates(CoordinateSequence sequence, int minPoints, String indent, StringBuilder out) {
+        int mark = out.length();
+        out.append(indent).append("<map-coordinates>");
+        if (!appendLine(sequence, minPoints, out)) {
+            out.setLength(mark);
+            return false;
         }
+        out.append("</map-coordinates>\n");
+        return true;
+    }
 
-        StringBuilder line = new StringBuilder();
+    /**
+     * Appends the finite coordinates of {@code sequence}, skipping vertices that coincide with their predecessor
+     * once rounded to the configured precision. Returns {@code false} if fewer than {@code minPoints} remain, in
+     * which case the caller rolls back.
+     */
+    private boolean appendLine(CoordinateSequence sequence, int minPoints, StringBuilder out) {
+        if (sequence == null) {
+            return false;
+        }
         int validPoints = 0;
-        for (Coordinate coordinate : coordinates) {
-            String pair = coordinatePair(coordinate);
-            if (pair == null) {
+        long lastX = 0;
+        long lastY = 0;
+        for (int i = 0; i < sequence.size(); i++) {
+            double x = sequence.getX(i);
+            double y = sequence.getY(i);
+            if (!Double.isFinite(x) || !Double.isFinite(y)) {
                 continue;
             }
+            if (precision >= 0) {
+                long roundedX = Math.round(x * scale);
+                long roundedY = Math.round(y * scale);
+                if (validPoints > 0 && roundedX == lastX && roundedY == lastY) {
+                    continue;
+                }
+                lastX = roundedX;
+                lastY = roundedY;
+            }
             if (validPoints > 0) {
-                line.append(' ');
+                out.append(' ');
             }
-            line.append(pair);
+            appendVertex(x, y, out);
             validPoints++;
         }
+        return validPoints >= minPoints;
+    }
 
-        return validPoints >= 2 ? line.toString() : null;
+    private static boolean isFinite(CoordinateSequence sequence, int index) {
+        return Double.isFinite(sequence.getX(index)) && Double.isFinite(sequence.getY(index));
     }
 
-    private String coordinatePair(Coordinate coordinate) {
-        if (coordinate == null || !Double.isFinite(coordinate.x) || !Double.isFinite(coordinate.y)) {
-            return null;
+    private StringBuilder appendVertex(double x, double y, StringBuilder out) {
+        appendOrdinate(x, out).append(' ');
+        return appendOrdinate(y, out);
+    }
+
+    /**
+     * Writes {@code value} rounded to the configured number of decimals without trailing zeros, straight from the
+     * scaled {@code long}, e.g. {@code 2600000.1} instead of {@code 2600000.0999999996}.
+     */
+    StringBuilder appendOrdinate(double value, StringBuilder out) {
+        double scaled = value * scale;
+        if (precision < 0 || !(Math.abs(scaled) < MAX_EXACT_SCALED)) {
+            return out.append(value);
+        }
+        long rounded = Math.round(scaled);
+        if (rounded < 0) {
+            out.append('-');
+            rounded = -rounded;
         }
-        return coordinate.x + " " + coordinate.y;
+        long divisor = POWERS_OF_TEN[precision];
+        out.append(rounded / divisor);
+        long fraction = rounded % divisor;
+        if (fraction == 0) {
+            return out;
+        }
+        int digits = precision;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        out.append('.');
+        for (long power = POWERS_OF_TEN[digits - 1]; power > fraction; power /= 10) {
+            out.append('0');
+        }
+        return out.append(fraction);
+    }
+
+    /**
+     * Path of the endpoint that redirects to the download of an item, relative to the server root.
+     */
+    public static String downloadPath(String identifier, String itemIdentifier) {
+        return DOWNLOAD_PATH_PREFIX + encodePathSegment(identifier) + "/items/" + encodePathSegment(itemIdentifier);
     }
 
-    private String buildDownloadUrl(ThemePublication publication, String itemIdentifier, String format) {
-        if (publication.downloadHostUrl() == null || publication.downloadHostUrl().isBlank()
-                || publication.identifier() == null || publication.identifier().isBlank()
-                || itemIdentifier == null || itemIdentifier.isBlank()
-                || format == null || format.isBlank()) {
+    /**
+     * Returns the download URL of an item in {@code format}, or {@code null} if the publication has no download host.
+     */
+    public String downloadUrl(ThemePublication publication, String itemIdentifier, String format) {
+        if (isBlank(publication.downloadHostUrl()) || isBlank(publication.identifier())
+                || isBlank(itemIdentifier) || isBlank(format)) {
             return null;
         }
 
@@ -343,7 +448,11 @@ public class SubunitMapMlService {
                 + encodePathSegment(itemIdentifier + "." + format);
     }
 
-    private String encodePathSegment(String value) {
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private static String encodePathSegment(String value) {
         return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
     }
 
@@ -359,16 +468,22 @@ public class SubunitMapMlService {
         return null;
     }
 
-    private String escapeXml(String value) {
+    private static StringBuilder appendEscaped(StringBuilder out, String value) {
         if (value == null) {
-            return "";
-        }
-        return value
-                .replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;")
-                .replace("\"", "&quot;")
-                .replace("'", "&apos;");
+            return out;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append("&gt;");
+                case '"' -> out.append("&quot;");
+                case '\'' -> out.append("&apos;");
+                default -> out.append(c);
+            }
+        }
+        return out;
     }
 
     public record SubunitFeature(
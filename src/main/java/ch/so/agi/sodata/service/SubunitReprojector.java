@@ -0,0 +1,179 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.Item;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.proj4j.CRSFactory;
+import org.locationtech.proj4j.CoordinateReferenceSystem;
+import org.locationtech.proj4j.CoordinateTransform;
+import org.locationtech.proj4j.CoordinateTransformFactory;
+import org.locationtech.proj4j.ProjCoordinate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Parses item geometries and reprojects them from LV95 (EPSG:2056) to Web Mercator (EPSG:3857). proj4j transforms
+ * are not thread-safe, so every thread gets its own transform, WKT reader and pair of {@link ProjCoordinate}
+ * buffers. Geometries are read into packed coordinate sequences and transformed in place, so reprojection allocates
+ * nothing per vertex. {@link #buildFeatures(List, Throughput, ForkJoinPool)} processes a batch of items in parallel on
+ * the pool of the caller; its workers keep their transform between batches and runs.
+ * <p>
+ * With {@link MapMlProperties.Reprojection#APPROXIMATE} the proj4j pipeline is replaced by swisstopo's approximate
+ * LV95 to WGS84 formulas ("Approximate formulas for the transformation between Swiss projection coordinates and
+ * WGS84") and an analytic spherical Mercator projection.
+ */
+final class SubunitReprojector {
+    /** Number of items a streaming session collects before reprojecting them as one parallel batch. */
+    static final int BATCH_SIZE = 256;
+
+    private static final Logger log = LoggerFactory.getLogger(SubunitReprojector.class);
+
+    private static final String EPSG_2056_PROJ4 =
+            "+proj=somerc +lat_0=46.95240555555556 +lon_0=7.439583333333333 "
+                    + "+k_0=1 +x_0=2600000 +y_0=1200000 +ellps=bessel "
+                    + "+towgs84=674.374,15.056,405.346,0,0,0,0 +units=m +no_defs";
+    private static final String EPSG_3857_PROJ4 =
+            "+proj=merc +a=6378137 +b=6378137 +lat_ts=0 +lon_0=0 +x_0=0 +y_0=0 "
+                    + "+k=1 +units=m +nadgrids=@null +wktext +no_defs";
+
+    private static final double WEB_MERCATOR_RADIUS = 6378137;
+    /** Converts the 10000" units of the swisstopo formulas to radians. */
+    private static final double UNITS_TO_RADIANS = 100.0 / 36 * Math.PI / 180;
+
+    private final boolean approximate;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+
+    SubunitReprojector(MapMlProperties.Reprojection reprojection) {
+        this.approximate = reprojection == MapMlProperties.Reprojection.APPROXIMATE;
+    }
+
+    /**
+     * Returns the features of {@code items} in their original order, leaving out items without a valid geometry.
+     * The items are reprojected on {@code pool}, never on the common pool or the calling thread, so only the
+     * workers of {@code pool} ever build a transform.
+     */
+    List<SubunitMapMlService.SubunitFeature> buildFeatures(List<Item> items, Throughput throughput,
+                                                           ForkJoinPool pool) {
+        if (ForkJoinTask.getPool() != pool) {
+            return pool.submit(() -> buildFeatures(items, throughput, pool)).join();
+        }
+        long start = System.nanoTime();
+        Stream<Item> stream = items.size() > 1 ? items.parallelStream() : items.stream();
+        List<SubunitMapMlService.SubunitFeature> features = stream
+                .map(item -> workers.get().buildFeature(item, throughput))
+                .filter(Objects::nonNull)
+                .toList();
+        throughput.nanos.add(System.nanoTime() - start);
+        return features;
+    }
+
+    private static CoordinateTransform createTransform() {
+        CRSFactory crsFactory = new CRSFactory();
+        CoordinateReferenceSystem src = crsFactory.createFromParameters("EPSG:2056", EPSG_2056_PROJ4);
+        CoordinateReferenceSystem dst = crsFactory.createFromParameters("EPSG:3857", EPSG_3857_PROJ4);
+        return new CoordinateTransformFactory().createTransform(src, dst);
+    }
+
+    /**
+     * Reprojects the vertex {@code i} of {@code seq} with the approximate formulas.
+     */
+    private static void approximate(CoordinateSequence seq, int i) {
+        double y = (seq.getX(i) - 2_600_000) / 1_000_000;
+        double x = (seq.getY(i) - 1_200_000) / 1_000_000;
+        double y2 = y * y;
+        double x2 = x * x;
+        double lambda = 2.6779094 + 4.728982 * y + 0.791484 * y * x + 0.1306 * y * x2 - 0.0436 * y2 * y;
+        double phi = 16.9023892 + 3.238272 * x - 0.270978 * y2 - 0.002528 * x2 - 0.0447 * y2 * x - 0.0140 * x2 * x;
+        seq.setOrdinate(i, CoordinateSequence.X, WEB_MERCATOR_RADIUS * lambda * UNITS_TO_RADIANS);
+        seq.setOrdinate(i, CoordinateSequence.Y,
+                WEB_MERCATOR_RADIUS * Math.log(Math.tan(Math.PI / 4 + phi * UNITS_TO_RADIANS / 2)));
+    }
+
+    private static String normalizeText(String value) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    /**
+     * Vertices and time spent in {@link #buildFeatures(List, Throughput, ForkJoinPool)} over one run.
+     */
+    static final class Throughput {
+        private final LongAdder vertices = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void log() {
+            long count = vertices.sum();
+            if (count == 0) {
+                return;
+            }
+            long elapsed = Math.max(1, nanos.sum());
+            log.info("Reprojected {} vertices in {} ms ({} vertices/s).",
+                    count, elapsed / 1_000_000, Math.round(count * 1e9 / elapsed));
+        }
+    }
+
+    private final class Worker implements CoordinateSequenceFilter {
+        private final WKTReader reader =
+                new WKTReader(new GeometryFactory(PackedCoordinateSequenceFactory.DOUBLE_FACTORY));
+        private final CoordinateTransform transform = approximate ? null : createTransform();
+        private final ProjCoordinate src = new ProjCoordinate();
+        private final ProjCoordinate dst = new ProjCoordinate();
+
+        private SubunitMapMlService.SubunitFeature buildFeature(Item item, Throughput throughput) {
+            try {
+                if (item.geometry() == null || item.geometry().isBlank()) {
+                    return null;
+                }
+
+                Geometry geometry = reader.read(item.geometry());
+                geometry.apply(this);
+                throughput.vertices.add(geometry.getNumPoints());
+
+                String itemIdentifier = normalizeText(item.identifier());
+                return new SubunitMapMlService.SubunitFeature(
+                        itemIdentifier, itemIdentifier, normalizeText(item.title()), geometry);
+            } catch (Exception e) {
+                log.warn("Failed to create mapml feature for item {}", item.identifier(), e);
+                return null;
+            }
+        }
+
+        @Override
+        public void filter(CoordinateSequence seq, int i) {
+            if (approximate) {
+                approximate(seq, i);
+                return;
+            }
+            src.x = seq.getX(i);
+            src.y = seq.getY(i);
+            transform.transform(src, dst);
+            seq.setOrdinate(i, CoordinateSequence.X, dst.x);
+            seq.setOrdinate(i, CoordinateSequence.Y, dst.y);
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public boolean isGeometryChanged() {
+            return true;
+        }
+    }
+}
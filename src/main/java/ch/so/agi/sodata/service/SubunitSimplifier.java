@@ -0,0 +1,160 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+import org.locationtech.jts.coverage.CoverageSimplifier;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.Puntal;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Computes the simplified levels written next to every full-detail MapML file. Polygonal subunits are simplified
+ * together as a coverage, so borders shared by neighbouring subunits stay identical at every level. Lines, and
+ * coverages the coverage simplifier rejects, fall back to {@link TopologyPreservingSimplifier} per feature. The
+ * coverage simplifier needs the geometries of the whole layer at once, so layers with more than
+ * {@code mapml.coverage-max-features} subunits are simplified feature by feature with {@link #featureLevels}.
+ */
+final class SubunitSimplifier {
+    private static final Logger log = LoggerFactory.getLogger(SubunitSimplifier.class);
+
+    private final List<Integer> zooms;
+    private final double tolerancePixels;
+    private final int coverageMaxFeatures;
+
+    SubunitSimplifier(MapMlProperties mapMlProperties) {
+        this.zooms = mapMlProperties.simplifiedZooms().reversed();
+        this.tolerancePixels = mapMlProperties.simplificationTolerance();
+        this.coverageMaxFeatures = mapMlProperties.coverageMaxFeatures();
+    }
+
+    boolean enabled() {
+        return !zooms.isEmpty();
+    }
+
+    /**
+     * Configured zoom levels, from the most to the least detailed.
+     */
+    List<Integer> zooms() {
+        return zooms;
+    }
+
+    /**
+     * Whether a layer of {@code size} subunits is simplified as a coverage with {@link #levels}.
+     */
+    boolean coverage(int size) {
+        return size <= coverageMaxFeatures;
+    }
+
+    /**
+     * Hands one level per configured zoom to {@code consumer}, from the most to the least detailed. Each level is
+     * derived from the previous one, which keeps the cost close to a single simplification of the full geometries,
+     * and is handed over before the next one is computed, so at most two levels are held at a time.
+     */
+    void levels(
+            String identifier,
+            List<SubunitMapMlService.SubunitFeature> features,
+            Consumer<Level> consumer
+    ) {
+        List<SubunitMapMlService.SubunitFeature> current = features;
+        for (int zoom : zooms) {
+            double tolerance = tolerancePixels * MapMlProperties.resolution(zoom);
+            List<SubunitMapMlService.SubunitFeature> simplified = simplify(current, tolerance);
+            if (log.isDebugEnabled()) {
+                log.debug("Simplified {} subunits of {} for zoom {} (tolerance {} m): {} -> {} vertices.",
+                        features.size(), identifier, zoom, Math.round(tolerance * 100) / 100.0,
+                        vertices(current), vertices(simplified));
+            }
+            consumer.accept(new Level(zoom, simplified));
+            current = simplified;
+        }
+    }
+
+    /**
+     * Returns the simplified copies of a single feature, one per configured zoom in the order of {@link #zooms()}.
+     * Unlike {@link #levels}, borders shared with neighbouring subunits may be simplified differently.
+     */
+    List<SubunitMapMlService.SubunitFeature> featureLevels(SubunitMapMlService.SubunitFeature feature) {
+        List<SubunitMapMlService.SubunitFeature> levels = new ArrayList<>(zooms.size());
+        Geometry geometry = feature.geometry();
+        for (int zoom : zooms) {
+            geometry = simplifyFeature(geometry, tolerancePixels * MapMlProperties.resolution(zoom));
+            levels.add(new SubunitMapMlService.SubunitFeature(
+                    feature.featureId(), feature.itemIdentifier(), feature.title(), geometry));
+        }
+        return levels;
+    }
+
+    List<SubunitMapMlService.SubunitFeature> simplify(
+            List<SubunitMapMlService.SubunitFeature> features,
+            double tolerance
+    ) {
+        Geometry[] simplified = new Geometry[features.size()];
+        List<Integer> polygonal = new ArrayList<>();
+        for (int i = 0; i < features.size(); i++) {
+            Geometry geometry = features.get(i).geometry();
+            if (geometry instanceof Polygonal && !geometry.isEmpty()) {
+                polygonal.add(i);
+            } else {
+                simplified[i] = simplifyFeature(geometry, tolerance);
+            }
+        }
+
+        if (!polygonal.isEmpty()) {
+            Geometry[] coverage = new Geometry[polygonal.size()];
+            for (int i = 0; i < coverage.length; i++) {
+                coverage[i] = features.get(polygonal.get(i)).geometry();
+            }
+            Geometry[] result = simplifyCoverage(coverage, tolerance);
+            for (int i = 0; i < coverage.length; i++) {
+                simplified[polygonal.get(i)] = result[i];
+            }
+        }
+
+        List<SubunitMapMlService.SubunitFeature> result = new ArrayList<>(features.size());
+        for (int i = 0; i < features.size(); i++) {
+            SubunitMapMlService.SubunitFeature feature = features.get(i);
+            result.add(new SubunitMapMlService.SubunitFeature(
+                    feature.featureId(), feature.itemIdentifier(), feature.title(), simplified[i]));
+        }
+        return result;
+    }
+
+    private Geometry[] simplifyCoverage(Geometry[] coverage, double tolerance) {
+        try {
+            return CoverageSimplifier.simplify(coverage, tolerance);
+        } catch (RuntimeException e) {
+            log.debug("Coverage simplification failed, simplifying subunits one by one.", e);
+            Geometry[] result = new Geometry[coverage.length];
+            for (int i = 0; i < coverage.length; i++) {
+                result[i] = simplifyFeature(coverage[i], tolerance);
+            }
+            return result;
+        }
+    }
+
+    private static Geometry simplifyFeature(Geometry geometry, double tolerance) {
+        if (geometry == null || geometry.isEmpty() || geometry instanceof Puntal) {
+            return geometry;
+        }
+        return TopologyPreservingSimplifier.simplify(geometry, tolerance);
+    }
+
+    private static long vertices(List<SubunitMapMlService.SubunitFeature> features) {
+        long vertices = 0;
+        for (SubunitMapMlService.SubunitFeature feature : features) {
+            if (feature.geometry() != null) {
+                vertices += feature.geometry().getNumPoints();
+            }
+        }
+        return vertices;
+    }
+
+    record Level(int zoom, List<SubunitMapMlService.SubunitFeature> features) {
+    }
+}
@@ -0,0 +1,392 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.TileProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Renders the subunits of a publication as MapML tiles in the OSMTILE (Web Mercator) tile grid. The
+ * {@link SubunitFeatureStore} written during the refresh is mapped into memory and its feature envelopes are indexed
+ * in an {@link STRtree}; only the features a tile needs are decoded, clipped to the tile plus a small buffer and
+ * simplified for the tile resolution. Each layer is mapped and indexed once per catalog generation, however many
+ * requests ask for it at the same time. Rendered tiles are kept in an in-memory LRU cache, weighed by the size of
+ * their markup against {@code tiles.memory-cache-size}, and, up to {@code tiles.disk-cache-max-zoom}, below {@code tiles/} in the generation directory of the feature
+ * store, so they are deleted together with their generation. Cache entries are keyed by a version derived from the
+ * feature store and the MapML settings, so a refresh never serves stale tiles. Layers of publications that are no
+ * longer in the catalog are dropped once per catalog generation.
+ */
+@Service
+public class SubunitTileService {
+    private static final Logger log = LoggerFactory.getLogger(SubunitTileService.class);
+
+    /** Half the width of the Web Mercator world in metres. */
+    private static final double ORIGIN_SHIFT = Math.PI * 6378137;
+    private static final int TILE_SIZE = 256;
+    static final String CACHE_DIRECTORY = "tiles";
+
+    private final Path itemsDir;
+    private final TileProperties tileProperties;
+    private final double tolerancePixels;
+    private final SubunitMapMlService subunitMapMlService;
+    private final SubunitSimplifier simplifier;
+    private final ThemePublicationCatalog catalog;
+    private final String settingsVersion;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final ConcurrentHashMap<String, Layer> layers = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Layer> layerLoads = new SingleFlight<>();
+    private final AtomicLong prunedGeneration = new AtomicLong();
+    private final TileCache memoryCache;
+
+    public SubunitTileService(
+            AppProperties appProperties,
+            TileProperties tileProperties,
+            MapMlProperties mapMlProperties,
+            SubunitMapMlService subunitMapMlService,
+            ThemePublicationCatalog catalog
+    ) {
+        this.itemsDir = Path.of(appProperties.itemsGeojsonDir());
+        this.tileProperties = tileProperties;
+        this.tolerancePixels = mapMlProperties.simplificationTolerance();
+        this.subunitMapMlService = subunitMapMlService;
+        this.simplifier = new SubunitSimplifier(mapMlProperties);
+        this.catalog = catalog;
+        this.settingsVersion = Integer.toString(Objects.hash(tileProperties.bufferPixels(),
+                mapMlProperties.coordinatePrecision(), mapMlProperties.simplificationTolerance()) & 0x7fffffff, 36);
+        this.memoryCache = new TileCache(tileProperties.memoryCacheSize().toBytes());
+    }
+
+    public boolean isValidTile(int z, int x, int y) {
+        return z >= 0 && z <= tileProperties.maxZoom() && x >= 0 && y >= 0 && x < (1L << z) && y < (1L << z);
+    }
+
+    /**
+     * Returns the tile, or an empty optional if the publication has no subunits.
+     */
+    public Optional<Tile> tile(ThemePublication publication, int z, int x, int y) throws IOException {
+        if (!isValidTile(z, x, y)) {
+            throw new IllegalArgumentException("Invalid tile " + z + "/" + x + "/" + y);
+        }
+        Layer layer = layer(publication.identifier());
+        if (layer == null) {
+            return Optional.empty();
+        }
+
+        TileKey key = new TileKey(publication.identifier(), layer.version(), z, x, y);
+        Tile tile = memoryCache.get(key);
+        if (tile != null) {
+            return Optional.of(tile);
+        }
+
+        Path cachePath = z <= tileProperties.diskCacheMaxZoom() ? cachePath(layer.cacheDir(), key) : null;
+        if (cachePath != null && Files.isRegularFile(cachePath)) {
+            tile = new Tile(etag(key), Files.readAllBytes(cachePath));
+        } else {
+            tile = new Tile(etag(key), render(publication, layer, z, x, y));
+            if (cachePath != null) {
+                writeCacheFile(cachePath, tile.body());
+            }
+        }
+        memoryCache.put(key, tile);
+        return Optional.of(tile);
+    }
+
+    /**
+     * Renders the tiles from {@code tiles.seed-min-zoom} to {@code tiles.seed-max-zoom} that cover the subunits of
+     * the given publications on a background thread.
+     */
+    public void seed(List<ThemePublication> publications) {
+        if (tileProperties.seedMaxZoom() < 0 || publications.isEmpty()) {
+            return;
+        }
+        List<ThemePublication> snapshot = List.copyOf(publications);
+        Thread.ofVirtual().name("subunit-tile-seed").start(() -> {
+            long start = System.nanoTime();
+            int seeded = 0;
+            for (ThemePublication publication : snapshot) {
+                try {
+                    seeded += seed(publication);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not seed subunit tiles of {}", publication.identifier(), e);
+                }
+            }
+            if (seeded > 0) {
+                log.info("Seeded {} subunit tiles in {} ms.", seeded, (System.nanoTime() - start) / 1_000_000);
+            }
+        });
+    }
+
+    private int seed(ThemePublication publication) throws IOException {
+        if (publication.identifier() == null || !Boolean.TRUE.equals(publication.hasSubunits())) {
+            return 0;
+        }
+        Layer layer = layer(publication.identifier());
+        if (layer == null || layer.extent().isNull()) {
+            return 0;
+        }
+        int seeded = 0;
+        int minZoom = Math.max(0, tileProperties.seedMinZoom());
+        int maxZoom = Math.min(tileProperties.seedMaxZoom(), tileProperties.maxZoom());
+        Envelope extent = layer.extent();
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int minX = column(extent.getMinX(), z);
+            int maxX = column(extent.getMaxX(), z);
+            int minY = row(extent.getMaxY(), z);
+            int maxY = row(extent.getMinY(), z);
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    tile(publication, z, x, y);
+                    seeded++;
+                }
+            }
+        }
+        return seeded;
+    }
+
+    private byte[] render(ThemePublication publication, Layer layer, int z, int x, int y) throws IOException {
+        double size = 2 * ORIGIN_SHIFT / (1L << z);
+        double minX = -ORIGIN_SHIFT + x * size;
+        double maxY = ORIGIN_SHIFT - y * size;
+        double resolution = size / TILE_SIZE;
+        Envelope clipEnvelope = new Envelope(minX, minX + size, maxY - size, maxY);
+        clipEnvelope.expandBy(tileProperties.bufferPixels() * resolution);
+        Geometry clip = geometryFactory.toGeometry(clipEnvelope);
+
+        @SuppressWarnings("unchecked")
+        List<Integer> candidates = new ArrayList<>(layer.index().query(clipEnvelope));
+        candidates.sort(Comparator.naturalOrder());
+        List<SubunitMapMlService.SubunitFeature> features = new ArrayList<>(candidates.size());
+        for (int candidate : candidates) {
+            SubunitMapMlService.SubunitFeature feature = layer.store().feature(candidate);
+            Geometry clipped = clip(feature.geometry(), clip, clipEnvelope);
+            if (clipped != null && !clipped.isEmpty()) {
+                features.add(new SubunitMapMlService.SubunitFeature(
+                        feature.featureId(), feature.itemIdentifier(), feature.title(), clipped));
+            }
+        }
+
+        String mapml = subunitMapMlService.toMapMl(publication,
+                simplifier.simplify(features, tolerancePixels * resolution));
+        return mapml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Geometry clip(Geometry geometry, Geometry clip, Envelope clipEnvelope) {
+        Envelope envelope = geometry.getEnvelopeInternal();
+        if (!clipEnvelope.intersects(envelope)) {
+            return null;
+        }
+        if (clipEnvelope.contains(envelope)) {
+            return geometry;
+        }
+        try {
+            return geometry.intersection(clip);
+        } catch (RuntimeException e) {
+            log.debug("Could not clip subunit geometry, using it unclipped.", e);
+            return geometry;
+        }
+    }
+
+    /**
+     * Returns the mapped and indexed feature store of a publication. The feature store is only checked for changes
+     * once per catalog generation; concurrent requests for the same publication wait for a single load.
+     */
+    private Layer layer(String identifier) throws IOException {
+        if (identifier == null) {
+            return null;
+        }
+        long generation = catalog.generation();
+        Layer current = layers.get(identifier);
+        if (current != null && current.generation() == generation) {
+            return current;
+        }
+        prune(generation);
+        return layerLoads.load(identifier, () -> load(identifier, generation));
+    }
+
+    private Layer load(String identifier, long generation) throws IOException {
+        Layer current = layers.get(identifier);
+        if (current != null && current.generation() >= generation) {
+            return current;
+        }
+
+        Path directory;
+        try {
+            directory = ItemsMapMlWriter.currentDirectory(itemsDir).toRealPath();
+        } catch (NoSuchFileException e) {
+            layers.remove(identifier);
+            return null;
+        }
+        Path storePath = directory.resolve(sanitize(identifier) + SubunitFeatureStore.SUFFIX);
+        Path cacheDir = directory.resolve(CACHE_DIRECTORY);
+        if (!Files.isRegularFile(storePath)) {
+            layers.remove(identifier);
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(storePath, BasicFileAttributes.class);
+        String version = Long.toString(attributes.lastModifiedTime().toMillis(), 36) + "-"
+                + Long.toString(attributes.size(), 36) + "-" + settingsVersion;
+        if (current != null && current.version().equals(version)) {
+            Layer revalidated =
+                    new Layer(generation, version, current.store(), current.index(), current.extent(), cacheDir);
+            layers.put(identifier, revalidated);
+            return revalidated;
+        }
+
+        SubunitFeatureStore.Mapped store = SubunitFeatureStore.map(storePath);
+        STRtree index = new STRtree();
+        Envelope extent = new Envelope();
+        for (int i = 0; i < store.size(); i++) {
+            Envelope envelope = store.envelope(i);
+            index.insert(envelope, i);
+            extent.expandToInclude(envelope);
+        }
+        index.build();
+        Layer layer = new Layer(generation, version, store, index, extent, cacheDir);
+        layers.put(identifier, layer);
+        deleteOtherVersions(cacheDir, identifier, version);
+        log.debug("Indexed {} subunits of {} for tiles.", store.size(), identifier);
+        return layer;
+    }
+
+    /**
+     * Drops the layers of publications that are not in the catalog anymore, once per catalog generation.
+     */
+    private void prune(long generation) {
+        if (prunedGeneration.getAndSet(generation) != generation) {
+            layers.keySet().removeIf(identifier -> catalog.findByIdentifier(identifier).isEmpty());
+        }
+    }
+
+    private static void deleteOtherVersions(Path cacheDir, String identifier, String version) {
+        Path publicationDir = cacheDir.resolve(sanitize(identifier));
+        if (!Files.isDirectory(publicationDir)) {
+            return;
+        }
+        try (Stream<Path> versions = Files.list(publicationDir)) {
+            for (Path versionDir : versions.filter(path -> !path.getFileName().toString().equals(version)).toList()) {
+                try (Stream<Path> walk = Files.walk(versionDir)) {
+                    for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Could not remove outdated tiles of {}", identifier, e);
+        }
+    }
+
+    private static Path cachePath(Path cacheDir, TileKey key) {
+        return cacheDir.resolve(sanitize(key.identifier()))
+                .resolve(key.version())
+                .resolve(Integer.toString(key.z()))
+                .resolve(Integer.toString(key.x()))
+                .resolve(key.y() + ".mapml");
+    }
+
+    private static void writeCacheFile(Path path, byte[] body) {
+        try {
+            Files.createDirectories(path.getParent());
+            Path tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            Files.write(tempPath, body);
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.debug("Could not cache tile {}", path, e);
+        }
+    }
+
+    private static String etag(TileKey key) {
+        return "\"" + key.version() + "-" + key.z() + "-" + key.x() + "-" + key.y() + "\"";
+    }
+
+    private static int column(double x, int z) {
+        int tiles = 1 << z;
+        return Math.clamp((long) Math.floor((x + ORIGIN_SHIFT) / (2 * ORIGIN_SHIFT) * tiles), 0, tiles - 1);
+    }
+
+    private static int row(double y, int z) {
+        int tiles = 1 << z;
+        return Math.clamp((long) Math.floor((ORIGIN_SHIFT - y) / (2 * ORIGIN_SHIFT) * tiles), 0, tiles - 1);
+    }
+
+    private static String sanitize(String value) {
+        return value.replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
+    public record Tile(String etag, byte[] body) {
+    }
+
+    /**
+     * LRU cache of rendered tiles, weighed by the length of their body. A tile larger than the whole budget is not
+     * cached.
+     */
+    private static final class TileCache {
+        private final long maxBytes;
+        private final Map<TileKey, Tile> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long residentBytes;
+
+        private TileCache(long maxBytes) {
+            this.maxBytes = Math.max(maxBytes, 0);
+        }
+
+        synchronized Tile get(TileKey key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(TileKey key, Tile tile) {
+            if (tile.body().length > maxBytes) {
+                return;
+            }
+            Tile previous = entries.put(key, tile);
+            residentBytes += tile.body().length - (previous == null ? 0 : previous.body().length);
+            Iterator<Tile> iterator = entries.values().iterator();
+            while (residentBytes > maxBytes && iterator.hasNext()) {
+                residentBytes -= iterator.next().body().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private record TileKey(String identifier, String version, int z, int x, int y) {
+    }
+
+    private record Layer(
+            long generation,
+            String version,
+            SubunitFeatureStore.Mapped store,
+            STRtree index,
+            Envelope extent,
+            Path cacheDir
+    ) {
+    }
+}
@@ -1,37 +1,49 @@
 package ch.so.agi.sodata.service;
 
-import ch.so.agi.sodata.domain.ThemePublication;
+import ch.so.agi.sodata.config.BootstrapProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-
 @Component
+@Order(ThemePublicationBootstrap.ORDER)
 public class ThemePublicationBootstrap implements ApplicationRunner {
+    static final int ORDER = 0;
+
     private static final Logger log = LoggerFactory.getLogger(ThemePublicationBootstrap.class);
 
-    private final ThemePublicationXmlParser xmlParser;
-    private final ItemsMapMlWriter itemsMapMlWriter;
+    private final BootstrapProperties bootstrapProperties;
+    private final ThemePublicationRefreshService refreshService;
     private final ThemePublicationIndexService indexService;
 
     public ThemePublicationBootstrap(
-            ThemePublicationXmlParser xmlParser,
-            ItemsMapMlWriter itemsMapMlWriter,
+            BootstrapProperties bootstrapProperties,
+            ThemePublicationRefreshService refreshService,
             ThemePublicationIndexService indexService
     ) {
-        this.xmlParser = xmlParser;
-        this.itemsMapMlWriter = itemsMapMlWriter;
+        this.bootstrapProperties = bootstrapProperties;
+        this.refreshService = refreshService;
         this.indexService = indexService;
     }
 
     @Override
     public void run(ApplicationArguments args) throws Exception {
-        List<ThemePublication> publications = xmlParser.loadThemePublications();
-        log.info("Loaded {} theme publications from XML.", publications.size());
-        itemsMapMlWriter.writeMapMlFiles(publications);
-        indexService.rebuildIndex(publications);
+        if (bootstrapProperties.snapshotEnabled() && refreshService.restore("startup").isPresent()) {
+            return;
+        }
+        if (bootstrapProperties.mode() == BootstrapProperties.Mode.ASYNC) {
+            if (indexService.hasIndex()) {
+                int restored = refreshService.restoreFromIndex();
+                log.info("Serving {} theme publications of the persisted index, refreshing them in the background.",
+                        restored);
+                refreshService.submit("startup");
+                return;
+            }
+            log.info("No persisted index found, falling back to blocking bootstrap.");
+        }
+        refreshService.refresh("startup");
     }
 }
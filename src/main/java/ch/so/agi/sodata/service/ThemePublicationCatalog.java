@@ -0,0 +1,52 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.domain.ThemePublication;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The theme publications of the last successful refresh, held in memory. Each refresh replaces the whole catalog
+ * and increments the generation, so readers always see one consistent state.
+ */
+@Component
+public class ThemePublicationCatalog {
+    private volatile State state = new State(0, List.of(), Map.of());
+
+    public List<ThemePublication> publications() {
+        return state.publications();
+    }
+
+    public Optional<ThemePublication> findByIdentifier(String identifier) {
+        if (identifier == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(state.byIdentifier().get(identifier));
+    }
+
+    public long generation() {
+        return state.generation();
+    }
+
+    synchronized long replace(List<ThemePublication> publications) {
+        Map<String, ThemePublication> byIdentifier = new HashMap<>();
+        for (ThemePublication publication : publications) {
+            if (publication.identifier() != null) {
+                byIdentifier.putIfAbsent(publication.identifier(), publication);
+            }
+        }
+        long generation = state.generation() + 1;
+        state = new State(generation, List.copyOf(publications), Map.copyOf(byIdentifier));
+        return generation;
+    }
+
+    private record State(
+            long generation,
+            List<ThemePublication> publications,
+            Map<String, ThemePublication> byIdentifier
+    ) {
+    }
+}
@@ -4,6 +4,8 @@ import ch.so.agi.sodata.config.IndexingProperties;
 import ch.so.agi.sodata.domain.ThemePublication;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -27,7 +29,6 @@ import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.WildcardQuery;
 import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
@@ -48,13 +49,14 @@ import java.util.Locale;
 import java.util.Optional;
 
 @Service
-public class ThemePublicationIndexService implements Closeable {
+public class ThemePublicationIndexService implements Closeable, MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(ThemePublicationIndexService.class);
 
     private final Directory directory;
     private final Analyzer analyzer;
     private final ObjectMapper objectMapper;
     private final IndexingProperties indexingProperties;
+    private final WildcardQueryCache wildcardQueryCache;
 
     public ThemePublicationIndexService(IndexingProperties indexingProperties, ObjectMapper objectMapper) throws IOException {
         this.indexingProperties = indexingProperties;
@@ -63,9 +65,10 @@ public class ThemePublicationIndexService implements Closeable {
         Files.createDirectories(indexPath);
         this.directory = new NIOFSDirectory(indexPath);
         this.analyzer = new StandardAnalyzer();
+        this.wildcardQueryCache = new WildcardQueryCache(indexingProperties.wildcardCacheSize());
     }
 
-    public void rebuildIndex(List<ThemePublication> publications) throws IOException {
+    public int rebuildIndex(List<ThemePublication> publications) throws IOException {
         if (publications == null) {
             publications = Collections.emptyList();
         }
@@ -83,7 +86,22 @@ public class ThemePublicationIndexService implements Closeable {
                 writer.updateDocument(new Term("id", lower(publication.identifier())), document);
             }
             writer.commit();
-            log.info("{} files indexed.", writer.getDocStats().numDocs);
+            int numDocs = writer.getDocStats().numDocs;
+            log.info("{} files indexed.", numDocs);
+            return numDocs;
+        }
+    }
+
+    public boolean hasIndex() throws IOException {
+        return DirectoryReader.indexExists(directory);
+    }
+
+    public int documentCount() throws IOException {
+        if (!hasIndex()) {
+            return 0;
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.numDocs();
         }
     }
 
@@ -170,8 +188,7 @@ public class ThemePublicationIndexService implements Closeable {
     }
 
     private Query boostedWildcard(String field, String token, float boost) {
-        Query wildcard = new WildcardQuery(new Term(field, "*" + token + "*"));
-        return new BoostQuery(wildcard, boost);
+        return new BoostQuery(wildcardQueryCache.get(field, token), boost);
     }
 
     private Document toDocument(ThemePublication publication) throws JsonProcessingException {
@@ -230,6 +247,15 @@ public class ThemePublicationIndexService implements Closeable {
         return cleaned.toLowerCase(Locale.ROOT).trim();
     }
 
+    WildcardQueryCache wildcardQueryCache() {
+        return wildcardQueryCache;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        wildcardQueryCache.bindTo(registry);
+    }
+
     @Override
     @PreDestroy
     public void close() throws IOException {
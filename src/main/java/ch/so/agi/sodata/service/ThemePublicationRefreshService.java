@@ -0,0 +1,329 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.ReloadProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the catalog pipeline (XML parsing with MapML generation streamed per item, index rebuild). Background
+ * refreshes are executed one after another on a dedicated thread; readers keep using the previous Lucene commit
+ * until the new index has been committed. A refresh that is submitted while another one is still queued is merged
+ * into the queued one. Every successful refresh publishes its result to the {@link ThemePublicationCatalog} and
+ * saves a snapshot, which {@link #restore(String)} uses to skip the pipeline as long as nothing has changed.
+ * The subunit files are written to a new generation directory, which is published right before the new catalog.
+ * With lazy MapML generation the pipeline only spools the items to the new generation;
+ * {@link SubunitLayerGenerator} writes the files from there when they are first requested.
+ */
+@Service
+public class ThemePublicationRefreshService {
+    private static final Logger log = LoggerFactory.getLogger(ThemePublicationRefreshService.class);
+
+    private final ThemePublicationXmlParser xmlParser;
+    private final ItemsMapMlWriter itemsMapMlWriter;
+    private final SubunitTileService tileService;
+    private final SubunitLayerGenerator layerGenerator;
+    private final ThemePublicationIndexService indexService;
+    private final ThemePublicationCatalog catalog;
+    private final CatalogSnapshotService snapshotService;
+    private final ReloadProperties reloadProperties;
+    private final ExecutorService executor;
+    private final AtomicLong jobIds = new AtomicLong();
+    private final Deque<Job> history = new ArrayDeque<>();
+
+    private Job pending;
+    private volatile String lastChecksum;
+
+    public ThemePublicationRefreshService(
+            ThemePublicationXmlParser xmlParser,
+            ItemsMapMlWriter itemsMapMlWriter,
+            SubunitTileService tileService,
+            SubunitLayerGenerator layerGenerator,
+            ThemePublicationIndexService indexService,
+            ThemePublicationCatalog catalog,
+            CatalogSnapshotService snapshotService,
+            ReloadProperties reloadProperties
+    ) {
+        this.xmlParser = xmlParser;
+        this.itemsMapMlWriter = itemsMapMlWriter;
+        this.tileService = tileService;
+        this.layerGenerator = layerGenerator;
+        this.indexService = indexService;
+        this.catalog = catalog;
+        this.snapshotService = snapshotService;
+        this.reloadProperties = reloadProperties;
+        this.executor = Executors.newSingleThreadExecutor(
+                Thread.ofVirtual().name("theme-publication-refresh").factory());
+    }
+
+    public RefreshJob refresh(String trigger) throws IOException {
+        Job job = register(trigger);
+        run(job);
+        return job.snapshot();
+    }
+
+    /**
+     * Loads the catalog from the snapshot of the previous run if the catalog file, the application and the
+     * persisted index and MapML files are unchanged. Returns an empty optional if a refresh is required.
+     */
+    public synchronized Optional<RefreshJob> restore(String trigger) throws IOException {
+        if (!indexService.hasIndex()) {
+            return Optional.empty();
+        }
+        String checksum = xmlParser.checksum();
+        Optional<CatalogSnapshotService.Snapshot> snapshot = snapshotService.restore(checksum);
+        if (snapshot.isEmpty()) {
+            return Optional.empty();
+        }
+        CatalogManifest manifest = snapshot.get().manifest();
+        int indexedDocuments = indexService.documentCount();
+        if (indexedDocuments != manifest.indexedDocuments()) {
+            log.info("Index contains {} documents, snapshot expects {}, rebuilding.",
+                    indexedDocuments, manifest.indexedDocuments());
+            return Optional.empty();
+        }
+
+        Job job = register(trigger);
+        job.start();
+        List<ThemePublication> publications = snapshot.get().publications();
+        catalog.replace(publications);
+        lastChecksum = checksum;
+        job.succeed(publications.size(), manifest.artifacts() == null ? 0 : manifest.artifacts().size(),
+                indexedDocuments, true);
+        log.info("Catalog unchanged since {}, restored {} theme publications from snapshot in {} ms.",
+                manifest.createdAt(), publications.size(), job.durationMillis());
+        tileService.seed(publications);
+        layerGenerator.prefetch();
+        return Optional.of(job.snapshot());
+    }
+
+    /**
+     * Publishes the publications of the persisted index to the catalog, so that an asynchronous startup does not
+     * serve an empty catalog until the background refresh has finished. The index holds the metadata of the
+     * publications but not their items, bboxes and services, which the catalog readers do not need. Returns the
+     * number of publications.
+     */
+    public synchronized int restoreFromIndex() throws IOException {
+        List<ThemePublication> publications;
+        try {
+            publications = indexService.findAllSortedByTitle();
+        } catch (LuceneSearcherException e) {
+            throw new IOException("Could not read the persisted index", e);
+        }
+        catalog.replace(publications);
+        return publications.size();
+    }
+
+    public RefreshJob submit(String trigger) {
+        Job job;
+        synchronized (history) {
+            if (pending != null) {
+                log.debug("Refresh triggered by {} merged into queued job {}.", trigger, pending.id);
+                return pending.snapshot();
+            }
+            job = register(trigger);
+            pending = job;
+        }
+
+        executor.execute(() -> {
+            synchronized (history) {
+                if (pending == job) {
+                    pending = null;
+                }
+            }
+            try {
+                run(job);
+            } catch (IOException | RuntimeException e) {
+                log.error("Background refresh of theme publications failed", e);
+            }
+        });
+        return job.snapshot();
+    }
+
+    public List<RefreshJob> jobs() {
+        synchronized (history) {
+            List<RefreshJob> jobs = new ArrayList<>(history.size());
+            for (Job job : history) {
+                jobs.add(job.snapshot());
+            }
+            return jobs;
+        }
+    }
+
+    public String lastChecksum() {
+        return lastChecksum;
+    }
+
+    /**
+     * Whether a refresh or restore has finished since the application started, successfully or not.
+     */
+    public boolean started() {
+        synchronized (history) {
+            for (Job job : history) {
+                if (job.finishedAt != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Job register(String trigger) {
+        Job job = new Job(jobIds.incrementAndGet(), trigger);
+        synchronized (history) {
+            history.addFirst(job);
+            while (history.size() > reloadProperties.historySize()) {
+                history.removeLast();
+            }
+        }
+        return job;
+    }
+
+    private synchronized void run(Job job) throws IOException {
+        job.start();
+        try {
+            snapshotService.invalidate();
+            ThemePublicationXmlParser.LoadedCatalog loaded;
+            List<String> mapMlFiles;
+            List<String> artifacts;
+            ItemsMapMlWriter.Batch batch = null;
+            ItemsMapMlWriter.Spool spool = null;
+            if (layerGenerator.enabled()) {
+                try (ItemsMapMlWriter.Spool spooled = itemsMapMlWriter.newSpool()) {
+                    loaded = xmlParser.loadCatalog(spooled);
+                    mapMlFiles = List.of();
+                    artifacts = spooled.files();
+                    spool = spooled;
+                }
+            } else {
+                try (ItemsMapMlWriter.Batch written = itemsMapMlWriter.newBatch()) {
+                    loaded = xmlParser.loadCatalog(written);
+                    mapMlFiles = written.files();
+                    artifacts = mapMlFiles;
+                    batch = written;
+                }
+            }
+            List<ThemePublication> publications = loaded.publications();
+            String checksum = loaded.checksum();
+            log.info("Loaded {} theme publications from XML, wrote {} subunit files.",
+                    publications.size(), mapMlFiles.size());
+            int indexedDocuments = indexService.rebuildIndex(publications);
+            Set<String> identifiers = identifiers(catalog.publications(), publications);
+            if (batch != null) {
+                batch.publish(identifiers);
+            }
+            if (spool != null) {
+                spool.publish(identifiers);
+            }
+            catalog.replace(publications);
+            layerGenerator.reset();
+            lastChecksum = checksum;
+            saveSnapshot(checksum, publications, indexedDocuments, artifacts);
+            job.succeed(publications.size(), mapMlFiles.size(), indexedDocuments, false);
+            log.info("Refresh {} ({}) finished in {} ms.", job.id, job.trigger, job.durationMillis());
+            tileService.seed(publications);
+            layerGenerator.prefetch();
+        } catch (IOException | RuntimeException e) {
+            job.fail(e);
+            throw e;
+        }
+    }
+
+    private static Set<String> identifiers(List<ThemePublication> previous, List<ThemePublication> current) {
+        Set<String> identifiers = new HashSet<>();
+        for (List<ThemePublication> publications : List.of(previous, current)) {
+            for (ThemePublication publication : publications) {
+                if (publication.identifier() != null) {
+                    identifiers.add(publication.identifier());
+                }
+            }
+        }
+        return identifiers;
+    }
+
+    private void saveSnapshot(String checksum, List<ThemePublication> publications, int indexedDocuments,
+            List<String> artifacts) {
+        if (checksum == null) {
+            return;
+        }
+        try {
+            snapshotService.save(checksum, publications, indexedDocuments, artifacts);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not save catalog snapshot, the next start will rebuild.", e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static final class Job {
+        private final long id;
+        private final String trigger;
+        private final Instant submittedAt = Instant.now();
+        private volatile RefreshJob.State state = RefreshJob.State.QUEUED;
+        private volatile Instant startedAt;
+        private volatile Instant finishedAt;
+        private volatile Integer publications;
+        private volatile Integer mapMlFiles;
+        private volatile Integer indexedDocuments;
+        private volatile boolean restored;
+        private volatile String error;
+
+        private Job(long id, String trigger) {
+            this.id = id;
+            this.trigger = trigger;
+        }
+
+        private void start() {
+            startedAt = Instant.now();
+            state = RefreshJob.State.RUNNING;
+        }
+
+        private void succeed(int publications, int mapMlFiles, int indexedDocuments, boolean restored) {
+            this.publications = publications;
+            this.mapMlFiles = mapMlFiles;
+            this.indexedDocuments = indexedDocuments;
+            this.restored = restored;
+            finishedAt = Instant.now();
+            state = RefreshJob.State.SUCCEEDED;
+        }
+
+        private void fail(Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            finishedAt = Instant.now();
+            state = RefreshJob.State.FAILED;
+        }
+
+        private Long durationMillis() {
+            Instant started = startedAt;
+            Instant finished = finishedAt;
+            if (started == null || finished == null) {
+                return null;
+            }
+            return Duration.between(started, finished).toMillis();
+        }
+
+        private RefreshJob snapshot() {
+            return new RefreshJob(id, trigger, state, submittedAt, startedAt, finishedAt, durationMillis(),
+                    publications, mapMlFiles, indexedDocuments, restored, error);
+        }
+    }
+}
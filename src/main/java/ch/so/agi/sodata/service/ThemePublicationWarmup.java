@@ -0,0 +1,189 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.WarmupProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import gg.jte.TemplateEngine;
+import gg.jte.output.StringOutput;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises the search, lookup, MapML and template paths once the index has been built, so that newly started
+ * instances do not serve their first requests with cold caches and interpreted code. Subunits are warmed through the
+ * services the data page uses: the files are generated if generation is lazy, the least detailed MapML file is
+ * resolved into the file cache and the zoom 0 tile is rendered. Runs as the last
+ * {@link ApplicationRunner}; Spring Boot only switches readiness to {@link ReadinessState#ACCEPTING_TRAFFIC}
+ * after all runners have completed.
+ */
+@Component
+@Order(ThemePublicationWarmup.ORDER)
+public class ThemePublicationWarmup implements ApplicationRunner, MeterBinder {
+    static final int ORDER = ThemePublicationBootstrap.ORDER + 1;
+
+    private static final Logger log = LoggerFactory.getLogger(ThemePublicationWarmup.class);
+
+    private final WarmupProperties warmupProperties;
+    private final ThemePublicationIndexService indexService;
+    private final MapMlProperties mapMlProperties;
+    private final SubunitLayerGenerator layerGenerator;
+    private final MapMlFileService mapMlFileService;
+    private final SubunitTileService tileService;
+    private final TemplateEngine templateEngine;
+    private final ApplicationEventPublisher eventPublisher;
+
+    private volatile long durationNanos;
+
+    public ThemePublicationWarmup(
+            WarmupProperties warmupProperties,
+            ThemePublicationIndexService indexService,
+            MapMlProperties mapMlProperties,
+            SubunitLayerGenerator layerGenerator,
+            MapMlFileService mapMlFileService,
+            SubunitTileService tileService,
+            TemplateEngine templateEngine,
+            ApplicationEventPublisher eventPublisher
+    ) {
+        this.warmupProperties = warmupProperties;
+        this.indexService = indexService;
+        this.mapMlProperties = mapMlProperties;
+        this.layerGenerator = layerGenerator;
+        this.mapMlFileService = mapMlFileService;
+        this.tileService = tileService;
+        this.templateEngine = templateEngine;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!warmupProperties.enabled()) {
+            return;
+        }
+
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        long start = System.nanoTime();
+        WarmupStats stats = new WarmupStats();
+        int iterations = Math.max(warmupProperties.iterations(), 1);
+        for (int i = 0; i < iterations; i++) {
+            warmup(stats);
+        }
+        durationNanos = System.nanoTime() - start;
+
+        log.info("Warmup finished in {} ms ({} iterations, {} queries, {} lookups, {} mapml reads, {} tiles, "
+                        + "{} renders, {} failures).",
+                TimeUnit.NANOSECONDS.toMillis(durationNanos), iterations, stats.queries, stats.lookups,
+                stats.mapMlReads, stats.tiles, stats.renders, stats.failures);
+    }
+
+    private void warmup(WarmupStats stats) {
+        List<ThemePublication> publications;
+        try {
+            publications = indexService.findAllSortedByTitle();
+            stats.queries++;
+        } catch (LuceneSearcherException e) {
+            log.warn("Warmup could not list theme publications", e);
+            stats.failures++;
+            return;
+        }
+
+        if (warmupProperties.queries() != null) {
+            for (String query : warmupProperties.queries()) {
+                try {
+                    indexService.search(query);
+                    stats.queries++;
+                } catch (InvalidLuceneQueryException | LuceneSearcherException e) {
+                    log.debug("Warmup query '{}' failed: {}", query, e.getMessage());
+                    stats.failures++;
+                }
+            }
+        }
+
+        render("themepublications-fragment.jte", Map.of("publications", publications), stats);
+
+        int lookups = Math.min(Math.max(warmupProperties.identifierLookups(), 0), publications.size());
+        for (ThemePublication publication : publications.subList(0, lookups)) {
+            try {
+                indexService.findByIdentifier(publication.identifier())
+                        .ifPresent(found -> render("themepublication-meta.jte", Map.of("publication", found), stats));
+                stats.lookups++;
+            } catch (LuceneSearcherException e) {
+                log.debug("Warmup lookup of '{}' failed: {}", publication.identifier(), e.getMessage());
+                stats.failures++;
+            }
+            warmSubunits(publication, stats);
+        }
+    }
+
+    private void warmSubunits(ThemePublication publication, WarmupStats stats) {
+        if (!Boolean.TRUE.equals(publication.hasSubunits())) {
+            return;
+        }
+        String identifier = publication.identifier();
+        try {
+            layerGenerator.ensure(identifier);
+            if (mapMlFileService.find(identifier, mapMlProperties.simplifiedZoomFor(0), true).isPresent()) {
+                stats.mapMlReads++;
+            }
+            if (tileService.tile(publication, 0, 0, 0).isPresent()) {
+                stats.tiles++;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Warmup could not read the subunits of {}: {}", identifier, e.getMessage());
+            stats.failures++;
+        }
+        if (publication.fileFormats() != null) {
+            publication.fileFormats().stream()
+                    .filter(fileFormat -> fileFormat != null && fileFormat.abbreviation() != null
+                            && !fileFormat.abbreviation().isBlank())
+                    .findFirst()
+                    .ifPresent(fileFormat -> render("themepublication-data.jte",
+                            Map.of("publication", publication, "format", fileFormat.abbreviation()), stats));
+        }
+    }
+
+    private void render(String template, Map<String, Object> model, WarmupStats stats) {
+        try {
+            templateEngine.render(template, model, new StringOutput());
+            stats.renders++;
+        } catch (RuntimeException e) {
+            log.debug("Warmup could not render {}: {}", template, e.getMessage());
+            stats.failures++;
+        }
+    }
+
+    Duration lastDuration() {
+        return Duration.ofNanos(durationNanos);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        TimeGauge.builder("sodata.warmup.duration", this, TimeUnit.NANOSECONDS, warmup -> warmup.durationNanos)
+                .description("Duration of the startup warmup phase")
+                .register(registry);
+    }
+
+    private static final class WarmupStats {
+        private int queries;
+        private int lookups;
+        private int mapMlReads;
+        private int tiles;
+        private int renders;
+        private int failures;
+    }
+}
@@ -1,6 +1,7 @@
 package ch.so.agi.sodata.service;
 
 import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ParserProperties;
 import ch.so.agi.sodata.domain.Bbox;
 import ch.so.agi.sodata.domain.AttributeInfo;
 import ch.so.agi.sodata.domain.FileFormat;
@@ -13,89 +14,861 @@ import ch.so.agi.sodata.domain.ThemePublication;
 import ch.so.agi.sodata.domain.WgcPreviewLayer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.List;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+/**
+ * Reads the theme publication catalog with a StAX pull parser. Publications are materialized one at a time, so
+ * callers that consume them through {@link #forEachThemePublication(Consumer)} or
+ * {@link #streamThemePublications()} only need memory for a single publication.
+ * <p>
+ * {@code app.config-file} may also point to a directory; every {@code *.xml} file in it is read as a catalog shard,
+ * in file name order. {@link #loadThemePublications()} parses the shards concurrently on virtual threads and splits
+ * files larger than {@code parser.parallel-file-threshold} at the {@code themePublication} boundaries, so that
+ * their publications are parsed in parallel as well. The result keeps the source order; if an identifier occurs
+ * more than once, the first publication wins and the duplicate is reported.
+ * <p>
+ * Offices, file formats, keywords and other values that repeat across publications are shared through a
+ * {@link CatalogInterner} scoped to a single load.
+ * <p>
+ * {@link #loadThemePublications(Function)} hands the items of every publication to an {@link ItemSink} as soon as
+ * they have been parsed and keeps only their metadata, so item geometries never have to be held in memory all at
+ * once. Large files are memory-mapped for splitting, the parsed fragments are read from the page cache.
+ */
 @org.springframework.stereotype.Service
 public class ThemePublicationXmlParser {
     private static final Logger log = LoggerFactory.getLogger(ThemePublicationXmlParser.class);
 
+    private static final String THEME_PUBLICATION = "themePublication";
+    private static final String SHARD_SUFFIX = ".xml";
+    private static final Pattern PROLOG_ENCODING = Pattern.compile(
+            "^(?:\\xEF\\xBB\\xBF)?\\s*<\\?xml[^>]*?encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final int PROLOG_LENGTH = 256;
+
     private final AppProperties appProperties;
+    private final ParserProperties parserProperties;
 
-    public ThemePublicationXmlParser(AppProperties appProperties) {
+    public ThemePublicationXmlParser(AppProperties appProperties, ParserProperties parserProperties) {
         this.appProperties = appProperties;
+        this.parserProperties = parserProperties;
     }
 
     public List<ThemePublication> loadThemePublications() throws IOException {
+        return loadThemePublications(null);
+    }
+
+    /**
+     * Loads all publications and passes the items of each one to the sink returned by {@code itemSinks} for the
+     * partially parsed publication (everything before {@code <items>}). The returned publications keep the item
+     * metadata without geometries. Sinks are finished and committed once their publication has been merged; sinks
+     * of a failed load are neither finished nor committed.
+     */
+    public List<ThemePublication> loadThemePublications(Function<ThemePublication, ItemSink> itemSinks)
+            throws IOException {
+        return loadCatalog(itemSinks).publications();
+    }
+
+    /**
+     * Loads all publications like {@link #loadThemePublications(Function)} and returns them with the
+     * {@linkplain #checksum() checksum} of the bytes they were parsed from, so the checksum always describes the
+     * loaded catalog even if a file changes while it is read.
+     */
+    public LoadedCatalog loadCatalog(Function<ThemePublication, ItemSink> itemSinks) throws IOException {
+        boolean directory = Files.isDirectory(Path.of(appProperties.configFile()));
+        List<Path> sources = catalogSources();
+        List<ThemePublication> results = new ArrayList<>();
+        if (sources.isEmpty()) {
+            return new LoadedCatalog(results, directory ? checksum(true, sources, List.of()) : null);
+        }
+
+        CatalogInterner interner = new CatalogInterner();
+        List<ParsedSource> parsed = new ArrayList<>(sources.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<ParsedSource>> futures = new ArrayList<>(sources.size());
+            for (Path source : sources) {
+                futures.add(executor.submit(() -> parseSource(source, executor, interner, itemSinks)));
+            }
+            for (Future<ParsedSource> future : futures) {
+                parsed.add(await(future));
+            }
+        }
+
+        Map<String, Path> seen = new HashMap<>();
+        List<byte[]> digests = new ArrayList<>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            digests.add(parsed.get(i).digest());
+            for (Parsed entry : parsed.get(i).publications()) {
+                boolean keep = firstOccurrence(seen, entry.publication(), sources.get(i));
+                if (keep) {
+                    results.add(entry.publication());
+                }
+                if (entry.sink() != null) {
+                    entry.sink().commit(keep);
+                }
+            }
+        }
+        log.info("Interned {} repeated catalog values into {} shared instances, saving about {} KB.",
+                interner.hitCount(), interner.size(), interner.estimatedBytesSaved() / 1024);
+        return new LoadedCatalog(results, checksum(directory, sources, digests));
+    }
+
+    public void forEachThemePublication(Consumer<ThemePublication> consumer) throws IOException {
+        Map<String, Path> seen = new HashMap<>();
+        CatalogInterner interner = new CatalogInterner();
+        for (Path source : catalogSources()) {
+            try (PublicationReader reader = new PublicationReader(source, interner, null)) {
+                while (reader.hasNextPublication()) {
+                    ThemePublication publication = reader.nextPublication().publication();
+                    if (firstOccurrence(seen, publication, source)) {
+                        consumer.accept(publication);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a lazily parsed stream of publications. The stream holds the underlying file open and must be closed.
+     */
+    public Stream<ThemePublication> streamThemePublications() throws IOException {
+        List<Path> sources = catalogSources();
+        Map<String, Path> seen = new HashMap<>();
+        CatalogInterner interner = new CatalogInterner();
+        return sources.stream()
+                .flatMap(source -> streamSource(source, interner)
+                        .filter(publication -> firstOccurrence(seen, publication, source)));
+    }
+
+    /**
+     * Returns a SHA-256 checksum over the catalog: of the file, or for a shard directory of the name and the
+     * SHA-256 of the content of every shard, so adding, removing or renaming a shard changes the checksum as well.
+     */
+    public String checksum() throws IOException {
+        Path configPath = Path.of(appProperties.configFile());
+        boolean directory = Files.isDirectory(configPath);
+        if (!directory && !Files.isRegularFile(configPath)) {
+            return null;
+        }
+
+        List<Path> sources = catalogSources();
+        List<byte[]> digests = new ArrayList<>(sources.size());
+        for (Path source : sources) {
+            MessageDigest digest = sha256();
+            try (InputStream inputStream = new DigestInputStream(Files.newInputStream(source), digest)) {
+                inputStream.transferTo(OutputStream.nullOutputStream());
+            }
+            digests.add(digest.digest());
+        }
+        return checksum(directory, sources, digests);
+    }
+
+    private static String checksum(boolean directory, List<Path> sources, List<byte[]> digests) {
+        if (!directory) {
+            return digests.isEmpty() ? null : HexFormat.of().formatHex(digests.getFirst());
+        }
+        MessageDigest digest = sha256();
+        for (int i = 0; i < sources.size(); i++) {
+            digest.update(sources.get(i).getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(digests.get(i));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private List<Path> catalogSources() throws IOException {
         Path configPath = Path.of(appProperties.configFile());
         if (!Files.exists(configPath)) {
             log.warn("Config file does not exist: {}", configPath.toAbsolutePath());
-            return Collections.emptyList();
-        }
-
-        try (InputStream inputStream = Files.newInputStream(configPath)) {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
-            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-            factory.setXIncludeAware(false);
-            factory.setExpandEntityReferences(false);
-
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(inputStream);
-            Element root = document.getDocumentElement();
-            List<Element> publications = childElements(root, "themePublication");
-            List<ThemePublication> results = new ArrayList<>(publications.size());
-            for (Element publicationElement : publications) {
-                results.add(parseThemePublication(publicationElement));
-            }
-            return results;
-        } catch (ParserConfigurationException | SAXException e) {
-            throw new IOException("Failed to parse XML config: " + configPath, e);
-        }
-    }
-
-    private ThemePublication parseThemePublication(Element element) {
-        String identifier = text(element, "identifier");
-        String model = text(element, "model");
-        String title = text(element, "title");
-        String shortDescription = text(element, "shortDescription");
-        Boolean hasSubunits = parseBoolean(text(element, "hasSubunits"));
-        LocalDate lastPublishingDate = parseDate(text(element, "lastPublishingDate"));
-        LocalDate secondToLastPublishingDate = parseDate(text(element, "secondToLastPublishingDate"));
-        Office owner = parseOffice(childElement(element, "owner"));
-        Office servicer = parseOffice(childElement(element, "servicer"));
-        String furtherInformation = text(element, "furtherInformation");
-        String downloadHostUrl = text(element, "downloadHostUrl");
-        String previewUrl = text(element, "previewUrl");
-        List<String> keywords = textList(element, "keywords", "keyword");
-        List<String> synonyms = textList(element, "synonyms", "synonym");
-        List<FileFormat> fileFormats = parseFileFormats(childElement(element, "fileFormats"));
-        List<TableInfo> tablesInfo = parseTableInfo(childElement(element, "tablesInfo"));
-        String licence = text(element, "licence");
-        Bbox bbox = parseBbox(childElement(element, "bbox"));
-        WgcPreviewLayer wgcPreviewLayer = parseWgcPreviewLayer(childElement(element, "wgcPreviewLayer"));
-        List<Item> items = parseItems(childElement(element, "items"));
-        List<Service> services = parseServices(childElement(element, "services"));
+            return List.of();
+        }
+        if (!Files.isDirectory(configPath)) {
+            return List.of(configPath);
+        }
+
+        try (Stream<Path> files = Files.list(configPath)) {
+            List<Path> shards = files
+                    .filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(SHARD_SUFFIX))
+                    .sorted(Comparator.comparing(file -> file.getFileName().toString()))
+                    .toList();
+            if (shards.isEmpty()) {
+                log.warn("Config directory contains no catalog shards: {}", configPath.toAbsolutePath());
+            }
+            return shards;
+        }
+    }
+
+    private boolean firstOccurrence(Map<String, Path> seen, ThemePublication publication, Path source) {
+        if (publication.identifier() == null) {
+            return true;
+        }
+        Path first = seen.putIfAbsent(publication.identifier(), source);
+        if (first == null) {
+            return true;
+        }
+        log.warn("Duplicate theme publication identifier '{}' in {}, keeping the one from {}.",
+                publication.identifier(), source, first);
+        return false;
+    }
+
+    private Stream<ThemePublication> streamSource(Path source, CatalogInterner interner) {
+        PublicationReader reader;
+        try {
+            reader = new PublicationReader(source, interner, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Iterator<ThemePublication> iterator = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return reader.hasNextPublication();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public ThemePublication next() {
+                try {
+                    return reader.nextPublication().publication();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private ParsedSource parseSource(
+            Path source,
+            ExecutorService executor,
+            CatalogInterner interner,
+            Function<ThemePublication, ItemSink> itemSinks
+    ) throws IOException {
+        if (Files.size(source) >= parserProperties.parallelFileThreshold().toBytes()) {
+            ParsedSource parsed = parseFragments(source, executor, interner, itemSinks);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+
+        List<Parsed> publications = new ArrayList<>();
+        MessageDigest digest = sha256();
+        try (PublicationReader reader = new PublicationReader(source, interner, itemSinks, digest)) {
+            while (reader.hasNextPublication()) {
+                publications.add(reader.nextPublication());
+            }
+            reader.drain();
+        }
+        return new ParsedSource(publications, digest.digest());
+    }
+
+    /**
+     * Parses the publications of a single file in parallel batches. The file is memory-mapped, so its content is
+     * not copied to the heap. Returns {@code null} if the file cannot be split safely (not UTF-8, a DOCTYPE,
+     * unbalanced tags), in which case the caller falls back to the sequential reader and its error reporting.
+     */
+    private ParsedSource parseFragments(
+            Path source,
+            ExecutorService executor,
+            CatalogInterner interner,
+            Function<ThemePublication, ItemSink> itemSinks
+    ) throws IOException {
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (!isUtf8(content)) {
+            return null;
+        }
+        List<Fragment> fragments = publicationFragments(content);
+        if (fragments == null) {
+            return null;
+        }
+
+        int batchCount = Math.min(fragments.size(), Runtime.getRuntime().availableProcessors() * 2);
+        if (batchCount <= 1) {
+            return null;
+        }
+        int batchSize = (fragments.size() + batchCount - 1) / batchCount;
+        List<Future<List<Parsed>>> futures = new ArrayList<>();
+        for (int from = 0; from < fragments.size(); from += batchSize) {
+            List<Fragment> batch = fragments.subList(from, Math.min(from + batchSize, fragments.size()));
+            futures.add(executor.submit(() -> parseBatch(source, content, batch, interner, itemSinks)));
+        }
+
+        List<Parsed> publications = new ArrayList<>(fragments.size());
+        for (Future<List<Parsed>> future : futures) {
+            publications.addAll(await(future));
+        }
+        log.debug("Parsed {} publications of {} in {} parallel batches.", publications.size(), source, futures.size());
+        MessageDigest digest = sha256();
+        digest.update(content.duplicate().clear());
+        return new ParsedSource(publications, digest.digest());
+    }
+
+    private List<Parsed> parseBatch(
+            Path source,
+            ByteBuffer content,
+            List<Fragment> batch,
+            CatalogInterner interner,
+            Function<ThemePublication, ItemSink> itemSinks
+    ) throws IOException {
+        XMLInputFactory factory = createInputFactory();
+        List<Parsed> publications = new ArrayList<>(batch.size());
+        for (Fragment fragment : batch) {
+            XMLStreamReader reader = null;
+            try {
+                reader = factory.createXMLStreamReader(
+                        new ByteBufferInputStream(content.slice(fragment.start(), fragment.end() - fragment.start())),
+                        StandardCharsets.UTF_8.name());
+                reader.nextTag();
+                publications.add(parseThemePublication(reader, interner, itemSinks));
+            } catch (XMLStreamException | RuntimeException e) {
+                throw new IOException("Failed to parse XML config: " + source, e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (XMLStreamException e) {
+                        log.debug("Failed to close XML reader for {}", source, e);
+                    }
+                }
+            }
+        }
+        return publications;
+    }
+
+    /**
+     * Returns whether the file is UTF-8 encoded according to its byte order mark and XML declaration.
+     */
+    private static boolean isUtf8(ByteBuffer content) {
+        if (content.limit() >= 2) {
+            int first = content.get(0) & 0xFF;
+            int second = content.get(1) & 0xFF;
+            if ((first == 0xFE && second == 0xFF) || (first == 0xFF && second == 0xFE)) {
+                return false;
+            }
+        }
+        byte[] prolog = new byte[Math.min(content.limit(), PROLOG_LENGTH)];
+        content.get(0, prolog);
+        Matcher encoding = PROLOG_ENCODING.matcher(new String(prolog, StandardCharsets.ISO_8859_1));
+        return !encoding.find() || "UTF-8".equalsIgnoreCase(encoding.group(1));
+    }
+
+    /**
+     * Finds the {@code themePublication} children of the root element with a lexical scan that skips comments,
+     * CDATA sections and processing instructions. Works on the raw UTF-8 bytes, as multi-byte sequences never
+     * contain ASCII markup characters. Returns {@code null} if the document is not split safely.
+     */
+    static List<Fragment> publicationFragments(ByteBuffer content) {
+        List<Fragment> fragments = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        int i = indexOf(content, '<', 0);
+        while (i >= 0) {
+            if (startsWith(content, i, "<!--")) {
+                i = indexAfter(content, "-->", i + 4);
+            } else if (startsWith(content, i, "<![CDATA[")) {
+                i = indexAfter(content, "]]>", i + 9);
+            } else if (startsWith(content, i, "<?")) {
+                i = indexAfter(content, "?>", i + 2);
+            } else if (startsWith(content, i, "<!")) {
+                return null;
+            } else if (startsWith(content, i, "</")) {
+                i = tagEnd(content, i);
+                if (i < 0 || --depth < 0) {
+                    return null;
+                }
+                if (start >= 0 && depth == 1) {
+                    fragments.add(new Fragment(start, i));
+                    start = -1;
+                }
+            } else {
+                int end = tagEnd(content, i);
+                if (end < 0) {
+                    return null;
+                }
+                boolean selfClosing = content.get(end - 2) == '/';
+                if (depth == 1 && isStartTag(content, i, THEME_PUBLICATION)) {
+                    if (selfClosing) {
+                        fragments.add(new Fragment(i, end));
+                    } else {
+                        start = i;
+                    }
+                }
+                if (!selfClosing) {
+                    depth++;
+                }
+                i = end;
+            }
+            if (i < 0) {
+                return null;
+            }
+            i = indexOf(content, '<', i);
+        }
+        return depth == 0 && start < 0 ? fragments : null;
+    }
+
+    private static boolean isStartTag(ByteBuffer content, int index, String name) {
+        int nameEnd = index + 1 + name.length();
+        if (nameEnd >= content.limit() || !startsWith(content, index + 1, name)) {
+            return false;
+        }
+        byte next = content.get(nameEnd);
+        return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+    }
+
+    private static boolean startsWith(ByteBuffer content, int index, String token) {
+        if (index + token.length() > content.limit()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (content.get(index + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer content, char c, int from) {
+        for (int i = from; i < content.limit(); i++) {
+            if (content.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexAfter(ByteBuffer content, String token, int from) {
+        for (int i = indexOf(content, token.charAt(0), from); i >= 0; i = indexOf(content, token.charAt(0), i + 1)) {
+            if (startsWith(content, i, token)) {
+                return i + token.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index after the {@code >} closing the tag that starts at {@code index}, ignoring {@code >} inside
+     * quoted attribute values.
+     */
+    private static int tagEnd(ByteBuffer content, int index) {
+        byte quote = 0;
+        for (int i = index + 1; i < content.limit(); i++) {
+            byte c = content.get(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing XML config");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException("Failed to parse XML config", cause);
+        }
+    }
+
+    record Fragment(int start, int end) {
+    }
+
+    /**
+     * The publications of a catalog and its checksum, {@code null} if the configured catalog does not exist.
+     */
+    public record LoadedCatalog(List<ThemePublication> publications, String checksum) {
+    }
+
+    /**
+     * The publications of one catalog source and the SHA-256 of the bytes they were parsed from.
+     */
+    private record ParsedSource(List<Parsed> publications, byte[] digest) {
+    }
+
+    private record Parsed(ThemePublication publication, ItemSink sink) {
+    }
+
+    /**
+     * Receives the items of a single publication while it is being parsed. Implementations must be thread-safe
+     * with respect to other sinks, as publications are parsed concurrently.
+     */
+    public interface ItemSink {
+        void accept(Item item);
+
+        /**
+         * Called with the completely parsed publication after its last item.
+         */
+        void finish(ThemePublication publication);
+
+        /**
+         * Called after {@link #finish(ThemePublication)}. {@code keep} is {@code false} if the publication lost
+         * against an earlier one with the same identifier.
+         */
+        void commit(boolean keep);
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        return factory;
+    }
+
+    private final class PublicationReader implements Closeable {
+        private final Path configPath;
+        private final CatalogInterner interner;
+        private final Function<ThemePublication, ItemSink> itemSinks;
+        private final InputStream inputStream;
+        private final XMLStreamReader reader;
+        private boolean positioned;
+        private boolean finished;
+
+        private PublicationReader(Path configPath, CatalogInterner interner, Function<ThemePublication, ItemSink> itemSinks)
+                throws IOException {
+            this(configPath, interner, itemSinks, null);
+        }
+
+        /**
+         * With a {@code digest}, every byte read from the file is added to it; call {@link #drain()} after the last
+         * publication to include the rest of the file.
+         */
+        private PublicationReader(
+                Path configPath,
+                CatalogInterner interner,
+                Function<ThemePublication, ItemSink> itemSinks,
+                MessageDigest digest
+        ) throws IOException {
+            this.configPath = configPath;
+            this.interner = interner;
+            this.itemSinks = itemSinks;
+            InputStream fileStream = Files.newInputStream(configPath);
+            this.inputStream = digest != null ? new DigestInputStream(fileStream, digest) : fileStream;
+            try {
+                this.reader = createInputFactory().createXMLStreamReader(inputStream);
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) {
+                    finished = true;
+                }
+            } catch (XMLStreamException e) {
+                inputStream.close();
+                throw parseFailure(e);
+            }
+        }
+
+        private boolean hasNextPublication() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (positioned) {
+                return true;
+            }
+            try {
+                while (nextChild(reader)) {
+                    if (THEME_PUBLICATION.equals(reader.getLocalName())) {
+                        positioned = true;
+                        return true;
+                    }
+                    skipElement(reader);
+                }
+            } catch (XMLStreamException e) {
+                throw parseFailure(e);
+            }
+            finished = true;
+            return false;
+        }
+
+        private Parsed nextPublication() throws IOException {
+            if (!hasNextPublication()) {
+                throw new NoSuchElementException();
+            }
+            positioned = false;
+            try {
+                return parseThemePublication(reader, interner, itemSinks);
+            } catch (XMLStreamException | RuntimeException e) {
+                throw parseFailure(e);
+            }
+        }
+
+        private IOException parseFailure(Exception e) {
+            return new IOException("Failed to parse XML config: " + configPath, e);
+        }
+
+        private void drain() throws IOException {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                log.debug("Failed to close XML reader for {}", configPath, e);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    private Parsed parseThemePublication(
+            XMLStreamReader reader,
+            CatalogInterner interner,
+            Function<ThemePublication, ItemSink> itemSinks
+    ) throws XMLStreamException {
+        String identifier = null;
+        String model = null;
+        String title = null;
+        String shortDescription = null;
+        Boolean hasSubunits = null;
+        LocalDate lastPublishingDate = null;
+        LocalDate secondToLastPublishingDate = null;
+        Office owner = null;
+        Office servicer = null;
+        String furtherInformation = null;
+        String downloadHostUrl = null;
+        String previewUrl = null;
+        List<String> keywords = null;
+        List<String> synonyms = null;
+        List<FileFormat> fileFormats = null;
+        List<TableInfo> tablesInfo = null;
+        String licence = null;
+        Bbox bbox = null;
+        WgcPreviewLayer wgcPreviewLayer = null;
+        List<Item> items = null;
+        List<Service> services = null;
+        ItemSink sink = null;
+        // Like the DOM lookups this parser replaces, the first occurrence of an element wins.
+        boolean seenHasSubunits = false;
+        boolean seenLastPublishingDate = false;
+        boolean seenSecondToLastPublishingDate = false;
+        boolean seenKeywords = false;
+        boolean seenSynonyms = false;
+        boolean seenFileFormats = false;
+        boolean seenTablesInfo = false;
+        boolean seenItems = false;
+        boolean seenServices = false;
+
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case "identifier" -> identifier = firstText(reader, identifier);
+                case "model" -> model = firstText(reader, model);
+                case "title" -> title = firstText(reader, title);
+                case "shortDescription" -> shortDescription = firstText(reader, shortDescription);
+                case "hasSubunits" -> {
+                    String value = readText(reader);
+                    if (!seenHasSubunits) {
+                        hasSubunits = parseBoolean(value);
+                        seenHasSubunits = true;
+                    }
+                }
+                case "lastPublishingDate" -> {
+                    String value = readText(reader);
+                    if (!seenLastPublishingDate) {
+                        lastPublishingDate = parseDate(value);
+                        seenLastPublishingDate = true;
+                    }
+                }
+                case "secondToLastPublishingDate" -> {
+                    String value = readText(reader);
+                    if (!seenSecondToLastPublishingDate) {
+                        secondToLastPublishingDate = parseDate(value);
+                        seenSecondToLastPublishingDate = true;
+                    }
+                }
+                case "owner" -> {
+                    Office office = parseOffice(reader, interner);
+                    owner = owner == null ? office : owner;
+                }
+                case "servicer" -> {
+                    Office office = parseOffice(reader, interner);
+                    servicer = servicer == null ? office : servicer;
+                }
+                case "furtherInformation" -> furtherInformation = firstText(reader, furtherInformation);
+                case "downloadHostUrl" -> downloadHostUrl = firstText(reader, downloadHostUrl);
+                case "previewUrl" -> previewUrl = firstText(reader, previewUrl);
+                case "keywords" -> {
+                    List<String> values = textList(reader, "keyword", interner);
+                    if (!seenKeywords) {
+                        keywords = values;
+                        seenKeywords = true;
+                    }
+                }
+                case "synonyms" -> {
+                    List<String> values = textList(reader, "synonym", interner);
+                    if (!seenSynonyms) {
+                        synonyms = values;
+                        seenSynonyms = true;
+                    }
+                }
+                case "fileFormats" -> {
+                    List<FileFormat> values = parseFileFormats(reader, interner);
+                    if (!seenFileFormats) {
+                        fileFormats = values;
+                        seenFileFormats = true;
+                    }
+                }
+                case "tablesInfo" -> {
+                    List<TableInfo> values = parseTableInfo(reader, interner);
+                    if (!seenTablesInfo) {
+                        tablesInfo = values;
+                        seenTablesInfo = true;
+                    }
+                }
+                case "licence" -> licence = firstText(reader, licence);
+                case "bbox" -> {
+                    Bbox value = parseBbox(reader);
+                    bbox = bbox == null ? value : bbox;
+                }
+                case "wgcPreviewLayer" -> {
+                    WgcPreviewLayer value = parseWgcPreviewLayer(reader);
+                    wgcPreviewLayer = wgcPreviewLayer == null ? value : wgcPreviewLayer;
+                }
+                case "items" -> {
+                    if (!seenItems && itemSinks != null) {
+                        sink = itemSinks.apply(new ThemePublication(
+                                identifier,
+                                model,
+                                title,
+                                shortDescription,
+                                hasSubunits,
+                                lastPublishingDate,
+                                secondToLastPublishingDate,
+                                owner,
+                                servicer,
+                                furtherInformation,
+                                interner.intern(downloadHostUrl),
+                                previewUrl,
+                                keywords,
+                                synonyms,
+                                fileFormats,
+                                tablesInfo,
+                                interner.intern(licence),
+                                bbox,
+                                wgcPreviewLayer,
+                                null,
+                                services
+                        ));
+                    }
+                    List<Item> values = parseItems(reader, seenItems ? null : sink);
+                    if (!seenItems) {
+                        items = values;
+                        seenItems = true;
+                    }
+                }
+                case "services" -> {
+                    List<Service> values = parseServices(reader, interner);
+                    if (!seenServices) {
+                        services = values;
+                        seenServices = true;
+                    }
+                }
+                default -> skipElement(reader);
+            }
+        }
+
         boolean hasMultipleItems = items != null && items.size() > 1;
         Boolean normalizedHasSubunits = Boolean.TRUE.equals(hasSubunits) || hasMultipleItems;
 
-        return new ThemePublication(
+        ThemePublication publication = new ThemePublication(
                 identifier,
                 model,
                 title,
@@ -106,199 +879,355 @@ public class ThemePublicationXmlParser {
                 owner,
                 servicer,
                 furtherInformation,
-                downloadHostUrl,
+                interner.intern(downloadHostUrl),
                 previewUrl,
                 keywords,
                 synonyms,
                 fileFormats,
                 tablesInfo,
-                licence,
+                interner.intern(licence),
                 bbox,
                 wgcPreviewLayer,
                 items,
                 services
         );
+        if (sink != null) {
+            sink.finish(publication);
+        }
+        return new Parsed(publication, sink);
     }
 
-    private Office parseOffice(Element element) {
-        if (element == null) {
-            return null;
+    private Office parseOffice(XMLStreamReader reader, CatalogInterner interner) throws XMLStreamException {
+        String agencyName = null;
+        String abbreviation = null;
+        String division = null;
+        String officeAtWeb = null;
+        String email = null;
+        String phone = null;
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case "agencyName" -> agencyName = firstText(reader, agencyName);
+                case "abbreviation" -> abbreviation = firstText(reader, abbreviation);
+                case "division" -> division = firstText(reader, division);
+                case "officeAtWeb" -> officeAtWeb = firstText(reader, officeAtWeb);
+                case "email" -> email = firstText(reader, email);
+                case "phone" -> phone = firstText(reader, phone);
+                default -> skipElement(reader);
+            }
         }
-        return new Office(
-                text(element, "agencyName"),
-                text(element, "abbreviation"),
-                text(element, "division"),
-                text(element, "officeAtWeb"),
-                text(element, "email"),
-                text(element, "phone")
-        );
+        return interner.intern(new Office(
+                interner.intern(agencyName),
+                interner.intern(abbreviation),
+                interner.intern(division),
+                interner.intern(officeAtWeb),
+                interner.intern(email),
+                interner.intern(phone)));
     }
 
-    private Bbox parseBbox(Element element) {
-        if (element == null) {
-            return null;
+    private Bbox parseBbox(XMLStreamReader reader) throws XMLStreamException {
+        String left = null;
+        String bottom = null;
+        String right = null;
+        String top = null;
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case "left" -> left = firstText(reader, left);
+                case "bottom" -> bottom = firstText(reader, bottom);
+                case "right" -> right = firstText(reader, right);
+                case "top" -> top = firstText(reader, top);
+                default -> skipElement(reader);
+            }
         }
-        return new Bbox(
-                parseDouble(text(element, "left")),
-                parseDouble(text(element, "bottom")),
-                parseDouble(text(element, "right")),
-                parseDouble(text(element, "top"))
-        );
+        return new Bbox(parseDouble(left), parseDouble(bottom), parseDouble(right), parseDouble(top));
     }
 
-    private WgcPreviewLayer parseWgcPreviewLayer(Element element) {
-        if (element == null) {
-            return null;
+    private WgcPreviewLayer parseWgcPreviewLayer(XMLStreamReader reader) throws XMLStreamException {
+        String identifier = null;
+        String title = null;
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case "identifier" -> identifier = firstText(reader, identifier);
+                case "title" -> title = firstText(reader, title);
+                default -> skipElement(reader);
+            }
         }
-        return new WgcPreviewLayer(text(element, "identifier"), text(element, "title"));
+        return new WgcPreviewLayer(identifier, title);
     }
 
-    private List<FileFormat> parseFileFormats(Element wrapper) {
-        if (wrapper == null) {
-            return null;
-        }
+    private List<FileFormat> parseFileFormats(XMLStreamReader reader, CatalogInterner interner) throws XMLStreamException {
         List<FileFormat> formats = new ArrayList<>();
-        for (Element element : childElements(wrapper, "fileFormat")) {
-            formats.add(new FileFormat(
-                    text(element, "name"),
-                    text(element, "mimetype"),
-                    text(element, "abbreviation")
-            ));
+        while (nextChild(reader)) {
+            if (!"fileFormat".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String name = null;
+            String mimetype = null;
+            String abbreviation = null;
+            while (nextChild(reader)) {
+                switch (reader.getLocalName()) {
+                    case "name" -> name = firstText(reader, name);
+                    case "mimetype" -> mimetype = firstText(reader, mimetype);
+                    case "abbreviation" -> abbreviation = firstText(reader, abbreviation);
+                    default -> skipElement(reader);
+                }
+            }
+            formats.add(interner.intern(new FileFormat(
+                    interner.intern(name), interner.intern(mimetype), interner.intern(abbreviation))));
         }
         return formats.isEmpty() ? null : formats;
     }
 
-    private List<TableInfo> parseTableInfo(Element wrapper) {
-        if (wrapper == null) {
-            return null;
-        }
+    private List<TableInfo> parseTableInfo(XMLStreamReader reader, CatalogInterner interner) throws XMLStreamException {
         List<TableInfo> tables = new ArrayList<>();
-        for (Element element : childElements(wrapper, "tableInfo")) {
-            tables.add(new TableInfo(
-                    text(element, "sqlName"),
-                    text(element, "title"),
-                    text(element, "shortDescription"),
-                    parseAttributesInfo(childElement(element, "attributesInfo"))
-            ));
+        while (nextChild(reader)) {
+            if (!"tableInfo".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String sqlName = null;
+            String title = null;
+            String shortDescription = null;
+            List<AttributeInfo> attributesInfo = null;
+            boolean seenAttributesInfo = false;
+            while (nextChild(reader)) {
+                switch (reader.getLocalName()) {
+                    case "sqlName" -> sqlName = firstText(reader, sqlName);
+                    case "title" -> title = firstText(reader, title);
+                    case "shortDescription" -> shortDescription = firstText(reader, shortDescription);
+                    case "attributesInfo" -> {
+                        List<AttributeInfo> values = parseAttributesInfo(reader, interner);
+                        if (!seenAttributesInfo) {
+                            attributesInfo = values;
+                            seenAttributesInfo = true;
+                        }
+                    }
+                    default -> skipElement(reader);
+                }
+            }
+            tables.add(new TableInfo(sqlName, title, shortDescription, attributesInfo));
         }
         return tables.isEmpty() ? null : tables;
     }
 
-    private List<AttributeInfo> parseAttributesInfo(Element wrapper) {
-        if (wrapper == null) {
-            return null;
-        }
+    private List<AttributeInfo> parseAttributesInfo(XMLStreamReader reader, CatalogInterner interner)
+            throws XMLStreamException {
         List<AttributeInfo> attributes = new ArrayList<>();
-        for (Element element : childElements(wrapper, "attributeInfo")) {
+        while (nextChild(reader)) {
+            if (!"attributeInfo".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String name = null;
+            String alias = null;
+            String shortDescription = null;
+            String datatype = null;
+            String mandatory = null;
+            while (nextChild(reader)) {
+                switch (reader.getLocalName()) {
+                    case "name" -> name = firstText(reader, name);
+                    case "alias" -> alias = firstText(reader, alias);
+                    case "shortDescription" -> shortDescription = firstText(reader, shortDescription);
+                    case "datatype" -> datatype = firstText(reader, datatype);
+                    case "mandatory" -> mandatory = firstText(reader, mandatory);
+                    default -> skipElement(reader);
+                }
+            }
             attributes.add(new AttributeInfo(
-                    text(element, "name"),
-                    text(element, "alias"),
-                    text(element, "shortDescription"),
-                    text(element, "datatype"),
-                    parseBoolean(text(element, "mandatory"))
-            ));
+                    name, alias, shortDescription, interner.intern(datatype), parseBoolean(mandatory)));
         }
         return attributes.isEmpty() ? null : attributes;
     }
 
-    private List<Item> parseItems(Element wrapper) {
-        if (wrapper == null) {
-            return null;
-        }
+    private List<Item> parseItems(XMLStreamReader reader, ItemSink sink) throws XMLStreamException {
         List<Item> items = new ArrayList<>();
-        for (Element element : childElements(wrapper, "item")) {
-            items.add(new Item(
-                    text(element, "identifier"),
-                    text(element, "title"),
-                    parseDate(text(element, "lastPublishingDate")),
-                    parseDate(text(element, "secondToLastPublishingDate")),
-                    parseBbox(childElement(element, "bbox")),
-                    text(element, "geometry")
-            ));
+        while (nextChild(reader)) {
+            if (!"item".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            Item item = parseItem(reader);
+            if (sink == null) {
+                items.add(item);
+            } else {
+                sink.accept(item);
+                items.add(new Item(item.identifier(), item.title(), item.lastPublishingDate(),
+                        item.secondToLastPublishingDate(), item.bbox(), null));
+            }
         }
         return items.isEmpty() ? null : items;
     }
 
-    private List<Service> parseServices(Element wrapper) {
-        if (wrapper == null) {
-            return null;
+    private Item parseItem(XMLStreamReader reader) throws XMLStreamException {
+        String identifier = null;
+        String title = null;
+        LocalDate lastPublishingDate = null;
+        LocalDate secondToLastPublishingDate = null;
+        boolean seenLastPublishingDate = false;
+        boolean seenSecondToLastPublishingDate = false;
+        Bbox bbox = null;
+        String geometry = null;
+        while (nextChild(reader)) {
+            switch (reader.getLocalName()) {
+                case "identifier" -> identifier = firstText(reader, identifier);
+                case "title" -> title = firstText(reader, title);
+                case "lastPublishingDate" -> {
+                    String value = readText(reader);
+                    if (!seenLastPublishingDate) {
+                        lastPublishingDate = parseDate(value);
+                        seenLastPublishingDate = true;
+                    }
+                }
+                case "secondToLastPublishingDate" -> {
+                    String value = readText(reader);
+                    if (!seenSecondToLastPublishingDate) {
+                        secondToLastPublishingDate = parseDate(value);
+                        seenSecondToLastPublishingDate = true;
+                    }
+                }
+                case "bbox" -> {
+                    Bbox value = parseBbox(reader);
+                    bbox = bbox == null ? value : bbox;
+                }
+                case "geometry" -> geometry = firstText(reader, geometry);
+                default -> skipElement(reader);
+            }
         }
+        return new Item(identifier, title, lastPublishingDate, secondToLastPublishingDate, bbox, geometry);
+    }
+
+    private List<Service> parseServices(XMLStreamReader reader, CatalogInterner interner) throws XMLStreamException {
         List<Service> services = new ArrayList<>();
-        for (Element element : childElements(wrapper, "service")) {
-            services.add(new Service(
-                    text(element, "endpoint"),
-                    text(element, "type"),
-                    parseLayers(childElement(element, "layers"))
-            ));
+        while (nextChild(reader)) {
+            if (!"service".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String endpoint = null;
+            String type = null;
+            List<Layer> layers = null;
+            boolean seenLayers = false;
+            while (nextChild(reader)) {
+                switch (reader.getLocalName()) {
+                    case "endpoint" -> endpoint = firstText(reader, endpoint);
+                    case "type" -> type = firstText(reader, type);
+                    case "layers" -> {
+                        List<Layer> values = parseLayers(reader);
+                        if (!seenLayers) {
+                            layers = values;
+                            seenLayers = true;
+                        }
+                    }
+                    default -> skipElement(reader);
+                }
+            }
+            services.add(new Service(interner.intern(endpoint), interner.intern(type), layers));
         }
         return services.isEmpty() ? null : services;
     }
 
-    private List<Layer> parseLayers(Element wrapper) {
-        if (wrapper == null) {
-            return null;
-        }
+    private List<Layer> parseLayers(XMLStreamReader reader) throws XMLStreamException {
         List<Layer> layers = new ArrayList<>();
-        for (Element element : childElements(wrapper, "layer")) {
-            layers.add(new Layer(
-                    text(element, "identifier"),
-                    text(element, "title")
-            ));
+        while (nextChild(reader)) {
+            if (!"layer".equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String identifier = null;
+            String title = null;
+            while (nextChild(reader)) {
+                switch (reader.getLocalName()) {
+                    case "identifier" -> identifier = firstText(reader, identifier);
+                    case "title" -> title = firstText(reader, title);
+                    default -> skipElement(reader);
+                }
+            }
+            layers.add(new Layer(identifier, title));
         }
         return layers.isEmpty() ? null : layers;
     }
 
-    private List<String> textList(Element parent, String wrapperTag, String itemTag) {
-        Element wrapper = childElement(parent, wrapperTag);
-        if (wrapper == null) {
-            return null;
-        }
+    private List<String> textList(XMLStreamReader reader, String itemTag, CatalogInterner interner)
+            throws XMLStreamException {
         List<String> values = new ArrayList<>();
-        for (Element element : childElements(wrapper, itemTag)) {
-            String value = element.getTextContent();
-            if (value != null && !value.isBlank()) {
-                values.add(value.trim());
+        while (nextChild(reader)) {
+            if (!itemTag.equals(reader.getLocalName())) {
+                skipElement(reader);
+                continue;
+            }
+            String value = readText(reader);
+            if (!value.isBlank()) {
+                values.add(interner.intern(value));
             }
         }
         return values.isEmpty() ? null : values;
     }
 
-    private String text(Element parent, String tag) {
-        Element element = childElement(parent, tag);
-        if (element == null) {
-            return null;
+    /**
+     * Advances to the next child element of the element the reader is currently positioned in. Returns
+     * {@code false} once the end tag of that element has been consumed.
+     */
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
         }
-        String value = element.getTextContent();
-        return value == null ? null : value.trim();
+        return false;
     }
 
-    private Element childElement(Element parent, String tag) {
-        if (parent == null) {
-            return null;
-        }
-        NodeList nodes = parent.getChildNodes();
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Node node = nodes.item(i);
-            if (node instanceof Element element && tag.equals(element.getTagName())) {
-                return element;
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
             }
         }
-        return null;
     }
 
-    private List<Element> childElements(Element parent, String tag) {
-        if (parent == null) {
-            return Collections.emptyList();
-        }
-        List<Element> elements = new ArrayList<>();
-        NodeList nodes = parent.getChildNodes();
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Node node = nodes.item(i);
-            if (node instanceof Element element && tag.equals(element.getTagName())) {
-                elements.add(element);
+    private static String firstText(XMLStreamReader reader, String current) throws XMLStreamException {
+        String value = readText(reader);
+        return current != null ? current : value;
+    }
+
+    /**
+     * Returns the trimmed text content of the current element including the text of nested elements, like
+     * {@code Node.getTextContent()}, and leaves the reader on its end tag.
+     */
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = null;
+        String single = null;
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT -> depth++;
+                case XMLStreamConstants.END_ELEMENT -> depth--;
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE,
+                     XMLStreamConstants.ENTITY_REFERENCE -> {
+                    String chunk = reader.getText();
+                    if (single == null && text == null) {
+                        single = chunk;
+                    } else {
+                        if (text == null) {
+                            text = new StringBuilder(single);
+                        }
+                        text.append(chunk);
+                    }
+                }
+                default -> {
+                }
             }
         }
-        return elements;
+        String value = text != null ? text.toString() : single;
+        return value == null ? "" : value.trim();
     }
 
     private LocalDate parseDate(String value) {
@@ -0,0 +1,99 @@
+package ch.so.agi.sodata.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of compiled {@code *token*} wildcard queries. A {@link WildcardQuery} determinizes its
+ * automaton in the constructor and is immutable afterwards, so the same instance can be shared by all
+ * requests searching the same token in the same field.
+ */
+class WildcardQueryCache implements MeterBinder {
+    private static final String CACHE_NAME = "lucene-wildcard";
+
+    private final int maxEntries;
+    private final Map<Key, Query> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    WildcardQueryCache(int maxEntries) {
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Query> eldest) {
+                return size() > WildcardQueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    Query get(String field, String token) {
+        if (maxEntries == 0) {
+            misses.increment();
+            return compile(field, token);
+        }
+
+        Key key = new Key(field, token);
+        synchronized (entries) {
+            Query cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+
+        misses.increment();
+        Query compiled = compile(field, token);
+        synchronized (entries) {
+            Query existing = entries.putIfAbsent(key, compiled);
+            return existing != null ? existing : compiled;
+        }
+    }
+
+    long hitCount() {
+        return hits.sum();
+    }
+
+    long missCount() {
+        return misses.sum();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("cache.gets", this, WildcardQueryCache::hitCount)
+                .tag("cache", CACHE_NAME)
+                .tag("result", "hit")
+                .description("Wildcard queries served from the compiled automaton cache")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", this, WildcardQueryCache::missCount)
+                .tag("cache", CACHE_NAME)
+                .tag("result", "miss")
+                .description("Wildcard queries that had to be compiled")
+                .register(registry);
+        Gauge.builder("cache.size", this, WildcardQueryCache::size)
+                .tag("cache", CACHE_NAME)
+                .description("Number of compiled wildcard queries held in the cache")
+                .register(registry);
+    }
+
+    private Query compile(String field, String token) {
+        return new WildcardQuery(new Term(field, "*" + token + "*"));
+    }
+
+    private record Key(String field, String token) {
+    }
+}
@@ -1,23 +1,35 @@
 package ch.so.agi.sodata.controller;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
 
+import ch.so.agi.sodata.service.ItemsMapMlWriter;
+import ch.so.agi.sodata.service.ThemePublicationXmlParser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -27,6 +39,12 @@ class ThemePublicationDataViewControllerTest {
     @Autowired
     private WebApplicationContext webApplicationContext;
 
+    @Autowired
+    private ThemePublicationXmlParser xmlParser;
+
+    @Autowired
+    private ItemsMapMlWriter itemsMapMlWriter;
+
     private MockMvc mockMvc;
 
     @DynamicPropertySource
@@ -36,6 +54,9 @@ class ThemePublicationDataViewControllerTest {
         registry.add("app.items-geojson-dir", () -> tempDir.resolve("items").toString());
         registry.add("indexing.directory", () -> tempDir.resolve("lucene").toString());
         registry.add("indexing.query-max-records", () -> "100");
+        registry.add("tiles.seed-max-zoom", () -> "-1");
+        // The tests rewrite the MapML files without starting a new catalog generation.
+        registry.add("mapml.cache.size", () -> "0");
     }
 
     private static Path createTempDir() {
@@ -62,7 +83,8 @@ class ThemePublicationDataViewControllerTest {
                 .andExpect(content().string(containsString("<mapml-viewer")))
                 .andExpect(content().string(containsString("map-layer label=\"Hintergrundkarte\"")))
                 .andExpect(content().string(containsString(
-                        "src=\"/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml\"")))
+                        "tref=\"/themepublication/data/ch.so.agi.subunit/tiles/{z}/{x}/{y}\"")))
+                .andExpect(content().string(containsString("data-download-format=\"xtf.zip\"")))
                 .andExpect(content().string(containsString("ch.so.agi.subunit")))
                 .andExpect(content().string(containsString("xtf.zip")));
     }
@@ -71,7 +93,7 @@ class ThemePublicationDataViewControllerTest {
     void returnsMapMlForExistingIdentifierAndFormat() throws Exception {
         Path itemsDir = tempDir.resolve("items");
         Files.createDirectories(itemsDir);
-        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.xtf.zip.mapml"), """
+        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.mapml"), """
                 <?xml version="1.0" encoding="UTF-8"?>
                 <mapml- lang="de" xmlns="http://www.w3.org/1999/xhtml">
                   <map-head>
@@ -94,7 +116,7 @@ class ThemePublicationDataViewControllerTest {
                         <div>
                           <p><strong>Subunit:</strong> Subunit Item 1</p>
                           <p><strong>Identifier:</strong> subunit-1</p>
-                          <p><a href="https://files.example/ch.so.agi.subunit/aktuell/subunit-1.xtf.zip" target="_blank" rel="noopener noreferrer">Download XTF.ZIP</a></p>
+                          <p><a href="/themepublication/data/ch.so.agi.subunit/items/subunit-1" target="_blank" rel="noopener noreferrer">Download</a></p>
                         </div>
                       </map-properties>
                     </map-feature>
@@ -114,7 +136,162 @@ class ThemePublicationDataViewControllerTest {
                 .andExpect(content().string(containsString("fill: #ffffff")))
                 .andExpect(content().string(containsString("fill-opacity: 0.1")))
                 .andExpect(content().string(containsString(
-                        "https://files.example/ch.so.agi.subunit/aktuell/subunit-1.xtf.zip")));
+                        "/themepublication/data/ch.so.agi.subunit/items/subunit-1")));
+    }
+
+    @Test
+    void returnsSimplifiedLevelMatchingZoomOrResolution() throws Exception {
+        Path itemsDir = tempDir.resolve("items");
+        Files.createDirectories(itemsDir);
+        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.mapml"), "<mapml-><!-- full --></mapml->");
+        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.z10.mapml"), "<mapml-><!-- z10 --></mapml->");
+        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.z12.mapml"), "<mapml-><!-- z12 --></mapml->");
+
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml").param("zoom", "8"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("z10")));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml").param("zoom", "11"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("z12")));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml")
+                        .param("resolution", "50"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("z12")));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml").param("zoom", "13"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("full")));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.subunit/xtf.zip/subunits.mapml").param("zoom", "17"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("full")));
+    }
+
+    @Test
+    void servesPrecompressedMapMlWithValidatorsAndRanges() throws Exception {
+        itemsMapMlWriter.writeMapMlFiles(xmlParser.loadThemePublications());
+        String mapml = Files.readString(tempDir.resolve("items").resolve("ch.so.agi.alpha.mapml"));
+        String url = "/themepublication/data/ch.so.agi.alpha/gpkg.zip/subunits.mapml";
+
+        MvcResult gzip = mockMvc.perform(get(url).header(HttpHeaders.ACCEPT_ENCODING, "br, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, containsString(HttpHeaders.ACCEPT_ENCODING)))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+                .andReturn();
+        String gzipETag = gzip.getResponse().getHeader(HttpHeaders.ETAG);
+        assertThat(gzipETag).startsWith("\"");
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(gzip.getResponse().getContentAsByteArray()))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(mapml);
+        }
+
+        MvcResult identity = mockMvc.perform(get(url).header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH,
+                        Files.size(tempDir.resolve("items").resolve("ch.so.agi.alpha.mapml"))))
+                .andExpect(content().string(mapml))
+                .andReturn();
+        assertThat(identity.getResponse().getHeader(HttpHeaders.ETAG)).isNotEqualTo(gzipETag);
+
+        mockMvc.perform(get(url).header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                        .header(HttpHeaders.IF_NONE_MATCH, gzipETag))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get(url).header(HttpHeaders.RANGE, "bytes=0-9"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE,
+                        "bytes 0-9/" + mapml.getBytes(StandardCharsets.UTF_8).length))
+                .andExpect(content().string(mapml.substring(0, 10)));
+    }
+
+    @Test
+    void returnsOnlyTheSubunitsInsideTheBbox() throws Exception {
+        itemsMapMlWriter.writeMapMlFiles(xmlParser.loadThemePublications());
+        String url = "/themepublication/data/ch.so.agi.alpha/gpkg.zip/subunits.mapml";
+
+        mockMvc.perform(get(url).param("bbox", "0,0,1000,1000"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.parseMediaType("text/mapml")))
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andExpect(content().string(containsString("<map-body>")))
+                .andExpect(content().string(not(containsString("<map-feature"))));
+        mockMvc.perform(get(url).param("bbox", "-20037508,-20037508,20037508,20037508")
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"));
+        mockMvc.perform(get(url).param("bbox", "1,2,3"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get(url).param("bbox", "10,0,0,10"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void servesSubunitsAsFlatGeobufWithRangesAndAsGeoJson() throws Exception {
+        itemsMapMlWriter.writeMapMlFiles(xmlParser.loadThemePublications());
+        byte[] flatGeobuf = Files.readAllBytes(tempDir.resolve("items").resolve("ch.so.agi.alpha.fgb"));
+        String url = "/themepublication/data/ch.so.agi.alpha/subunits";
+
+        mockMvc.perform(get(url + ".fgb").header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/flatgeobuf"))
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andExpect(content().bytes(flatGeobuf));
+        mockMvc.perform(get(url + ".fgb").header(HttpHeaders.RANGE, "bytes=0-7"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 0-7/" + flatGeobuf.length))
+                .andExpect(content().bytes(Arrays.copyOf(flatGeobuf, 8)));
+
+        MvcResult geoJson = mockMvc.perform(get(url + ".geojson").header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.parseMediaType("application/geo+json")))
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andReturn();
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(geoJson.getResponse().getContentAsByteArray()))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8))
+                    .startsWith("{\"type\":\"FeatureCollection\"")
+                    .contains("\"title\":\"Alpha Item\"");
+        }
+
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.beta/subunits.fgb"))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.unknown/subunits.geojson"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void returnsSubunitTilesWithETag() throws Exception {
+        itemsMapMlWriter.writeMapMlFiles(xmlParser.loadThemePublications());
+
+        MvcResult result = mockMvc.perform(get("/themepublication/data/ch.so.agi.alpha/tiles/0/0/0"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.parseMediaType("text/mapml")))
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andExpect(content().string(containsString("<map-featurecaption>Alpha Item</map-featurecaption>")))
+                .andReturn();
+
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.alpha/tiles/0/0/0")
+                        .header(HttpHeaders.IF_NONE_MATCH, result.getResponse().getHeader(HttpHeaders.ETAG)))
+                .andExpect(status().isNotModified());
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.alpha/tiles/1/2/0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void redirectsItemLinksToTheDownloadOfTheSelectedFormat() throws Exception {
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.multi/items/multi-1").param("format", "GPKG.zip"))
+                .andExpect(status().isFound())
+                .andExpect(header().string(HttpHeaders.LOCATION,
+                        "https://files.example/ch.so.agi.multi/aktuell/multi-1.gpkg.zip"));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.multi/items/multi-1"))
+                .andExpect(status().isFound())
+                .andExpect(header().string(HttpHeaders.LOCATION,
+                        "https://files.example/ch.so.agi.multi/aktuell/multi-1.dxf.zip"));
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.multi/items/multi-1").param("format", "csv"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/themepublication/data/ch.so.agi.unknown/items/multi-1"))
+                .andExpect(status().isNotFound());
     }
 
     @Test
@@ -127,7 +304,7 @@ class ThemePublicationDataViewControllerTest {
     void returnsBadRequestForUnsupportedFormat() throws Exception {
         Path itemsDir = tempDir.resolve("items");
         Files.createDirectories(itemsDir);
-        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.xtf.zip.mapml"), """
+        Files.writeString(itemsDir.resolve("ch.so.agi.subunit.mapml"), """
                 <mapml- lang="de" xmlns="http://www.w3.org/1999/xhtml"></mapml->
                 """);
 
@@ -0,0 +1,64 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.IndexingProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.ParserProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CatalogSnapshotServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void restoresSavedSnapshotWhileChecksumAndArtifactsMatch() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        Path itemsDir = Files.createDirectories(tempDir.resolve("items"));
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), itemsDir.toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        List<ThemePublication> publications = parser.loadThemePublications();
+        Files.writeString(itemsDir.resolve("ch.so.agi.alpha.mapml"), "<mapml- />");
+
+        IndexingProperties indexingProperties = new IndexingProperties(tempDir.resolve("lucene").toString(), 100, 64);
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        CatalogSnapshotService snapshotService =
+                new CatalogSnapshotService(indexingProperties, appProperties, mapMlProperties, objectMapper);
+        String checksum = parser.checksum();
+        snapshotService.save(checksum, publications, publications.size(), List.of("ch.so.agi.alpha.mapml"));
+
+        CatalogSnapshotService.Snapshot snapshot = snapshotService.restore(checksum).orElseThrow();
+        assertThat(snapshot.publications()).isEqualTo(publications);
+        assertThat(snapshot.manifest().schemaVersion()).isEqualTo(CatalogSnapshotService.SCHEMA_VERSION);
+        assertThat(snapshot.manifest().artifacts()).containsExactly("ch.so.agi.alpha.mapml");
+
+        assertThat(snapshotService.restore("other-checksum")).isEmpty();
+        MapMlProperties morePrecise = new MapMlProperties(3, null, null, null, null, null, null);
+        assertThat(new CatalogSnapshotService(indexingProperties, appProperties, morePrecise, objectMapper)
+                .restore(checksum)).isEmpty();
+        MapMlProperties approximate =
+                new MapMlProperties(null, null, null, MapMlProperties.Reprojection.APPROXIMATE, null, null, null);
+        assertThat(new CatalogSnapshotService(indexingProperties, appProperties, approximate, objectMapper)
+                .restore(checksum)).isEmpty();
+
+        Files.delete(itemsDir.resolve("ch.so.agi.alpha.mapml"));
+        assertThat(snapshotService.restore(checksum)).isEmpty();
+
+        snapshotService.invalidate();
+        assertThat(snapshotService.restore(checksum)).isEmpty();
+    }
+}
@@ -0,0 +1,271 @@
+package ch.so.agi.sodata.service;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Minimal FlatGeobuf reader for the files written by {@link SubunitFlatGeobuf}, following the schema of
+ * {@code header.fbs} and {@code feature.fbs} and the packed Hilbert R-tree layout of the specification. Reads the
+ * {@code id} and {@code title} properties and the geometry of the features.
+ */
+final class FlatGeobufReader {
+    static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03};
+    static final int NODE_BYTES = 40;
+
+    static final int HEADER_NAME = 0;
+    static final int HEADER_ENVELOPE = 1;
+    static final int HEADER_GEOMETRY_TYPE = 2;
+    static final int HEADER_COLUMNS = 7;
+    static final int HEADER_FEATURES_COUNT = 8;
+    static final int HEADER_INDEX_NODE_SIZE = 9;
+    static final int HEADER_CRS = 10;
+    static final int HEADER_TITLE = 11;
+    static final int COLUMN_NAME = 0;
+    static final int COLUMN_TYPE = 1;
+    static final int CRS_CODE = 1;
+
+    private static final int FEATURE_GEOMETRY = 0;
+    private static final int FEATURE_PROPERTIES = 1;
+    private static final int GEOMETRY_ENDS = 0;
+    private static final int GEOMETRY_XY = 1;
+    private static final int GEOMETRY_TYPE = 6;
+    private static final int GEOMETRY_PARTS = 7;
+    private static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int UNKNOWN = 0;
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOINT = 4;
+    private static final int MULTILINESTRING = 5;
+    private static final int MULTIPOLYGON = 6;
+
+    private FlatGeobufReader() {
+    }
+
+    /**
+     * Reads the features whose envelope intersects {@code filter} by walking the index, or all features if
+     * {@code filter} is {@code null}.
+     */
+    static List<SubunitMapMlService.SubunitFeature> read(Path path, Envelope filter) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = readFully(channel, 0, 8);
+            if (!Arrays.equals(magic.array(), 0, 4, MAGIC, 0, 4)) {
+                throw new IOException("Not a FlatGeobuf 3 file: " + path);
+            }
+            int headerSize = readFully(channel, 8, 4).getInt();
+            ByteBuffer header = readFully(channel, 12, headerSize);
+            int headerTable = header.getInt(0);
+            int countField = field(header, headerTable, HEADER_FEATURES_COUNT);
+            long count = countField == 0 ? 0 : header.getLong(countField);
+            int nodeSizeField = field(header, headerTable, HEADER_INDEX_NODE_SIZE);
+            int nodeSize = nodeSizeField == 0 ? DEFAULT_NODE_SIZE : Short.toUnsignedInt(header.getShort(nodeSizeField));
+            long indexStart = 12L + headerSize;
+            long indexSize = count > 0 && nodeSize > 0 ? levelBounds(count, nodeSize)[0][1] * NODE_BYTES : 0;
+            long featuresStart = indexStart + indexSize;
+
+            List<Long> offsets = new ArrayList<>();
+            if (filter == null || indexSize == 0) {
+                long offset = 0;
+                for (long i = 0; i < count; i++) {
+                    offsets.add(offset);
+                    offset += 4 + Integer.toUnsignedLong(readFully(channel, featuresStart + offset, 4).getInt());
+                }
+            } else {
+                search(readFully(channel, indexStart, Math.toIntExact(indexSize)), count, nodeSize, filter, offsets);
+            }
+
+            GeometryFactory geometryFactory = new GeometryFactory();
+            List<SubunitMapMlService.SubunitFeature> features = new ArrayList<>(offsets.size());
+            for (long offset : offsets) {
+                int size = readFully(channel, featuresStart + offset, 4).getInt();
+                ByteBuffer feature = readFully(channel, featuresStart + offset + 4, size);
+                int table = feature.getInt(0);
+                String[] values = properties(feature, field(feature, table, FEATURE_PROPERTIES));
+                Geometry geometry = geometry(feature, reference(feature, field(feature, table, FEATURE_GEOMETRY)),
+                        UNKNOWN, geometryFactory);
+                features.add(new SubunitMapMlService.SubunitFeature(values[0], values[0], values[1], geometry));
+            }
+            return features;
+        }
+    }
+
+    /**
+     * Start (inclusive) and end (exclusive) node of every level of a packed R-tree, leaves first, as in
+     * {@code calcTreeSize} and {@code generateLevelBounds} of the reference implementation.
+     */
+    static long[][] levelBounds(long count, int nodeSize) {
+        List<Long> levelNodes = new ArrayList<>();
+        long nodes = count;
+        long total = nodes;
+        levelNodes.add(nodes);
+        do {
+            nodes = (nodes + nodeSize - 1) / nodeSize;
+            total += nodes;
+            levelNodes.add(nodes);
+        } while (nodes != 1);
+
+        long[][] bounds = new long[levelNodes.size()][];
+        long offset = total;
+        for (int i = 0; i < levelNodes.size(); i++) {
+            offset -= levelNodes.get(i);
+            bounds[i] = new long[]{offset, offset + levelNodes.get(i)};
+        }
+        return bounds;
+    }
+
+    /**
+     * Position of field {@code id} of the table at {@code table}, or 0 if the field is absent.
+     */
+    static int field(ByteBuffer buffer, int table, int id) {
+        int vtable = table - buffer.getInt(table);
+        int slot = 4 + 2 * id;
+        if (slot >= Short.toUnsignedInt(buffer.getShort(vtable))) {
+            return 0;
+        }
+        int offset = Short.toUnsignedInt(buffer.getShort(vtable + slot));
+        return offset == 0 ? 0 : table + offset;
+    }
+
+    static int reference(ByteBuffer buffer, int position) {
+        return position + buffer.getInt(position);
+    }
+
+    static String string(ByteBuffer buffer, int position) {
+        int string = reference(buffer, position);
+        return new String(buffer.array(), string + 4, buffer.getInt(string), StandardCharsets.UTF_8);
+    }
+
+    private static void search(ByteBuffer index, long count, int nodeSize, Envelope filter, List<Long> offsets) {
+        long[][] bounds = levelBounds(count, nodeSize);
+        long firstLeaf = bounds[0][0];
+        Deque<long[]> queue = new ArrayDeque<>();
+        queue.add(new long[]{0, bounds.length - 1});
+        while (!queue.isEmpty()) {
+            long[] next = queue.poll();
+            int level = (int) next[1];
+            long end = Math.min(next[0] + nodeSize, bounds[level][1]);
+            for (long position = next[0]; position < end; position++) {
+                int node = Math.toIntExact(position * NODE_BYTES);
+                if (index.getDouble(node + 16) < filter.getMinX() || index.getDouble(node + 24) < filter.getMinY()
+                        || index.getDouble(node) > filter.getMaxX() || index.getDouble(node + 8) > filter.getMaxY()) {
+                    continue;
+                }
+                long offset = index.getLong(node + 32);
+                if (position >= firstLeaf) {
+                    offsets.add(offset);
+                } else {
+                    queue.add(new long[]{offset, level - 1});
+                }
+            }
+        }
+        offsets.sort(null);
+    }
+
+    private static String[] properties(ByteBuffer feature, int position) {
+        String[] values = new String[2];
+        if (position == 0) {
+            return values;
+        }
+        int vector = reference(feature, position);
+        int end = vector + 4 + feature.getInt(vector);
+        for (int i = vector + 4; i < end; ) {
+            int column = Short.toUnsignedInt(feature.getShort(i));
+            int length = feature.getInt(i + 2);
+            if (column < values.length) {
+                values[column] = new String(feature.array(), i + 6, length, StandardCharsets.UTF_8);
+            }
+            i += 6 + length;
+        }
+        return values;
+    }
+
+    private static Geometry geometry(ByteBuffer buffer, int table, int parentType, GeometryFactory factory) {
+        int typeField = field(buffer, table, GEOMETRY_TYPE);
+        int type = typeField != 0 ? Byte.toUnsignedInt(buffer.get(typeField)) : parentType;
+        int partsField = field(buffer, table, GEOMETRY_PARTS);
+        if (partsField != 0) {
+            int vector = reference(buffer, partsField);
+            int count = buffer.getInt(vector);
+            Geometry[] parts = new Geometry[count];
+            int partType = type == MULTIPOLYGON ? POLYGON : UNKNOWN;
+            for (int i = 0; i < count; i++) {
+                parts[i] = geometry(buffer, reference(buffer, vector + 4 + 4 * i), partType, factory);
+            }
+            return type == MULTIPOLYGON
+                    ? factory.createMultiPolygon(Arrays.copyOf(parts, count, Polygon[].class))
+                    : factory.createGeometryCollection(parts);
+        }
+
+        int xyVector = reference(buffer, field(buffer, table, GEOMETRY_XY));
+        int vertices = buffer.getInt(xyVector) / 2;
+        double[] xy = new double[vertices * 2];
+        for (int i = 0; i < xy.length; i++) {
+            xy[i] = buffer.getDouble(xyVector + 4 + 8 * i);
+        }
+        int[] ends = {vertices};
+        if (field(buffer, table, GEOMETRY_ENDS) != 0) {
+            int endsVector = reference(buffer, field(buffer, table, GEOMETRY_ENDS));
+            ends = new int[buffer.getInt(endsVector)];
+            for (int i = 0; i < ends.length; i++) {
+                ends[i] = buffer.getInt(endsVector + 4 + 4 * i);
+            }
+        }
+
+        List<CoordinateSequence> sequences = new ArrayList<>(ends.length);
+        int start = 0;
+        for (int end : ends) {
+            CoordinateSequence sequence = factory.getCoordinateSequenceFactory().create(end - start, 2);
+            for (int i = start; i < end; i++) {
+                sequence.setOrdinate(i - start, CoordinateSequence.X, xy[i * 2]);
+                sequence.setOrdinate(i - start, CoordinateSequence.Y, xy[i * 2 + 1]);
+            }
+            sequences.add(sequence);
+            start = end;
+        }
+        return switch (type) {
+            case POINT -> factory.createPoint(sequences.getFirst());
+            case LINESTRING -> factory.createLineString(sequences.getFirst());
+            case POLYGON -> {
+                LinearRing[] holes = new LinearRing[sequences.size() - 1];
+                for (int i = 0; i < holes.length; i++) {
+                    holes[i] = factory.createLinearRing(sequences.get(i + 1));
+                }
+                yield factory.createPolygon(factory.createLinearRing(sequences.getFirst()), holes);
+            }
+            case MULTIPOINT -> factory.createMultiPoint(sequences.getFirst());
+            case MULTILINESTRING -> factory.createMultiLineString(sequences.stream()
+                    .map(factory::createLineString)
+                    .toArray(LineString[]::new));
+            default -> throw new IllegalArgumentException("Unsupported FlatGeobuf geometry type " + type);
+        };
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of FlatGeobuf file");
+            }
+        }
+        return buffer.flip();
+    }
+}
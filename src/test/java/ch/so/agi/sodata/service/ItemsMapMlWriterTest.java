@@ -1,15 +1,33 @@
 package ch.so.agi.sodata.service;
 
 import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.ParserProperties;
+import ch.so.agi.sodata.domain.Item;
 import ch.so.agi.sodata.domain.ThemePublication;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.within;
@@ -25,20 +43,32 @@ class ItemsMapMlWriterTest {
     void writesMapMlForItems() throws Exception {
         Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
         AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.toString());
-        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties);
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
         List<ThemePublication> publications = parser.loadThemePublications();
 
-        ItemsMapMlWriter writer = new ItemsMapMlWriter(appProperties, new SubunitMapMlService());
+        ItemsMapMlWriter writer = itemsMapMlWriter(appProperties);
         writer.writeMapMlFiles(publications);
 
-        Path mapMlPath = tempDir.resolve("ch.so.agi.alpha.gpkg.zip.mapml");
+        Path mapMlPath = tempDir.resolve("ch.so.agi.alpha.mapml");
         assertThat(Files.exists(mapMlPath)).isTrue();
-        assertThat(Files.exists(tempDir.resolve("ch.so.agi.alpha.geojson"))).isFalse();
+        assertThat(tempDir.resolve("ch.so.agi.alpha.z10.mapml")).isRegularFile();
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.map(file -> file.getFileName().toString())).noneMatch(name -> name.contains("gpkg"));
+        }
+        assertThat(tempDir.resolve("ch.so.agi.alpha.fgb")).isRegularFile();
+        String geoJson = Files.readString(tempDir.resolve("ch.so.agi.alpha.geojson"));
+        assertThat(geoJson).startsWith("{\"type\":\"FeatureCollection\"")
+                .contains("\"properties\":{\"id\":\"alpha-1\",\"title\":\"Alpha Item\"}");
+        assertThat(tempDir.resolve("ch.so.agi.alpha.geojson.gz")).isRegularFile();
 
         String mapml = Files.readString(mapMlPath);
         assertThat(mapml).contains("<mapml-");
         assertThat(mapml).contains("<map-featurecaption>Alpha Item</map-featurecaption>");
-        assertThat(mapml).contains("https://files.example/ch.so.agi.alpha/aktuell/alpha-1.gpkg.zip");
+        assertThat(mapml).contains("<a href=\"/themepublication/data/ch.so.agi.alpha/items/alpha-1\"");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(ItemsMapMlWriter.gzipPath(mapMlPath)))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(mapml);
+        }
+        assertThat(Files.size(ItemsMapMlWriter.gzipPath(mapMlPath))).isLessThan(Files.size(mapMlPath));
 
         Matcher matcher = FIRST_COORDINATE_PATTERN.matcher(mapml);
         assertThat(matcher.find()).isTrue();
@@ -49,4 +79,356 @@ class ItemsMapMlWriterTest {
         assertThat(y).isCloseTo(5934093.19, within(0.5));
         assertThat(y).isBetween(5_930_000.0, 5_940_000.0);
     }
+
+    @Test
+    void streamsItemsIntoTheSameMapMlAsTheBufferedWriter() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        Path bufferedDir = tempDir.resolve("buffered");
+        Path streamedDir = tempDir.resolve("streamed");
+        ParserProperties parserProperties = new ParserProperties(null);
+
+        AppProperties bufferedProperties = new AppProperties(xmlPath.toString(), bufferedDir.toString());
+        List<ThemePublication> loaded = new ThemePublicationXmlParser(bufferedProperties, parserProperties)
+                .loadThemePublications();
+        int bufferedFiles = itemsMapMlWriter(bufferedProperties).writeMapMlFiles(loaded);
+
+        AppProperties streamedProperties = new AppProperties(xmlPath.toString(), streamedDir.toString());
+        ItemsMapMlWriter writer = itemsMapMlWriter(streamedProperties);
+        List<ThemePublication> streamed;
+        int streamedFiles;
+        try (ItemsMapMlWriter.Batch batch = writer.newBatch()) {
+            streamed = new ThemePublicationXmlParser(streamedProperties, parserProperties).loadThemePublications(batch);
+            streamedFiles = batch.written();
+            batch.publish(List.of());
+        }
+
+        assertThat(streamedFiles).isEqualTo(bufferedFiles).isPositive();
+        assertThat(streamed).extracting(ThemePublication::identifier)
+                .containsExactlyElementsOf(loaded.stream().map(ThemePublication::identifier).toList());
+        for (ThemePublication publication : streamed) {
+            if (publication.items() != null) {
+                assertThat(publication.items()).extracting(Item::geometry).containsOnlyNulls();
+            }
+        }
+        Path generation = writer.currentDirectory();
+        assertThat(generation).isEqualTo(streamedDir.resolve("current"));
+        try (Stream<Path> files = Files.list(bufferedDir)) {
+            for (Path file : files.toList()) {
+                assertThat(generation.resolve(file.getFileName())).hasSameBinaryContentAs(file);
+            }
+        }
+        try (Stream<Path> files = Files.list(generation)) {
+            assertThat(files.map(file -> file.getFileName().toString())).noneMatch(name -> name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    void skipsPublicationsWhoseFilesFailWithoutAffectingTheOthers() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.toString());
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        SubunitMapMlService failing = new SubunitMapMlService(mapMlProperties) {
+            @Override
+            boolean appendFeature(StringBuilder mapml, ThemePublication publication, SubunitFeature feature) {
+                if ("ch.so.agi.subunit".equals(publication.identifier())) {
+                    throw new IllegalStateException("broken geometry");
+                }
+                return super.appendFeature(mapml, publication, feature);
+            }
+        };
+        ItemsMapMlWriter writer = new ItemsMapMlWriter(appProperties, mapMlProperties, failing);
+
+        List<ThemePublication> publications;
+        try (ItemsMapMlWriter.Batch batch = writer.newBatch()) {
+            publications = new ThemePublicationXmlParser(appProperties, new ParserProperties(null))
+                    .loadThemePublications(batch);
+            assertThat(batch.files()).contains("ch.so.agi.alpha.mapml", "ch.so.agi.multi.mapml")
+                    .noneMatch(name -> name.startsWith("ch.so.agi.subunit."));
+            batch.publish(List.of());
+        }
+
+        assertThat(publications).extracting(ThemePublication::identifier).contains("ch.so.agi.subunit");
+        try (Stream<Path> files = Files.list(writer.currentDirectory())) {
+            assertThat(files.map(file -> file.getFileName().toString()))
+                    .noneMatch(name -> name.startsWith("ch.so.agi.subunit.") || name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    void publishesEveryBatchAsANewGenerationAndKeepsThePreviousOne() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ItemsMapMlWriter writer = itemsMapMlWriter(appProperties);
+        Path generations = tempDir.resolve("generations");
+
+        try (ItemsMapMlWriter.Batch batch = writer.newBatch()) {
+            parser.loadThemePublications(batch);
+            assertThat(writer.mapMlPath("ch.so.agi.alpha")).doesNotExist();
+            batch.publish(List.of());
+        }
+        Path first = writer.mapMlPath("ch.so.agi.alpha").toRealPath();
+        assertThat(first).startsWith(generations.toRealPath().resolve("1"));
+        try (InputStream reading = Files.newInputStream(first)) {
+            publishBatch(writer, parser);
+            assertThat(writer.mapMlPath("ch.so.agi.alpha").toRealPath())
+                    .startsWith(generations.toRealPath().resolve("2"));
+            assertThat(first).isRegularFile();
+
+            publishBatch(writer, parser);
+            assertThat(first).doesNotExist();
+            assertThat(new String(reading.readAllBytes(), StandardCharsets.UTF_8)).contains("Alpha Item");
+        }
+        try (ItemsMapMlWriter.Batch unpublished = writer.newBatch()) {
+            parser.loadThemePublications(unpublished);
+        }
+        publishBatch(writer, parser);
+        try (Stream<Path> directories = Files.list(generations)) {
+            assertThat(directories.map(directory -> directory.getFileName().toString()))
+                    .containsExactlyInAnyOrder("3", "5");
+        }
+        assertThat(Files.readSymbolicLink(tempDir.resolve("current"))).isEqualTo(Path.of("generations", "5"));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertThat(files.map(file -> file.getFileName().toString()))
+                    .containsExactlyInAnyOrder("current", "generations");
+        }
+    }
+
+    @Test
+    void simplifiesLayersAboveTheCoverageLimitFeatureByFeature() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.toString());
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, 0);
+        ItemsMapMlWriter writer =
+                new ItemsMapMlWriter(appProperties, mapMlProperties, new SubunitMapMlService(mapMlProperties));
+
+        publishBatch(writer, new ThemePublicationXmlParser(appProperties, new ParserProperties(null)));
+
+        for (int zoom : List.of(10, 12, 14)) {
+            assertThat(Files.readString(writer.mapMlPath("ch.so.agi.alpha", zoom)))
+                    .contains("<map-feature id=\"alpha-1\">")
+                    .endsWith("</mapml->\n");
+        }
+        try (Stream<Path> files = Files.list(writer.currentDirectory())) {
+            assertThat(files.map(file -> file.getFileName().toString()))
+                    .noneMatch(name -> name.startsWith("session-") || name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    void writesLargeDocumentsInChunksWithTheSameMarkupAsToMapMl() throws Exception {
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<SubunitMapMlService.SubunitFeature> features = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            Polygon polygon = geometryFactory.createPolygon(new Coordinate[]{
+                    new Coordinate(i, 0), new Coordinate(i + 0.5, 0),
+                    new Coordinate(i + 0.5, 0.25), new Coordinate(i, 0)
+            });
+            features.add(new SubunitMapMlService.SubunitFeature("f" + i, "f" + i, "Gebiet <Ä " + i + ">", polygon));
+        }
+        LineString invalid = geometryFactory.createLineString(new Coordinate[]{
+                new Coordinate(Double.NaN, 0), new Coordinate(1, 1)
+        });
+        features.add(new SubunitMapMlService.SubunitFeature("empty", "empty", null, invalid));
+
+        SubunitMapMlService service = subunitMapMlService();
+        Path file = tempDir.resolve("large.mapml");
+        try (MapMlOutput output = MapMlOutput.open(file)) {
+            service.writeMapMl(publication, features, output);
+        }
+
+        String expected = service.toMapMl(publication, features);
+        assertThat(expected.length()).isGreaterThan(4 * MapMlOutput.BUFFER_SIZE);
+        assertThat(expected).doesNotContain("id=\"empty\"");
+        assertThat(Files.readString(file)).isEqualTo(expected);
+    }
+
+    @Test
+    void roundsCoordinatesAndDropsVerticesThatCollapse() throws Exception {
+        SubunitMapMlService service =
+                new SubunitMapMlService(new MapMlProperties(2, null, null, null, null, null, null));
+        GeometryFactory geometryFactory = new GeometryFactory();
+        LineString line = geometryFactory.createLineString(new Coordinate[]{
+                new Coordinate(828064.771234, 5934093.1), new Coordinate(828064.768, 5934093.104),
+                new Coordinate(828070.0, -0.006), new Coordinate(-12.3049, 0.0001)
+        });
+        Polygon sliver = geometryFactory.createPolygon(new Coordinate[]{
+                new Coordinate(0, 0), new Coordinate(0.001, 0), new Coordinate(0.001, 0.001), new Coordinate(0, 0)
+        });
+
+        String mapml = service.toMapMl(TestPublications.alpha(tempDir), List.of(
+                new SubunitMapMlService.SubunitFeature("line", "line", null, line),
+                new SubunitMapMlService.SubunitFeature("sliver", "sliver", null, sliver)));
+
+        assertThat(mapml).contains("<map-coordinates>828064.77 5934093.1 828070 -0.01 -12.3 0</map-coordinates>");
+        assertThat(mapml).doesNotContain("id=\"sliver\"");
+        SubunitMapMlService fullPrecision =
+                new SubunitMapMlService(new MapMlProperties(-1, null, null, null, null, null, null));
+        assertThat(fullPrecision.toMapMl(TestPublications.alpha(tempDir), List.of(
+                new SubunitMapMlService.SubunitFeature("line", "line", null, line))))
+                .contains("<map-coordinates>828064.771234 5934093.1 828064.768 5934093.104");
+    }
+
+    @Test
+    void writesFlatGeobufWithAnIndexThatFindsTheFeaturesInAnExtent() throws Exception {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<SubunitMapMlService.SubunitFeature> features = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            double x = (i % 40) * 100;
+            double y = (i / 40) * 100;
+            features.add(new SubunitMapMlService.SubunitFeature("f" + i, "item-" + i, "Gebiet " + i,
+                    geometryFactory.toGeometry(new Envelope(x, x + 50, y, y + 50))));
+        }
+        Polygon withHole = geometryFactory.createPolygon(
+                geometryFactory.createLinearRing(new Coordinate[]{
+                        new Coordinate(-1000, -1000), new Coordinate(-500, -1000),
+                        new Coordinate(-500, -500), new Coordinate(-1000, -1000)}),
+                new LinearRing[]{geometryFactory.createLinearRing(new Coordinate[]{
+                        new Coordinate(-900, -950), new Coordinate(-600, -950),
+                        new Coordinate(-600, -650), new Coordinate(-900, -950)})});
+        features.add(new SubunitMapMlService.SubunitFeature("hole", "hole", "Loch",
+                geometryFactory.createMultiPolygon(new Polygon[]{withHole})));
+        Path storePath = tempDir.resolve("subunits" + SubunitFeatureStore.SUFFIX);
+        try (SubunitFeatureStore.Writer store = SubunitFeatureStore.open(storePath)) {
+            for (SubunitMapMlService.SubunitFeature feature : features) {
+                store.append(feature);
+            }
+        }
+        Path file = tempDir.resolve("subunits.fgb");
+
+        assertThat(SubunitFlatGeobuf.write(file, "subunits", "Subunits", SubunitFeatureStore.map(storePath)))
+                .isEqualTo(1_001);
+
+        byte[] bytes = Files.readAllBytes(file);
+        assertThat(new String(bytes, 0, 3, StandardCharsets.US_ASCII)).isEqualTo("fgb");
+        assertThat(FlatGeobufReader.read(file, null)).hasSize(1_001);
+        List<SubunitMapMlService.SubunitFeature> found = FlatGeobufReader.read(file, new Envelope(120, 260, 20, 80));
+        assertThat(found).extracting(SubunitMapMlService.SubunitFeature::itemIdentifier)
+                .containsExactlyInAnyOrder("item-1", "item-2");
+        assertThat(found).extracting(SubunitMapMlService.SubunitFeature::title)
+                .containsExactlyInAnyOrder("Gebiet 1", "Gebiet 2");
+        SubunitMapMlService.SubunitFeature hole = FlatGeobufReader.read(file, new Envelope(-800, -700, -900, -800))
+                .getFirst();
+        assertThat(hole.geometry().equalsExact(features.getLast().geometry())).isTrue();
+    }
+
+    @Test
+    void writesFlatGeobufHeaderAndPackedTreeAsSpecified() throws Exception {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        Path storePath = tempDir.resolve("subunits" + SubunitFeatureStore.SUFFIX);
+        try (SubunitFeatureStore.Writer store = SubunitFeatureStore.open(storePath)) {
+            for (int i = 0; i < 20; i++) {
+                store.append(new SubunitMapMlService.SubunitFeature("f" + i, "item-" + i, "Gebiet " + i,
+                        geometryFactory.toGeometry(new Envelope(i * 100, i * 100 + 50, 0, 50))));
+            }
+        }
+        Path file = tempDir.resolve("subunits.fgb");
+        SubunitFlatGeobuf.write(file, "subunits", "Subunits", SubunitFeatureStore.map(storePath));
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Magic bytes "fgb", major version 3, "fgb", followed by the size-prefixed header table.
+        assertThat(Arrays.copyOf(bytes.array(), 4)).containsExactly(0x66, 0x67, 0x62, 0x03);
+        int headerSize = bytes.getInt(8);
+        ByteBuffer header = ByteBuffer.wrap(Arrays.copyOfRange(bytes.array(), 12, 12 + headerSize))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int table = header.getInt(0);
+        assertThat(FlatGeobufReader.string(header,
+                FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_NAME)))
+                .isEqualTo("subunits");
+        assertThat(FlatGeobufReader.string(header,
+                FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_TITLE)))
+                .isEqualTo("Subunits");
+        assertThat(header.get(FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_GEOMETRY_TYPE)))
+                .isEqualTo((byte) 3);
+        assertThat(header.getLong(FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_FEATURES_COUNT)))
+                .isEqualTo(20);
+        assertThat(header.getShort(FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_INDEX_NODE_SIZE)))
+                .isEqualTo((short) 16);
+        int envelope = FlatGeobufReader.reference(header,
+                FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_ENVELOPE));
+        assertThat(header.getInt(envelope)).isEqualTo(4);
+        assertThat(new double[]{header.getDouble(envelope + 4), header.getDouble(envelope + 12),
+                header.getDouble(envelope + 20), header.getDouble(envelope + 28)})
+                .containsExactly(0, 0, 1950, 50);
+        int crs = FlatGeobufReader.reference(header,
+                FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_CRS));
+        assertThat(header.getInt(FlatGeobufReader.field(header, crs, FlatGeobufReader.CRS_CODE))).isEqualTo(3857);
+        int columns = FlatGeobufReader.reference(header,
+                FlatGeobufReader.field(header, table, FlatGeobufReader.HEADER_COLUMNS));
+        assertThat(header.getInt(columns)).isEqualTo(2);
+        for (int i = 0; i < 2; i++) {
+            int column = FlatGeobufReader.reference(header, columns + 4 + 4 * i);
+            assertThat(FlatGeobufReader.string(header,
+                    FlatGeobufReader.field(header, column, FlatGeobufReader.COLUMN_NAME)))
+                    .isEqualTo(i == 0 ? "id" : "title");
+            assertThat(header.get(FlatGeobufReader.field(header, column, FlatGeobufReader.COLUMN_TYPE)))
+                    .isEqualTo((byte) 11);
+        }
+
+        // 20 features with node size 16: a root, 2 inner nodes and 20 leaves, stored root first.
+        int indexStart = 12 + headerSize;
+        int featuresStart = indexStart + (1 + 2 + 20) * FlatGeobufReader.NODE_BYTES;
+        assertThat(bytes.getLong(indexStart + 32)).isEqualTo(1);
+        assertThat(new double[]{bytes.getDouble(indexStart), bytes.getDouble(indexStart + 8),
+                bytes.getDouble(indexStart + 16), bytes.getDouble(indexStart + 24)})
+                .containsExactly(0, 0, 1950, 50);
+        assertThat(bytes.getLong(indexStart + FlatGeobufReader.NODE_BYTES + 32)).isEqualTo(3);
+        assertThat(bytes.getLong(indexStart + 2 * FlatGeobufReader.NODE_BYTES + 32)).isEqualTo(3 + 16);
+        long featureOffset = 0;
+        for (int leaf = 3; leaf < 23; leaf++) {
+            int node = indexStart + leaf * FlatGeobufReader.NODE_BYTES;
+            assertThat(bytes.getLong(node + 32)).isEqualTo(featureOffset);
+            featureOffset += 4 + bytes.getInt(Math.toIntExact(featuresStart + featureOffset));
+        }
+        assertThat(featuresStart + featureOffset).isEqualTo(bytes.capacity());
+    }
+
+    @Test
+    void simplifiesNeighbouringSubunitsWithoutGapsOrOverlaps() {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<Coordinate> border = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            border.add(new Coordinate(500 + (i % 2 == 0 ? 1 : -1), i * 10));
+        }
+        List<Coordinate> west = new ArrayList<>(List.of(new Coordinate(0, 0)));
+        west.addAll(border);
+        west.addAll(List.of(new Coordinate(0, 1000), new Coordinate(0, 0)));
+        List<Coordinate> east = new ArrayList<>(border.reversed());
+        east.addAll(List.of(new Coordinate(1000, 0), new Coordinate(1000, 1000), border.getLast()));
+        Polygon westPolygon = geometryFactory.createPolygon(west.toArray(Coordinate[]::new));
+        Polygon eastPolygon = geometryFactory.createPolygon(east.toArray(Coordinate[]::new));
+
+        SubunitSimplifier simplifier =
+                new SubunitSimplifier(new MapMlProperties(null, List.of(14, 10), null, null, null, null, null));
+        List<SubunitSimplifier.Level> levels = new ArrayList<>();
+        simplifier.levels("test", List.of(
+                new SubunitMapMlService.SubunitFeature("west", "west", null, westPolygon),
+                new SubunitMapMlService.SubunitFeature("east", "east", null, eastPolygon)), levels::add);
+
+        assertThat(levels).extracting(SubunitSimplifier.Level::zoom).containsExactly(14, 10);
+        for (SubunitSimplifier.Level level : levels) {
+            Geometry simplifiedWest = level.features().get(0).geometry();
+            Geometry simplifiedEast = level.features().get(1).geometry();
+            assertThat(simplifiedWest.getNumPoints()).isLessThan(westPolygon.getNumPoints());
+            assertThat(simplifiedWest.intersection(simplifiedEast).getArea()).isZero();
+            assertThat(simplifiedWest.union(simplifiedEast).getArea()).isCloseTo(1_000_000.0, within(1e-3));
+        }
+    }
+
+    private static void publishBatch(ItemsMapMlWriter writer, ThemePublicationXmlParser parser) throws Exception {
+        try (ItemsMapMlWriter.Batch batch = writer.newBatch()) {
+            parser.loadThemePublications(batch);
+            batch.publish(List.of());
+        }
+    }
+
+    private static ItemsMapMlWriter itemsMapMlWriter(AppProperties appProperties) {
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        return new ItemsMapMlWriter(appProperties, mapMlProperties, subunitMapMlService());
+    }
+
+    private static SubunitMapMlService subunitMapMlService() {
+        return new SubunitMapMlService(new MapMlProperties(null, null, null, null, null, null, null));
+    }
 }
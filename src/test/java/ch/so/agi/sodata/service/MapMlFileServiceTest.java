@@ -0,0 +1,96 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlCacheProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MapMlFileServiceTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void servesCachedFilesUntilTheNextCatalogGeneration() throws Exception {
+        ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+        MapMlFileService service = mapMlFileService(catalog, DataSize.ofMegabytes(1), DataSize.ofKilobytes(64));
+        write("ch.so.agi.alpha.mapml", "<mapml-><!-- first --></mapml->");
+
+        MapMlFileService.MapMlFile first = service.find("ch.so.agi.alpha", null, false).orElseThrow();
+        assertThat(new String(first.content(), StandardCharsets.UTF_8)).contains("first");
+
+        write("ch.so.agi.alpha.mapml", "<mapml-><!-- second --></mapml->");
+        assertThat(service.find("ch.so.agi.alpha", null, false)).containsSame(first);
+        assertThat(service.cache().hitCount()).isOne();
+
+        catalog.replace(List.of());
+        MapMlFileService.MapMlFile second = service.find("ch.so.agi.alpha", null, false).orElseThrow();
+        assertThat(new String(second.content(), StandardCharsets.UTF_8)).contains("second");
+        assertThat(second.etag()).isNotEqualTo(first.etag());
+        assertThat(service.cache().size()).isOne();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedFilesBeyondTheBudget() throws Exception {
+        MapMlFileService service = mapMlFileService(new ThemePublicationCatalog(),
+                DataSize.ofBytes(250), DataSize.ofBytes(100));
+        write("a.mapml", "a".repeat(100));
+        write("b.mapml", "b".repeat(100));
+        write("c.mapml", "c".repeat(100));
+        write("large.mapml", "l".repeat(101));
+
+        service.find("a", null, false);
+        service.find("b", null, false);
+        service.find("a", null, false);
+        service.find("c", null, false);
+
+        assertThat(service.cache().residentBytes()).isEqualTo(200);
+        assertThat(service.find("a", null, false).orElseThrow().content()).isNotNull();
+        assertThat(service.cache().hitCount()).isEqualTo(2);
+        service.find("b", null, false);
+        assertThat(service.cache().hitCount()).isEqualTo(2);
+
+        MapMlFileService.MapMlFile large = service.find("large", null, false).orElseThrow();
+        assertThat(large.content()).isNull();
+        assertThat(large.length()).isEqualTo(101);
+        assertThat(service.find("missing", null, false)).isEmpty();
+    }
+
+    @Test
+    void prefersTheSimplifiedLevelAndTheGzipCopy() throws Exception {
+        MapMlFileService service = mapMlFileService(new ThemePublicationCatalog(), DataSize.ofBytes(0),
+                DataSize.ofBytes(0));
+        write("ch.so.agi.alpha.mapml", "full");
+        write("ch.so.agi.alpha.z10.mapml", "z10");
+        write("ch.so.agi.alpha.z10.mapml.gz", "z10 gzip");
+
+        assertThat(service.find("ch.so.agi.alpha", 12, false).orElseThrow().path().getFileName())
+                .hasToString("ch.so.agi.alpha.mapml");
+        MapMlFileService.MapMlFile gzip = service.find("ch.so.agi.alpha", 10, true).orElseThrow();
+        assertThat(gzip.gzip()).isTrue();
+        assertThat(gzip.content()).isNull();
+        assertThat(gzip.path().getFileName()).hasToString("ch.so.agi.alpha.z10.mapml.gz");
+        assertThat(service.find("ch.so.agi.alpha", null, true).orElseThrow().gzip()).isFalse();
+        assertThat(service.cache().size()).isZero();
+    }
+
+    private void write(String name, String content) throws Exception {
+        Files.writeString(tempDir.resolve(name), content);
+    }
+
+    private MapMlFileService mapMlFileService(ThemePublicationCatalog catalog, DataSize size, DataSize maxEntrySize) {
+        AppProperties appProperties = new AppProperties(null, tempDir.toString());
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        ItemsMapMlWriter writer = new ItemsMapMlWriter(appProperties, mapMlProperties,
+                new SubunitMapMlService(mapMlProperties));
+        return new MapMlFileService(writer, catalog, new MapMlCacheProperties(size, maxEntrySize, null));
+    }
+}
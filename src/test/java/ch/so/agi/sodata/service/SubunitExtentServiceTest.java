@@ -0,0 +1,155 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlCacheProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SubunitExtentServiceTest {
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void returnsTheSameMarkupAsToMapMlForTheSubunitsInTheBox() throws Exception {
+        List<SubunitMapMlService.SubunitFeature> features = List.of(
+                feature("west", new Envelope(0, 1000, 0, 1000)),
+                feature("middle", new Envelope(2000, 3000, 0, 1000)),
+                feature("east", new Envelope(4000, 5000, 0, 1000)));
+        writeStore(features);
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        SubunitExtentService extentService = extentService(new ThemePublicationCatalog());
+
+        SubunitExtentService.Extract extract =
+                extentService.extract(publication, null, new Envelope(500, 2500, 500, 600)).orElseThrow();
+
+        assertThat(extract.complete()).isFalse();
+        assertThat(new String(extract.body(), StandardCharsets.UTF_8))
+                .isEqualTo(subunitMapMlService().toMapMl(publication, features.subList(0, 2)));
+        SubunitExtentService.Extract outside =
+                extentService.extract(publication, null, new Envelope(9000, 9500, 0, 10)).orElseThrow();
+        assertThat(new String(outside.body(), StandardCharsets.UTF_8))
+                .isEqualTo(subunitMapMlService().toMapMl(publication, List.of()));
+        assertThat(extentService.extract(publication, null, new Envelope(100, 200, 100, 200)).orElseThrow().etag())
+                .isEqualTo(extentService.extract(publication, null, new Envelope(300, 400, 300, 400)).orElseThrow()
+                        .etag())
+                .isNotEqualTo(extract.etag());
+    }
+
+    @Test
+    void reportsBoxesThatContainEverySubunitAsComplete() throws Exception {
+        writeStore(List.of(feature("west", new Envelope(0, 1000, 0, 1000)),
+                feature("east", new Envelope(4000, 5000, 0, 1000))));
+        SubunitExtentService extentService = extentService(new ThemePublicationCatalog());
+
+        SubunitExtentService.Extract extract = extentService
+                .extract(TestPublications.alpha(tempDir), 10, new Envelope(-1, 5001, -1, 1001))
+                .orElseThrow();
+
+        assertThat(extract.complete()).isTrue();
+        assertThat(extract.body()).isNull();
+    }
+
+    @Test
+    void servesConcurrentRequestsForANewLayer() throws Exception {
+        writeStore(List.of(feature("west", new Envelope(0, 1000, 0, 1000)),
+                feature("east", new Envelope(4000, 5000, 0, 1000))));
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        SubunitExtentService extentService = extentService(new ThemePublicationCatalog());
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<SubunitExtentService.Extract>> extracts = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                Integer zoom = i % 2 == 0 ? null : 10;
+                extracts.add(executor.submit(() -> extentService
+                        .extract(publication, zoom, new Envelope(0, 10, 0, 10)).orElseThrow()));
+            }
+            for (Future<SubunitExtentService.Extract> extract : extracts) {
+                assertThat(new String(extract.get().body(), StandardCharsets.UTF_8))
+                        .contains("west").doesNotContain("east");
+            }
+        }
+    }
+
+    @Test
+    void servesLayersLargerThanTheBudgetUnfiltered() throws Exception {
+        writeStore(List.of(feature("west", new Envelope(0, 1000, 0, 1000)),
+                feature("east", new Envelope(4000, 5000, 0, 1000))));
+        SubunitExtentService extentService = extentService(new ThemePublicationCatalog(), DataSize.ofBytes(100));
+
+        SubunitExtentService.Extract extract = extentService
+                .extract(TestPublications.alpha(tempDir), null, new Envelope(0, 10, 0, 10))
+                .orElseThrow();
+
+        assertThat(extract.complete()).isTrue();
+        assertThat(extract.body()).isNull();
+    }
+
+    @Test
+    void rereadsTheFeatureStoreForANewCatalogGeneration() throws Exception {
+        writeStore(List.of(feature("first", new Envelope(0, 1000, 0, 1000))));
+        ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+        SubunitExtentService extentService = extentService(catalog);
+        Envelope box = new Envelope(0, 10, 0, 10);
+        assertThat(new String(extentService.extract(TestPublications.alpha(tempDir), null, box).orElseThrow().body(),
+                StandardCharsets.UTF_8)).contains("first");
+
+        writeStore(List.of(feature("second", new Envelope(0, 1000, 0, 1000)),
+                feature("other", new Envelope(4000, 5000, 0, 1000))));
+        assertThat(new String(extentService.extract(TestPublications.alpha(tempDir), null, box).orElseThrow().body(),
+                StandardCharsets.UTF_8)).contains("first");
+
+        catalog.replace(List.of());
+        assertThat(new String(extentService.extract(TestPublications.alpha(tempDir), null, box).orElseThrow().body(),
+                StandardCharsets.UTF_8)).contains("second").doesNotContain("first");
+    }
+
+    private SubunitMapMlService.SubunitFeature feature(String name, Envelope envelope) {
+        return new SubunitMapMlService.SubunitFeature(name, name, name, geometryFactory.toGeometry(envelope));
+    }
+
+    private void writeStore(List<SubunitMapMlService.SubunitFeature> features) throws Exception {
+        try (SubunitFeatureStore.Writer writer =
+                     SubunitFeatureStore.open(tempDir.resolve("ch.so.agi.alpha" + SubunitFeatureStore.SUFFIX))) {
+            for (SubunitMapMlService.SubunitFeature feature : features) {
+                writer.append(feature);
+            }
+        }
+    }
+
+    private SubunitExtentService extentService(ThemePublicationCatalog catalog) {
+        return extentService(catalog, null);
+    }
+
+    private SubunitExtentService extentService(ThemePublicationCatalog catalog, DataSize extentSize) {
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        AppProperties appProperties = new AppProperties(null, tempDir.toString());
+        return new SubunitExtentService(
+                new ItemsMapMlWriter(appProperties, mapMlProperties, subunitMapMlService()),
+                mapMlProperties,
+                new MapMlCacheProperties(null, null, extentSize),
+                subunitMapMlService(),
+                catalog
+        );
+    }
+
+    private static SubunitMapMlService subunitMapMlService() {
+        return new SubunitMapMlService(new MapMlProperties(null, null, null, null, null, null, null));
+    }
+}
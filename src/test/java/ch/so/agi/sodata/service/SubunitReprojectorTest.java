@@ -0,0 +1,81 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.domain.Item;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class SubunitReprojectorTest {
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void closePool() {
+        pool.close();
+    }
+
+    @Test
+    void reprojectsBatchesInParallelInTheirOriginalOrder() {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            double x = 2600000 + i * 10;
+            items.add(new Item("item-" + i, " Item " + i + " ", null, null, null,
+                    "POLYGON((" + x + " 1200000," + (x + 1000) + " 1200000," + (x + 1000) + " 1201000,"
+                            + x + " 1201000," + x + " 1200000))"));
+        }
+        items.add(new Item("blank", null, null, null, null, " "));
+        items.add(new Item("invalid", null, null, null, null, "POLYGON(("));
+
+        SubunitReprojector reprojector = new SubunitReprojector(MapMlProperties.Reprojection.PROJ4J);
+        List<SubunitMapMlService.SubunitFeature> features =
+                reprojector.buildFeatures(items, new SubunitReprojector.Throughput(), pool);
+
+        assertThat(features).hasSize(2000);
+        for (int i = 0; i < features.size(); i += 97) {
+            SubunitMapMlService.SubunitFeature feature = features.get(i);
+            assertThat(feature.itemIdentifier()).isEqualTo("item-" + i);
+            assertThat(feature.title()).isEqualTo("Item " + i);
+
+            SubunitMapMlService.SubunitFeature serial = reprojector
+                    .buildFeatures(List.of(items.get(i)), new SubunitReprojector.Throughput(), pool)
+                    .getFirst();
+            assertThat(feature.geometry().equalsExact(serial.geometry())).isTrue();
+        }
+
+        Coordinate first = features.getFirst().geometry().getCoordinates()[0];
+        assertThat(first.x).isCloseTo(828064.77, within(0.5));
+        assertThat(first.y).isCloseTo(5934093.19, within(0.5));
+    }
+
+    @Test
+    void approximateFormulasStayWithinTwoAndAHalfMetresOfProj4jAcrossTheCanton() {
+        List<Item> grid = new ArrayList<>();
+        for (int east = 2_590_000; east <= 2_650_000; east += 1000) {
+            for (int north = 1_210_000; north <= 1_265_000; north += 1000) {
+                grid.add(new Item(east + "/" + north, null, null, null, null, "POINT(" + east + " " + north + ")"));
+            }
+        }
+
+        List<SubunitMapMlService.SubunitFeature> exact = new SubunitReprojector(MapMlProperties.Reprojection.PROJ4J)
+                .buildFeatures(grid, new SubunitReprojector.Throughput(), pool);
+        List<SubunitMapMlService.SubunitFeature> approximate =
+                new SubunitReprojector(MapMlProperties.Reprojection.APPROXIMATE)
+                        .buildFeatures(grid, new SubunitReprojector.Throughput(), pool);
+
+        assertThat(approximate).hasSameSizeAs(grid);
+        double maxDeviation = 0;
+        for (int i = 0; i < grid.size(); i++) {
+            Coordinate expected = exact.get(i).geometry().getCoordinate();
+            Coordinate actual = approximate.get(i).geometry().getCoordinate();
+            maxDeviation = Math.max(maxDeviation, expected.distance(actual));
+        }
+        assertThat(maxDeviation).isLessThan(2.5);
+    }
+}
@@ -0,0 +1,181 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.TileProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SubunitTileServiceTest {
+    /** Width of a zoom 10 tile; tile 10/512/511 covers [0, TILE] x [0, TILE] in Web Mercator metres. */
+    private static final double TILE = 2 * Math.PI * 6378137 / 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void clipsSubunitsToTheTileAndItsBuffer() throws Exception {
+        writeStore();
+        SubunitTileService tileService = tileService();
+
+        String mapml = new String(tileService.tile(TestPublications.alpha(tempDir), 10, 512, 511).orElseThrow().body(),
+                StandardCharsets.UTF_8);
+
+        assertThat(mapml).contains("<mapml-");
+        assertThat(mapml).contains("inside", "crossing");
+        assertThat(mapml).doesNotContain("outside");
+        assertThat(mapml).doesNotContain("-5000");
+        assertThat(mapml).contains("/themepublication/data/ch.so.agi.alpha/items/inside");
+    }
+
+    @Test
+    void cachesTilesInMemoryAndOnDisk() throws Exception {
+        writeStore();
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        SubunitTileService tileService = tileService();
+
+        SubunitTileService.Tile first = tileService.tile(publication, 10, 512, 511).orElseThrow();
+        assertThat(tileService.tile(publication, 10, 512, 511)).containsSame(first);
+        try (Stream<Path> files = Files.walk(tempDir.resolve("tiles"))) {
+            assertThat(files.filter(path -> path.getFileName().toString().equals("511.mapml")).count()).isOne();
+        }
+
+        SubunitTileService.Tile reloaded = tileService().tile(publication, 10, 512, 511).orElseThrow();
+        assertThat(reloaded.etag()).isEqualTo(first.etag());
+        assertThat(reloaded.body()).isEqualTo(first.body());
+        assertThat(tileService.tile(publication, 10, 512, 510).orElseThrow().etag()).isNotEqualTo(first.etag());
+    }
+
+    @Test
+    void weighsTheMemoryCacheByTheSizeOfTheTiles() throws Exception {
+        writeStore();
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        SubunitTileService tileService = tileService(DataSize.ofBytes(1));
+
+        SubunitTileService.Tile first = tileService.tile(publication, 10, 512, 511).orElseThrow();
+        SubunitTileService.Tile second = tileService.tile(publication, 10, 512, 511).orElseThrow();
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.body()).isEqualTo(first.body());
+    }
+
+    @Test
+    void servesConcurrentRequestsForANewLayer() throws Exception {
+        writeStore();
+        ThemePublication publication = TestPublications.alpha(tempDir);
+        SubunitTileService tileService = tileService();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<SubunitTileService.Tile>> tiles = new ArrayList<>();
+            for (int y = 500; y < 516; y++) {
+                int row = y;
+                tiles.add(executor.submit(() -> tileService.tile(publication, 10, 512, row).orElseThrow()));
+            }
+            for (Future<SubunitTileService.Tile> tile : tiles) {
+                assertThat(tile.get().body()).isNotEmpty();
+            }
+        }
+    }
+
+    @Test
+    void cachesTilesOnDiskInTheGenerationOfTheFeatureStore() throws Exception {
+        Path generation = Files.createDirectories(tempDir.resolve("generations").resolve("1"));
+        Files.createSymbolicLink(tempDir.resolve("current"), tempDir.relativize(generation));
+        writeStore(generation);
+
+        assertThat(tileService().tile(TestPublications.alpha(tempDir), 10, 512, 511)).isPresent();
+
+        try (Stream<Path> files = Files.walk(generation.resolve("tiles"))) {
+            assertThat(files.filter(path -> path.getFileName().toString().equals("511.mapml")).count()).isOne();
+        }
+        assertThat(tempDir.resolve("tiles")).doesNotExist();
+    }
+
+    @Test
+    void rejectsTilesOutsideTheGrid() throws Exception {
+        SubunitTileService tileService = tileService();
+
+        assertThat(tileService.isValidTile(0, 0, 0)).isTrue();
+        assertThat(tileService.isValidTile(1, 2, 0)).isFalse();
+        assertThat(tileService.isValidTile(21, 0, 0)).isFalse();
+        assertThat(tileService.isValidTile(-1, 0, 0)).isFalse();
+        assertThatThrownBy(() -> tileService.tile(TestPublications.alpha(tempDir), 1, 0, 2))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(tileService.tile(TestPublications.alpha(tempDir), 0, 0, 0)).isEmpty();
+    }
+
+    @Test
+    void readsFeaturesLazilyFromTheMappedStore() throws Exception {
+        writeStore();
+        Path storePath = tempDir.resolve("ch.so.agi.alpha" + SubunitFeatureStore.SUFFIX);
+
+        SubunitFeatureStore.Mapped store = SubunitFeatureStore.map(storePath);
+
+        assertThat(store.size()).isEqualTo(3);
+        assertThat(store.envelope(1)).isEqualTo(new Envelope(-5000, 5000, 3000, 4000));
+        SubunitMapMlService.SubunitFeature crossing = store.feature(1);
+        assertThat(crossing.featureId()).isEqualTo("crossing");
+        assertThat(crossing.geometry().getEnvelopeInternal()).isEqualTo(store.envelope(1));
+        assertThat(((Polygon) crossing.geometry()).getExteriorRing().getCoordinateSequence())
+                .isInstanceOf(PackedCoordinateSequence.class);
+        assertThat(SubunitFeatureStore.read(storePath)).extracting(SubunitMapMlService.SubunitFeature::featureId)
+                .containsExactly("inside", "crossing", "outside");
+
+        byte[] bytes = Files.readAllBytes(storePath);
+        Files.write(storePath, Arrays.copyOf(bytes, bytes.length - 4));
+        assertThatThrownBy(() -> SubunitFeatureStore.map(storePath)).isInstanceOf(IOException.class);
+    }
+
+    private void writeStore() throws Exception {
+        writeStore(tempDir);
+    }
+
+    private void writeStore(Path directory) throws Exception {
+        GeometryFactory geometryFactory = new GeometryFactory();
+        try (SubunitFeatureStore.Writer writer =
+                     SubunitFeatureStore.open(directory.resolve("ch.so.agi.alpha" + SubunitFeatureStore.SUFFIX))) {
+            writer.append(new SubunitMapMlService.SubunitFeature("inside", "inside", "inside",
+                    geometryFactory.toGeometry(new Envelope(1000, 2000, 1000, 2000))));
+            writer.append(new SubunitMapMlService.SubunitFeature("crossing", "crossing", "crossing",
+                    geometryFactory.toGeometry(new Envelope(-5000, 5000, 3000, 4000))));
+            writer.append(new SubunitMapMlService.SubunitFeature("outside", "outside", "outside",
+                    geometryFactory.toGeometry(new Envelope(2 * TILE, 2 * TILE + 1000, 1000, 2000))));
+        }
+    }
+
+    private SubunitTileService tileService() {
+        return tileService(null);
+    }
+
+    private SubunitTileService tileService(DataSize memoryCacheSize) {
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        return new SubunitTileService(
+                new AppProperties(null, tempDir.toString()),
+                new TileProperties(null, null, memoryCacheSize, null, null, -1),
+                mapMlProperties,
+                new SubunitMapMlService(mapMlProperties),
+                new ThemePublicationCatalog()
+        );
+    }
+}
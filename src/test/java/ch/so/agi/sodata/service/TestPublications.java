@@ -0,0 +1,23 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ParserProperties;
+import ch.so.agi.sodata.domain.ThemePublication;
+
+import java.nio.file.Path;
+
+final class TestPublications {
+    private static final Path XML_PATH = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+
+    private TestPublications() {
+    }
+
+    static ThemePublication alpha(Path itemsDir) throws Exception {
+        AppProperties appProperties = new AppProperties(XML_PATH.toString(), itemsDir.toString());
+        return new ThemePublicationXmlParser(appProperties, new ParserProperties(null))
+                .loadThemePublications().stream()
+                .filter(candidate -> "ch.so.agi.alpha".equals(candidate.identifier()))
+                .findFirst()
+                .orElseThrow();
+    }
+}
@@ -1,6 +1,7 @@
 package ch.so.agi.sodata.service;
 
 import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ParserProperties;
 import ch.so.agi.sodata.config.IndexingProperties;
 import ch.so.agi.sodata.domain.ThemePublication;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -23,15 +24,17 @@ class ThemePublicationIndexServiceTest {
     void searchFindsMatchingDocuments() throws Exception {
         Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
         AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
-        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties);
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
         List<ThemePublication> publications = parser.loadThemePublications();
 
-        IndexingProperties indexingProperties = new IndexingProperties(tempDir.resolve("lucene").toString(), 100);
+        IndexingProperties indexingProperties = new IndexingProperties(tempDir.resolve("lucene").toString(), 100, 64);
         ObjectMapper objectMapper = new ObjectMapper()
                 .registerModule(new JavaTimeModule())
                 .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         ThemePublicationIndexService indexService = new ThemePublicationIndexService(indexingProperties, objectMapper);
+        assertThat(indexService.hasIndex()).isFalse();
         indexService.rebuildIndex(publications);
+        assertThat(indexService.hasIndex()).isTrue();
 
         List<ThemePublication> results = indexService.search("alpha");
         assertThat(results).hasSize(1);
@@ -41,4 +44,29 @@ class ThemePublicationIndexServiceTest {
         assertThat(sorted).hasSize(2);
         assertThat(sorted.getFirst().title()).isEqualTo("Alpha Dataset");
     }
+
+    @Test
+    void repeatedSearchesReuseCompiledWildcardQueries() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        List<ThemePublication> publications = new ThemePublicationXmlParser(appProperties, new ParserProperties(null)).loadThemePublications();
+
+        IndexingProperties indexingProperties = new IndexingProperties(tempDir.resolve("lucene").toString(), 100, 64);
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        ThemePublicationIndexService indexService = new ThemePublicationIndexService(indexingProperties, objectMapper);
+        indexService.rebuildIndex(publications);
+
+        indexService.search("alpha");
+        WildcardQueryCache cache = indexService.wildcardQueryCache();
+        long missesAfterFirstSearch = cache.missCount();
+        assertThat(cache.hitCount()).isZero();
+        assertThat(missesAfterFirstSearch).isPositive();
+
+        List<ThemePublication> results = indexService.search("alpha");
+        assertThat(results).hasSize(1);
+        assertThat(cache.missCount()).isEqualTo(missesAfterFirstSearch);
+        assertThat(cache.hitCount()).isEqualTo(missesAfterFirstSearch);
+    }
 }
@@ -0,0 +1,360 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.BootstrapProperties;
+import ch.so.agi.sodata.config.ParserProperties;
+import ch.so.agi.sodata.config.IndexingProperties;
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.ReloadProperties;
+import ch.so.agi.sodata.config.TileProperties;
+import ch.so.agi.sodata.controller.CatalogReloadEndpoint;
+import ch.so.agi.sodata.domain.Item;
+import ch.so.agi.sodata.domain.ThemePublication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class ThemePublicationRefreshServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void recordsSynchronousAndBackgroundRefreshJobs() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+        ThemePublicationRefreshService refreshService = newRefreshService(appProperties, parser, indexService);
+
+        try {
+            RefreshJob startup = refreshService.refresh("startup");
+            assertThat(startup.state()).isEqualTo(RefreshJob.State.SUCCEEDED);
+            assertThat(startup.publications()).isEqualTo(2);
+            assertThat(startup.indexedDocuments()).isEqualTo(2);
+            assertThat(startup.mapMlFiles()).isPositive();
+            assertThat(refreshService.lastChecksum()).isEqualTo(parser.checksum());
+
+            RefreshJob queued = refreshService.submit("test");
+            RefreshJob finished = awaitFinished(refreshService, queued.id());
+            assertThat(finished.state()).isEqualTo(RefreshJob.State.SUCCEEDED);
+            assertThat(finished.trigger()).isEqualTo("test");
+            assertThat(finished.durationMillis()).isNotNull();
+            assertThat(refreshService.jobs()).extracting(RefreshJob::id).containsExactly(queued.id(), startup.id());
+        } finally {
+            refreshService.close();
+            indexService.close();
+        }
+    }
+
+    @Test
+    void reloadsAndListsJobsThroughTheEndpoint() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+        ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+        ThemePublicationRefreshService refreshService = newRefreshService(appProperties, parser, indexService, catalog);
+        CatalogReloadEndpoint endpoint = new CatalogReloadEndpoint(refreshService);
+
+        try {
+            RefreshJob submitted = endpoint.reload();
+            assertThat(submitted.trigger()).isEqualTo("actuator");
+            assertThat(awaitFinished(refreshService, submitted.id()).state()).isEqualTo(RefreshJob.State.SUCCEEDED);
+            assertThat(endpoint.jobs()).extracting(RefreshJob::id, RefreshJob::trigger)
+                    .containsExactly(tuple(submitted.id(), "actuator"));
+            assertThat(catalog.publications()).hasSize(2);
+        } finally {
+            refreshService.close();
+            indexService.close();
+        }
+    }
+
+    @Test
+    void reloadsOnceChangesToTheWatchedCatalogFileHaveSettled() throws Exception {
+        Path xmlPath = Files.createDirectories(tempDir.resolve("config")).resolve("datasearch.xml");
+        Files.copy(Path.of("src/test/resources/datasearch-test.xml"), xmlPath);
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+        ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+        ThemePublicationRefreshService refreshService = newRefreshService(appProperties, parser, indexService, catalog);
+        CatalogFileWatcher watcher = new CatalogFileWatcher(
+                appProperties, new ReloadProperties(true, Duration.ofMillis(200), 5), parser, refreshService);
+
+        try {
+            watcher.start();
+            assertThat(watcher.isRunning()).isTrue();
+
+            // Seen before the startup refresh has finished, and already loaded by it.
+            Files.writeString(xmlPath, Files.readString(xmlPath).replace("Alpha Item", "Alpha Item v2"));
+            refreshService.refresh("startup");
+            Thread.sleep(1_000);
+            assertThat(refreshService.jobs()).extracting(RefreshJob::trigger).containsExactly("startup");
+
+            Files.setLastModifiedTime(xmlPath, FileTime.from(Instant.now()));
+            Thread.sleep(1_000);
+            assertThat(refreshService.jobs()).extracting(RefreshJob::trigger).containsExactly("startup");
+
+            String content = Files.readString(xmlPath);
+            for (int version = 3; version <= 5; version++) {
+                Files.writeString(xmlPath, content.replace("Alpha Item v2", "Alpha Item v" + version));
+                Thread.sleep(20);
+            }
+            RefreshJob reload = awaitTrigger(refreshService, "file-watch");
+            assertThat(reload.state()).isEqualTo(RefreshJob.State.SUCCEEDED);
+            Thread.sleep(1_000);
+            assertThat(refreshService.jobs()).extracting(RefreshJob::trigger).containsExactly("file-watch", "startup");
+            assertThat(catalog.findByIdentifier("ch.so.agi.alpha").orElseThrow().items())
+                    .extracting(Item::title)
+                    .contains("Alpha Item v5");
+        } finally {
+            watcher.stop();
+            refreshService.close();
+            indexService.close();
+        }
+    }
+
+    @Test
+    void restoresUnchangedCatalogFromSnapshot() throws Exception {
+        Path xmlPath = tempDir.resolve("datasearch.xml");
+        Files.copy(Path.of("src/test/resources/datasearch-test.xml"), xmlPath);
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+
+        try {
+            ThemePublicationRefreshService first = newRefreshService(appProperties, parser, indexService);
+            assertThat(first.restore("startup")).isEmpty();
+            RefreshJob built = first.refresh("startup");
+            first.close();
+
+            ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+            ThemePublicationRefreshService second = newRefreshService(appProperties, parser, indexService, catalog);
+            RefreshJob restored = second.restore("startup").orElseThrow();
+            second.close();
+
+            assertThat(restored.restored()).isTrue();
+            assertThat(restored.publications()).isEqualTo(built.publications());
+            assertThat(restored.mapMlFiles()).isEqualTo(built.mapMlFiles());
+            assertThat(restored.indexedDocuments()).isEqualTo(built.indexedDocuments());
+            assertThat(catalog.generation()).isEqualTo(1);
+            assertThat(catalog.publications()).extracting(ThemePublication::identifier)
+                    .containsExactly("ch.so.agi.alpha", "ch.so.agi.beta");
+            assertThat(catalog.findByIdentifier("ch.so.agi.alpha")).isPresent();
+
+            Files.writeString(xmlPath, Files.readString(xmlPath).replace("Alpha Dataset", "Alpha Dataset v2"));
+            ThemePublicationRefreshService third = newRefreshService(appProperties, parser, indexService);
+            assertThat(third.restore("startup")).isEmpty();
+            third.close();
+        } finally {
+            indexService.close();
+        }
+    }
+
+    @Test
+    void restoresCatalogFromPersistedIndex() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), tempDir.resolve("items").toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+
+        try {
+            ThemePublicationRefreshService first = newRefreshService(appProperties, parser, indexService);
+            first.refresh("startup");
+            first.close();
+
+            ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+            ThemePublicationRefreshService second = newRefreshService(appProperties, parser, indexService, catalog);
+            assertThat(second.restoreFromIndex()).isEqualTo(2);
+            second.close();
+
+            assertThat(catalog.generation()).isEqualTo(1);
+            assertThat(catalog.publications()).extracting(ThemePublication::identifier)
+                    .containsExactlyInAnyOrder("ch.so.agi.alpha", "ch.so.agi.beta");
+            assertThat(catalog.findByIdentifier("ch.so.agi.alpha").orElseThrow().title()).isNotBlank();
+        } finally {
+            indexService.close();
+        }
+    }
+
+    @Test
+    void generatesSubunitFilesOnFirstRequestWhenLazy() throws Exception {
+        Path xmlPath = tempDir.resolve("datasearch.xml");
+        Files.copy(Path.of("src/test/resources/datasearch-test.xml"), xmlPath);
+        Path itemsDir = tempDir.resolve("items");
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), itemsDir.toString());
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
+        ThemePublicationIndexService indexService = newIndexService();
+        ThemePublicationCatalog catalog = new ThemePublicationCatalog();
+        MapMlProperties lazy = new MapMlProperties(null, null, null, null, MapMlProperties.Generation.LAZY, null, null);
+        SubunitLayerGenerator generator = newLayerGenerator(appProperties, catalog, lazy);
+        ThemePublicationRefreshService refreshService =
+                newRefreshService(appProperties, parser, indexService, catalog, lazy, generator);
+        Path mapMlPath = itemsDir.resolve("current").resolve("ch.so.agi.alpha.mapml");
+        Path storePath = itemsDir.resolve("current").resolve("ch.so.agi.alpha" + SubunitFeatureStore.SUFFIX);
+        Files.createDirectories(itemsDir);
+        Files.writeString(itemsDir.resolve("ch.so.agi.alpha.mapml"), "<mapml-><!-- previous catalog --></mapml->");
+
+        try {
+            RefreshJob startup = refreshService.refresh("startup");
+            assertThat(startup.mapMlFiles()).isZero();
+            assertThat(mapMlPath).doesNotExist();
+            assertThat(catalog.findByIdentifier("ch.so.agi.alpha").orElseThrow().items())
+                    .extracting(Item::geometry)
+                    .containsOnlyNulls();
+            assertThat(itemsDir.resolve("current").resolve("ch.so.agi.alpha" + SubunitItemSpool.SUFFIX))
+                    .isRegularFile();
+            Files.writeString(xmlPath, Files.readString(xmlPath).replace("Alpha Item", "Alpha Item v2"));
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Object>> requests = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    requests.add(executor.submit(() -> {
+                        generator.ensure("ch.so.agi.alpha");
+                        return null;
+                    }));
+                }
+                for (Future<Object> request : requests) {
+                    request.get();
+                }
+            }
+            assertThat(Files.readString(mapMlPath)).contains("<map-featurecaption>Alpha Item</map-featurecaption>");
+            assertThat(ItemsMapMlWriter.gzipPath(mapMlPath)).isRegularFile();
+            assertThat(storePath).isRegularFile();
+
+            Object fileKey = Files.readAttributes(mapMlPath, BasicFileAttributes.class).fileKey();
+            SubunitLayerGenerator restarted = newLayerGenerator(appProperties, catalog, lazy);
+            try {
+                restarted.ensure("ch.so.agi.alpha");
+            } finally {
+                restarted.close();
+            }
+            assertThat(Files.readAttributes(mapMlPath, BasicFileAttributes.class).fileKey()).isEqualTo(fileKey);
+
+            Files.delete(mapMlPath);
+            generator.ensure("ch.so.agi.alpha");
+            assertThat(mapMlPath).doesNotExist();
+
+            refreshService.refresh("test");
+            assertThat(storePath).doesNotExist();
+            generator.ensure("ch.so.agi.alpha");
+            assertThat(Files.readString(mapMlPath))
+                    .contains("<map-featurecaption>Alpha Item v2</map-featurecaption>");
+        } finally {
+            refreshService.close();
+            generator.close();
+            indexService.close();
+        }
+    }
+
+    private ThemePublicationIndexService newIndexService() throws IOException {
+        return new ThemePublicationIndexService(
+                new IndexingProperties(tempDir.resolve("lucene").toString(), 100, 64), objectMapper());
+    }
+
+    private ThemePublicationRefreshService newRefreshService(
+            AppProperties appProperties,
+            ThemePublicationXmlParser parser,
+            ThemePublicationIndexService indexService
+    ) {
+        return newRefreshService(appProperties, parser, indexService, new ThemePublicationCatalog());
+    }
+
+    private ThemePublicationRefreshService newRefreshService(
+            AppProperties appProperties,
+            ThemePublicationXmlParser parser,
+            ThemePublicationIndexService indexService,
+            ThemePublicationCatalog catalog
+    ) {
+        MapMlProperties mapMlProperties = new MapMlProperties(null, null, null, null, null, null, null);
+        return newRefreshService(appProperties, parser, indexService, catalog, mapMlProperties,
+                newLayerGenerator(appProperties, catalog, mapMlProperties));
+    }
+
+    private ThemePublicationRefreshService newRefreshService(
+            AppProperties appProperties,
+            ThemePublicationXmlParser parser,
+            ThemePublicationIndexService indexService,
+            ThemePublicationCatalog catalog,
+            MapMlProperties mapMlProperties,
+            SubunitLayerGenerator layerGenerator
+    ) {
+        IndexingProperties indexingProperties = new IndexingProperties(tempDir.resolve("lucene").toString(), 100, 64);
+        SubunitMapMlService subunitMapMlService = new SubunitMapMlService(mapMlProperties);
+        TileProperties tileProperties = new TileProperties(null, null, null, null, null, -1);
+        return new ThemePublicationRefreshService(
+                parser,
+                new ItemsMapMlWriter(appProperties, mapMlProperties, subunitMapMlService),
+                new SubunitTileService(appProperties, tileProperties, mapMlProperties, subunitMapMlService, catalog),
+                layerGenerator,
+                indexService,
+                catalog,
+                new CatalogSnapshotService(indexingProperties, appProperties, mapMlProperties, objectMapper()),
+                new ReloadProperties(false, Duration.ofMillis(100), 5)
+        );
+    }
+
+    private static SubunitLayerGenerator newLayerGenerator(
+            AppProperties appProperties,
+            ThemePublicationCatalog catalog,
+            MapMlProperties mapMlProperties
+    ) {
+        ItemsMapMlWriter writer =
+                new ItemsMapMlWriter(appProperties, mapMlProperties, new SubunitMapMlService(mapMlProperties));
+        return new SubunitLayerGenerator(writer, catalog, mapMlProperties,
+                new BootstrapProperties(null, false, null));
+    }
+
+    private static ObjectMapper objectMapper() {
+        return new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    private RefreshJob awaitTrigger(ThemePublicationRefreshService refreshService, String trigger)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (System.nanoTime() < deadline) {
+            for (RefreshJob job : refreshService.jobs()) {
+                if (job.trigger().equals(trigger) && job.finishedAt() != null) {
+                    return job;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("No refresh triggered by " + trigger + " finished");
+    }
+
+    private RefreshJob awaitFinished(ThemePublicationRefreshService refreshService, long id) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (System.nanoTime() < deadline) {
+            List<RefreshJob> jobs = refreshService.jobs();
+            for (RefreshJob job : jobs) {
+                if (job.id() == id && job.finishedAt() != null) {
+                    return job;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("Refresh job " + id + " did not finish");
+    }
+}
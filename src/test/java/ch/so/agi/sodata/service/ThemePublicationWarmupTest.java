@@ -0,0 +1,116 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.MapMlProperties;
+import ch.so.agi.sodata.config.WarmupProperties;
+import gg.jte.TemplateEngine;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.DefaultApplicationArguments;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+class ThemePublicationWarmupTest {
+    private static final Path tempDir = createTempDir();
+
+    @Autowired
+    private ThemePublicationWarmup warmup;
+
+    @Autowired
+    private ApplicationAvailability applicationAvailability;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private WarmupProperties warmupProperties;
+
+    @Autowired
+    private ThemePublicationIndexService indexService;
+
+    @Autowired
+    private MapMlProperties mapMlProperties;
+
+    @Autowired
+    private SubunitLayerGenerator layerGenerator;
+
+    @Autowired
+    private MapMlFileService mapMlFileService;
+
+    @Autowired
+    private SubunitTileService tileService;
+
+    @Autowired
+    private TemplateEngine templateEngine;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        registry.add("app.config-file", xmlPath::toString);
+        registry.add("app.items-geojson-dir", () -> tempDir.resolve("items").toString());
+        registry.add("indexing.directory", () -> tempDir.resolve("lucene").toString());
+        registry.add("indexing.query-max-records", () -> "100");
+        registry.add("warmup.iterations", () -> "2");
+        registry.add("warmup.queries", () -> "alpha,subunit");
+    }
+
+    private static Path createTempDir() {
+        try {
+            return Files.createTempDirectory("sodata-warmup-tests");
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create temp dir for tests", e);
+        }
+    }
+
+    @Test
+    void acceptsTrafficOnlyAfterWarmupHasRun() {
+        assertThat(warmup.lastDuration()).isPositive();
+        assertThat(applicationAvailability.getReadinessState()).isEqualTo(ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    @Test
+    void warmsTheSubunitFilesAndTiles() throws Exception {
+        assertThat(mapMlFileService.cache().size()).isPositive();
+        try (Stream<Path> files = Files.walk(tempDir.resolve("items"))) {
+            assertThat(files.anyMatch(path -> path.toString().contains(SubunitTileService.CACHE_DIRECTORY)
+                    && path.getFileName().toString().equals("0.mapml"))).isTrue();
+        }
+    }
+
+    @Test
+    void refusesTrafficWhileWarmupRuns() {
+        List<ReadinessState> published = new ArrayList<>();
+        ThemePublicationWarmup rerun = new ThemePublicationWarmup(
+                warmupProperties, indexService, mapMlProperties, layerGenerator, mapMlFileService, tileService,
+                templateEngine, event -> {
+                    if (event instanceof AvailabilityChangeEvent<?> change
+                            && change.getState() instanceof ReadinessState state) {
+                        published.add(state);
+                    }
+                    applicationContext.publishEvent(event);
+                });
+
+        try {
+            rerun.run(new DefaultApplicationArguments());
+
+            assertThat(rerun.lastDuration()).isPositive();
+            assertThat(published).containsExactly(ReadinessState.REFUSING_TRAFFIC);
+            assertThat(applicationAvailability.getReadinessState()).isEqualTo(ReadinessState.REFUSING_TRAFFIC);
+        } finally {
+            AvailabilityChangeEvent.publish(applicationContext, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+}
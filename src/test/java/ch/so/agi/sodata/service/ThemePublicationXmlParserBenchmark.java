@@ -0,0 +1,84 @@
+package ch.so.agi.sodata.service;
+
+import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ParserProperties;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares building the DOM of {@code datasearch.xml} (what the former parser did before walking the tree) with
+ * parsing all publications through the StAX parser. Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class ThemePublicationXmlParserBenchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void domVersusStax() throws Exception {
+        Path xmlPath = Path.of("datasearch.xml").toAbsolutePath();
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(
+                new AppProperties(xmlPath.toString(), "build/tmp/items"), new ParserProperties(null));
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        factory.setExpandEntityReferences(false);
+
+        Task dom = () -> {
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            try (InputStream inputStream = Files.newInputStream(xmlPath)) {
+                Document document = builder.parse(inputStream);
+                return document.getDocumentElement().getChildNodes().getLength();
+            }
+        };
+        Task staxList = () -> parser.loadThemePublications().size();
+        Task staxStreaming = () -> {
+            AtomicInteger count = new AtomicInteger();
+            parser.forEachThemePublication(publication -> count.incrementAndGet());
+            return count.get();
+        };
+
+        assertThat(staxList.run()).isEqualTo(staxStreaming.run());
+
+        report("DOM document", dom);
+        report("StAX list", staxList);
+        report("StAX streaming", staxStreaming);
+    }
+
+    private void report(String name, Task task) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("%-16s %8.2f ms/op %10d KB allocated/op%n",
+                name, elapsed / 1_000_000.0 / MEASURED_ROUNDS, allocated / 1024 / MEASURED_ROUNDS);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        int run() throws Exception;
+    }
+}
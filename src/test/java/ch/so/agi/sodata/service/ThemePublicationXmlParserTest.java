@@ -1,11 +1,19 @@
 package ch.so.agi.sodata.service;
 
 import ch.so.agi.sodata.config.AppProperties;
+import ch.so.agi.sodata.config.ParserProperties;
 import ch.so.agi.sodata.domain.ThemePublication;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -15,7 +23,7 @@ class ThemePublicationXmlParserTest {
     void loadThemePublicationsParsesXml() throws Exception {
         Path xmlPath = Path.of("src/test/resources/datasearch-test.xml").toAbsolutePath();
         AppProperties appProperties = new AppProperties(xmlPath.toString(), "build/tmp/items");
-        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties);
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(appProperties, new ParserProperties(null));
 
         List<ThemePublication> publications = parser.loadThemePublications();
 
@@ -31,4 +39,123 @@ class ThemePublicationXmlParserTest {
         assertThat(alpha.tablesInfo().getFirst().attributesInfo().getFirst().datatype()).isEqualTo("Integer");
         assertThat(alpha.tablesInfo().getFirst().attributesInfo().getFirst().mandatory()).isTrue();
     }
+
+    @Test
+    void streamsPublicationsOneAtATime() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(
+                new AppProperties(xmlPath.toString(), "build/tmp/items"), new ParserProperties(null));
+
+        List<ThemePublication> loaded = parser.loadThemePublications();
+        List<ThemePublication> visited = new ArrayList<>();
+        parser.forEachThemePublication(visited::add);
+        List<ThemePublication> streamed;
+        try (Stream<ThemePublication> stream = parser.streamThemePublications()) {
+            streamed = stream.toList();
+        }
+
+        assertThat(loaded).isNotEmpty();
+        assertThat(visited).isEqualTo(loaded);
+        assertThat(streamed).isEqualTo(loaded);
+    }
+
+    @Test
+    void returnsNoPublicationsForMissingConfigFile() throws Exception {
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(
+                new AppProperties("build/tmp/does-not-exist.xml", "build/tmp/items"), new ParserProperties(null));
+
+        assertThat(parser.loadThemePublications()).isEmpty();
+    }
+
+    @Test
+    void splitsLargeFilesIntoPublicationsParsedInParallel() throws Exception {
+        Path xmlPath = Path.of("src/test/resources/datasearch-view-test.xml").toAbsolutePath();
+        AppProperties appProperties = new AppProperties(xmlPath.toString(), "build/tmp/items");
+
+        ThemePublicationXmlParser sequentialParser =
+                new ThemePublicationXmlParser(appProperties, new ParserProperties(DataSize.ofMegabytes(100)));
+        ThemePublicationXmlParser.LoadedCatalog sequential = sequentialParser.loadCatalog(null);
+        ThemePublicationXmlParser.LoadedCatalog parallel = new ThemePublicationXmlParser(
+                appProperties, new ParserProperties(DataSize.ofBytes(0))).loadCatalog(null);
+
+        assertThat(parallel.publications()).hasSize(5);
+        assertThat(parallel.publications()).isEqualTo(sequential.publications());
+        assertThat(sequential.checksum()).isEqualTo(sequentialParser.checksum());
+        assertThat(parallel.checksum()).isEqualTo(sequentialParser.checksum());
+    }
+
+    @Test
+    void findsPublicationBoundariesOutsideCommentsAndCdata() {
+        String xml = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <themePublications>
+                  <!-- <themePublication> -->
+                  <themePublication a="x>y"><title><![CDATA[</themePublication>]]></title></themePublication>
+                  <themePublication/>
+                </themePublications>
+                """;
+
+        List<ThemePublicationXmlParser.Fragment> fragments = ThemePublicationXmlParser.publicationFragments(
+                ByteBuffer.wrap(xml.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(fragments).hasSize(2);
+        assertThat(xml.substring(fragments.get(0).start(), fragments.get(0).end()))
+                .startsWith("<themePublication a=")
+                .endsWith("]]></title></themePublication>");
+        assertThat(xml.substring(fragments.get(1).start(), fragments.get(1).end())).isEqualTo("<themePublication/>");
+    }
+
+    @Test
+    void mergesShardDirectoryInFileNameOrderAndSkipsDuplicates(@TempDir Path tempDir) throws Exception {
+        Files.copy(Path.of("src/test/resources/datasearch-view-test.xml"), tempDir.resolve("10-view.xml"));
+        Files.copy(Path.of("src/test/resources/datasearch-test.xml"), tempDir.resolve("20-test.xml"));
+        Files.writeString(tempDir.resolve("notes.txt"), "not a shard");
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(
+                new AppProperties(tempDir.toString(), "build/tmp/items"), new ParserProperties(null));
+
+        List<ThemePublication> publications = parser.loadThemePublications();
+        List<ThemePublication> visited = new ArrayList<>();
+        parser.forEachThemePublication(visited::add);
+
+        assertThat(publications).extracting(ThemePublication::identifier).doesNotHaveDuplicates();
+        assertThat(publications).extracting(ThemePublication::identifier)
+                .startsWith("ch.so.agi.alpha", "ch.so.agi.beta");
+        assertThat(publications).hasSize(5);
+        assertThat(visited).isEqualTo(publications);
+        assertThat(parser.checksum()).isNotNull().isEqualTo(parser.loadCatalog(null).checksum());
+
+        String before = parser.checksum();
+        Files.move(tempDir.resolve("20-test.xml"), tempDir.resolve("30-test.xml"));
+        assertThat(parser.checksum()).isNotEqualTo(before);
+    }
+
+    @Test
+    void sharesRepeatedOfficesFormatsAndKeywords(@TempDir Path tempDir) throws Exception {
+        String publication = """
+                  <themePublication>
+                    <identifier>%s</identifier>
+                    <owner><agencyName>Amt für Geoinformation</agencyName><abbreviation>AGI</abbreviation></owner>
+                    <downloadHostUrl>https://files.geo.so.ch</downloadHostUrl>
+                    <keywords><keyword>Grundbuch</keyword></keywords>
+                    <fileFormats>
+                      <fileFormat><name>GeoPackage</name><mimetype>application/geopackage+sqlite3</mimetype><abbreviation>gpkg.zip</abbreviation></fileFormat>
+                    </fileFormats>
+                  </themePublication>
+                """;
+        Path xmlPath = tempDir.resolve("catalog.xml");
+        Files.writeString(xmlPath, "<themePublications>" + publication.formatted("ch.so.a") + publication.formatted("ch.so.b")
+                + "</themePublications>");
+        ThemePublicationXmlParser parser = new ThemePublicationXmlParser(
+                new AppProperties(xmlPath.toString(), "build/tmp/items"), new ParserProperties(null));
+
+        List<ThemePublication> publications = parser.loadThemePublications();
+
+        assertThat(publications).hasSize(2);
+        ThemePublication a = publications.get(0);
+        ThemePublication b = publications.get(1);
+        assertThat(b.owner()).isSameAs(a.owner());
+        assertThat(b.fileFormats().getFirst()).isSameAs(a.fileFormats().getFirst());
+        assertThat(b.keywords().getFirst()).isSameAs(a.keywords().getFirst());
+        assertThat(b.downloadHostUrl()).isSameAs(a.downloadHostUrl());
+    }
 }